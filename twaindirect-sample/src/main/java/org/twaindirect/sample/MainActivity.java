@@ -35,18 +35,16 @@ import org.twaindirect.discovery.ScannerInfo;
 import org.twaindirect.sample.cloud.CloudLoginActivity;
 import org.twaindirect.session.AsyncResponse;
 import org.twaindirect.session.AsyncResult;
+import org.twaindirect.session.ImageDestination;
 import org.twaindirect.session.Session;
 import org.twaindirect.session.SessionListener;
 import org.twaindirect.session.StreamUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
@@ -72,7 +70,7 @@ import static org.twaindirect.session.Session.State;
  * methods of SessionListener.
  */
 
-public class MainActivity extends AppCompatActivity implements SessionListener {
+public class MainActivity extends AppCompatActivity implements SessionListener, ImageDestination {
     private static final Logger logger = Logger.getLogger(Session.class.getName());
 
     private static final String TAG = "MainActivity";
@@ -405,6 +403,7 @@ public class MainActivity extends AppCompatActivity implements SessionListener {
     private void sessionCreated() {
         session.setTempDir(getCacheDir());
         session.setSessionListener(MainActivity.this);
+        session.setImageDestination(MainActivity.this);
         session.open(new AsyncResponse() {
             @Override
             public void onSuccess() {
@@ -743,52 +742,41 @@ public class MainActivity extends AppCompatActivity implements SessionListener {
     }
 
     /**
-     * We've received an image. We need to move or copy the file, because the file
-     * at pdfPath will be deleted when this call returns.
-     *
-     * @param session
-     * @param pdfPath
-     * @param metadata
+     * Choose where an image is saved. The session writes it straight to this file, so
+     * there's nothing to copy when it arrives.
      */
     @Override
-    public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
-        Log.i(TAG, "onImageReceived: " + pdfPath.getName());
+    public File getImageDestination(Session session, String suggestedName, JSONObject metadata) {
         File path = new File(Environment.getExternalStorageDirectory(), getString(R.string.image_folder_name));
         path.mkdir();
 
         // Generate a filename based on the current date/time, and the filename of the PDF (which
-        // will be the sheetNumber-imageNumber.pdf).
+        // will be the sheetNumber-imageNumber-1.pdf).
         Date date = new Date();
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
-        final File dst = new File(path, dateFormat.format(date) + "-" + pdfPath.getName());
-
-        // Copy the file to the destination
-        FileChannel inChannel = null;
-        try {
-            inChannel = new FileInputStream(pdfPath).getChannel();
-            FileChannel outChannel = new FileOutputStream(dst).getChannel();
-            try {
-                inChannel.transferTo(0, inChannel.size(), outChannel);
-            } finally {
-                if (inChannel != null)
-                    inChannel.close();
-                if (outChannel != null)
-                    outChannel.close();
+        return new File(path, dateFormat.format(date) + "-" + suggestedName);
+    }
 
-            }
-        } catch (IOException e) {
-            reportException("Unable to move image", e);
-        }
+    /**
+     * We've received an image. It's already in the file getImageDestination chose.
+     *
+     * @param session
+     * @param pdfPath
+     * @param metadata
+     */
+    @Override
+    public void onImageReceived(Session session, final File pdfPath, JSONObject metadata) {
+        Log.i(TAG, "onImageReceived: " + pdfPath.getName());
 
         // Update the media scanner so the file shows up
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                intent.setData(Uri.fromFile(dst));
+                intent.setData(Uri.fromFile(pdfPath));
                 sendBroadcast(intent);
 
-                lastImageNameReceived = dst.getName();
+                lastImageNameReceived = pdfPath.getName();
 
                 updateStatusLabel();
             }
@@ -0,0 +1,99 @@
+package org.twaindirect.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode an image block's Base64 with Base64.decode, and with Base64Decoder into a heap
+ * buffer, a direct buffer and a file, for block sizes from a small cloud block to a
+ * large scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64DecoderBenchmark {
+    @Param({ "65536", "1048576", "8388608" })
+    public int size;
+
+    private byte[] encoded;
+    private ByteBuffer heapSrc;
+    private ByteBuffer heapDst;
+    private ByteBuffer directSrc;
+    private ByteBuffer directDst;
+    private Base64Decoder decoder;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        encoded = Base64.encodeBytesToBytes(data);
+
+        heapSrc = ByteBuffer.wrap(encoded);
+        heapDst = ByteBuffer.allocate(size);
+        directSrc = ByteBuffer.allocateDirect(encoded.length);
+        directSrc.put(encoded);
+        directDst = ByteBuffer.allocateDirect(size);
+        decoder = new Base64Decoder(true);
+
+        file = File.createTempFile("base64", ".pdf");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] base64Decode() throws IOException {
+        return Base64.decode(encoded, 0, encoded.length, Base64.NO_OPTIONS);
+    }
+
+    @Benchmark
+    public int decoderHeap() throws IOException {
+        heapSrc.clear();
+        heapDst.clear();
+        return decoder.decode(heapSrc, heapDst) + decoder.finish(heapDst);
+    }
+
+    @Benchmark
+    public int decoderDirect() throws IOException {
+        directSrc.clear();
+        directDst.clear();
+        return decoder.decode(directSrc, directDst) + decoder.finish(directDst);
+    }
+
+    @Benchmark
+    public long decoderToFile() throws IOException {
+        heapSrc.clear();
+        fileChannel.position(0);
+        return decoder.decode(heapSrc, fileChannel) + decoder.finish(fileChannel);
+    }
+}
@@ -0,0 +1,100 @@
+package org.twaindirect.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.BodyPart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Save the image from a readImageBlock response to a file with MultipartParser, and
+ * with the javax.mail path it replaced (MimeMultipart, saveFile, then truncating the
+ * file to Content-Length), for 1 MB to 50 MB image blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+    private static final byte[] json = "{\"results\":{\"success\":true}}".getBytes();
+
+    @Param({ "1", "10", "50" })
+    public int megabytes;
+
+    private byte[] body;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] pdf = new byte[megabytes * 1024 * 1024];
+        for (int i = 0; i < pdf.length; i++) {
+            pdf[i] = (byte)(i * 7 + (i >> 8));
+        }
+        body = SimulatedScanner.multipart(json, pdf);
+        file = File.createTempFile("multipart", ".pdf");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long javaxMail() throws Exception {
+        InputStreamDataSource dataSource = new InputStreamDataSource(new ByteArrayInputStream(body), "multipart/mixed");
+        MimeMultipart multipart = new MimeMultipart(dataSource);
+        MimeBodyPart contentPart = null;
+        for (int part = 0; part < multipart.getCount(); part++) {
+            BodyPart bodyPart = multipart.getBodyPart(part);
+            if (bodyPart.getContentType().startsWith("application/json")) {
+                StreamUtils.inputStreamToJSONObject((InputStream)bodyPart.getContent());
+            }
+            if (bodyPart.getContentType().startsWith("application/pdf")) {
+                contentPart = (MimeBodyPart)bodyPart;
+            }
+        }
+
+        int bodyLength = Integer.parseInt(contentPart.getHeader("Content-Length")[0]);
+        contentPart.saveFile(file);
+        FileChannel chan = new FileOutputStream(file, true).getChannel();
+        chan.truncate(bodyLength);
+        chan.close();
+        return file.length();
+    }
+
+    @Benchmark
+    public long multipartParser() throws IOException {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body));
+        while (parser.nextPart()) {
+            if (parser.getContentType().startsWith("application/json")) {
+                parser.readBody();
+            } else {
+                FileChannel chan = new FileOutputStream(file).getChannel();
+                parser.transferBody(chan);
+                chan.close();
+            }
+        }
+        return file.length();
+    }
+}
@@ -1,12 +1,10 @@
 package org.twaindirect.cloud;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGetHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtilsHC4;
+import org.twaindirect.session.ApacheTransport;
 import org.twaindirect.session.AsyncResult;
-import org.twaindirect.session.HttpClientBuilder;
+import org.twaindirect.session.RequestCanceller;
+import org.twaindirect.session.Transport;
+import org.twaindirect.session.TransportResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,57 +40,110 @@ public class CloudBlockRequest implements Runnable {
     // Connect timeout in milliseconds
     public int connectTimeout = 20000;
 
+    // If non-zero, ask for the block from this byte offset on, to resume a download that
+    // was cut off. If the server ignores the Range header, the bytes before the offset
+    // are skipped, so the listener's stream always starts here.
+    public long rangeStart = 0;
+
     // We use this to get the access token and refresh it if required
     private final CloudConnection cloudConnection;
 
     // Have we already attempted to refresh an expired access token?
     private boolean attemptedTokenRefresh = false;
 
+    // Sends the request
+    public Transport transport = ApacheTransport.getDefault();
+
+    // If set, cancelling it aborts the request
+    public RequestCanceller canceller;
+
     @Override
     public void run() {
-        String result = null;
-        try {
-            logger.info("Requesting image block from " + url.toString());
-
-            //Create a connection
-            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), null);
-            HttpGetHC4 request = new HttpGetHC4(url.toString());
+        logger.info("Requesting image block from " + url.toString());
 
-            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
-            request.setConfig(requestConfig);
+        headers.put("Authorization", cloudConnection.getAccessToken());
+        if (rangeStart > 0) {
+            headers.put("Range", "bytes=" + rangeStart + "-");
+        }
 
-            request.addHeader("Content-Type", "application/json; charset=UTF-8");
-            request.addHeader("Authorization", cloudConnection.getAccessToken());
+        transport.fetchCloudBlock(this, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                boolean partialContent = response.statusCode == 206 && rangeStart > 0;
+                if (response.statusCode != 200 && !partialContent) {
+                    try {
+                        logger.finest(response.getBodyAsString());
+                    } catch (IOException e) {
+                        // Only read for logging
+                    }
+                    final Exception error = new Exception("HTTP response " + response.statusLine);
+
+                    // 401 can mean our OAuth2 access token has expired. Attempt to refresh it,
+                    // without holding the transport's thread while we wait.
+                    if (response.statusCode == 401 && !attemptedTokenRefresh) {
+                        attemptedTokenRefresh = true;
+                        cloudConnection.refreshToken(new AsyncResult<Boolean>() {
+                            @Override
+                            public void onResult(Boolean refreshed) {
+                                if (refreshed) {
+                                    // Retry
+                                    run();
+                                } else {
+                                    listener.onError(error);
+                                }
+                            }
+
+                            @Override
+                            public void onError(Exception e) {
+                                listener.onError(error);
+                            }
+                        });
+                        return;
+                    }
 
-            // Set any custom headers
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key));
-            }
+                    listener.onError(error);
+                    return;
+                }
 
-            // Send the request, pass on the response
-            CloseableHttpResponse response = httpClient.execute(request);
-
-            // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-            if (response.getStatusLine().getStatusCode() != 200) {
-                // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-                if (response.getStatusLine().getStatusCode() == 401 && !attemptedTokenRefresh) {
-                    attemptedTokenRefresh = true;
-                    if (cloudConnection.refreshToken()) {
-                        // Retry
-                        run();
+                if (rangeStart > 0 && !partialContent) {
+                    // The server sent the whole block
+                    try {
+                        skipFully(response.body, rangeStart);
+                    } catch (IOException e) {
+                        listener.onError(e);
                         return;
                     }
                 }
 
-                String responseBody = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                logger.finest(responseBody);
-                listener.onError(new Exception("HTTP response " + response.getStatusLine().toString()));
-                return;
+                listener.onResult(response.body);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                listener.onError(e);
             }
+        });
+    }
 
-            listener.onResult(response.getEntity().getContent());
-        } catch (IOException e) {
-            listener.onError(e);
+    /**
+     * Skip count bytes of in, failing if it ends first.
+     */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        byte[] buffer = null;
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may give up without reaching the end; read to find out
+                if (buffer == null) {
+                    buffer = new byte[8192];
+                }
+                int len = in.read(buffer, 0, (int)Math.min(buffer.length, count));
+                if (len == -1) {
+                    throw new IOException("Image block ended before the resume offset");
+                }
+                skipped = len;
+            }
+            count -= skipped;
         }
     }
 }
@@ -1,20 +1,17 @@
 package org.twaindirect.cloud;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGetHC4;
-import org.apache.http.client.methods.HttpRequestBaseHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtilsHC4;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.twaindirect.session.ApacheTransport;
 import org.twaindirect.session.AsyncResult;
-import org.twaindirect.session.HttpClientBuilder;
 import org.twaindirect.session.HttpJsonRequest;
+import org.twaindirect.session.Transport;
+import org.twaindirect.session.TransportResponse;
 import org.twaindirect.session.URIUtils;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -32,18 +29,20 @@ public class CloudConnection {
     private URI apiUrl;
 
     // OAuth2 Access Token
-    private String accessToken;
+    private volatile String accessToken;
 
     // OAuth2 Refresh Token
-    private String refreshToken;
+    private volatile String refreshToken;
 
-    // Are we currently in the middle of a token refresh?
-    // If so, when another request fails, hold on to it until
-    // the refresh completes and use the new token.
-    private boolean refreshingToken = false;
+    // Are we currently in the middle of a token refresh? If so, these are waiting for
+    // it, and when another request fails, it waits too and uses the new token.
+    private List<AsyncResult<Boolean>> refreshListeners;
 
     private ExecutorService executor = Executors.newFixedThreadPool(1);
 
+    // Sends our requests, and is used by the Sessions we create
+    private Transport transport = ApacheTransport.getDefault();
+
     // Interface used to listen for token refreshes so the updated
     // tokens can be saved for the next session.
     public interface TokenRefreshListener {
@@ -58,6 +57,19 @@ public class CloudConnection {
         this.refreshToken = refreshToken;
     }
 
+    /**
+     * Set the transport used for requests to the cloud service. Sessions created for
+     * this connection use it too. Set this before making any requests.
+     * @param transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
     /**
      * Request a list of scanners from the service.
      */
@@ -110,6 +122,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/scanners");
         request.method = "GET";
         request.cloudConnection = this;
+        request.transport = transport;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -135,6 +148,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/user");
         request.method = "GET";
         request.cloudConnection = this;
+        request.transport = transport;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -178,6 +192,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/scanners/" + scannerId);
         request.method = "GET";
         request.cloudConnection = this;
+        request.transport = transport;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -206,49 +221,87 @@ public class CloudConnection {
     }
 
     /**
-     * Synchronously refresh the access token.
-     * @return
+     * Refresh the access token, and tell listener whether it worked. If a refresh is
+     * already in progress, listener gets its result rather than starting another.
+     * Nothing waits for the response: listener is called on the transport's thread, or
+     * before this returns if the transport blocks.
      */
-    public boolean refreshToken() {
-        // If more than one request calls refreshToken, block the other requests until the
-        // first one finishes.
+    public void refreshToken(AsyncResult<Boolean> listener) {
+        HttpJsonRequest request;
         synchronized(this) {
-            if (refreshingToken) {
-                return true;
+            if (refreshListeners != null) {
+                refreshListeners.add(listener);
+                return;
             }
-
-            refreshingToken = true;
+            refreshListeners = new ArrayList<>();
+            refreshListeners.add(listener);
 
             logger.fine("Refreshing OAuth2 access token");
 
-            URI uri = URIUtils.appendPathToURI(apiUrl, "/authentication/refresh/" + refreshToken);
-
-            CloseableHttpClient httpClient = null;
-            try {
-                httpClient = HttpClientBuilder.createHttpClient(uri.getHost(), null);
-                HttpRequestBaseHC4 request = new HttpGetHC4(uri.toString());
-                request.addHeader("Authorization", accessToken);
-                CloseableHttpResponse response = httpClient.execute(request);
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    logger.warning("Token refresh returned " + response.getStatusLine().toString());
-                    return false;
-                }
-                String json = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                JSONObject jsonObject = new JSONObject(json);
-                accessToken = jsonObject.getString("authorizationToken");
-                refreshToken = jsonObject.getString("refreshToken");
-                if (tokenRefreshListener != null) {
-                    tokenRefreshListener.onAccessTokenRefreshed(this);
-                }
-                logger.fine("Token refresh successful");
-                return true;
-            } catch (UnknownHostException e) {
-                logger.warning(e.getMessage());
-                return false;
-            } catch (IOException e) {
+            request = new HttpJsonRequest();
+            request.url = URIUtils.appendPathToURI(apiUrl, "/authentication/refresh/" + refreshToken);
+            request.method = "GET";
+            request.headers.put("Authorization", accessToken);
+        }
+
+        transport.executeJson(request, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                refreshFinished(updateTokens(response));
+            }
+
+            @Override
+            public void onError(Exception e) {
                 logger.warning(e.getMessage());
-                return false;
+                refreshFinished(false);
             }
+        });
+    }
+
+    /**
+     * Take the new tokens from a refresh response. Returns false if it doesn't have them.
+     */
+    private boolean updateTokens(TransportResponse response) {
+        if (response.statusCode != 200) {
+            logger.warning("Token refresh returned " + response.statusLine);
+            return false;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(response.getBodyAsString());
+            String newAccessToken = jsonObject.getString("authorizationToken");
+            String newRefreshToken = jsonObject.getString("refreshToken");
+            synchronized(this) {
+                accessToken = newAccessToken;
+                refreshToken = newRefreshToken;
+            }
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+            return false;
+        } catch (JSONException e) {
+            logger.warning(e.getMessage());
+            return false;
+        }
+
+        logger.fine("Token refresh successful");
+        return true;
+    }
+
+    /**
+     * Tell everything waiting for the refresh how it went.
+     */
+    private void refreshFinished(boolean refreshed) {
+        List<AsyncResult<Boolean>> listeners;
+        synchronized(this) {
+            listeners = refreshListeners;
+            refreshListeners = null;
+        }
+
+        if (refreshed && tokenRefreshListener != null) {
+            tokenRefreshListener.onAccessTokenRefreshed(this);
+        }
+        for (AsyncResult<Boolean> listener : listeners) {
+            listener.onResult(refreshed);
         }
     }
 
@@ -9,12 +9,11 @@ import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.twaindirect.session.AsyncResponse;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -32,9 +31,10 @@ public class CloudEventBroker {
     Map<String, MqttMessage> messagesReceived = new HashMap<>();
 
     /**
-     * When we receive a message, we walk the listeners list looking for someone to deliver it to
+     * Listeners waiting for a response, by command ID. When we receive a message, the
+     * listener for its command ID gets it. Many commands can be waiting at once.
      */
-    List<CloudEventBrokerListener> listeners = new ArrayList<>();
+    Map<String, CloudEventBrokerListener> listeners = new HashMap<>();
 
     public CloudEventBroker(String authToken, CloudEventBrokerInfo eventBrokerInfo) throws MqttException {
         this.eventBrokerInfo = eventBrokerInfo;
@@ -49,42 +49,7 @@ public class CloudEventBroker {
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
                 logger.info("MQTT message arrived");
-                String payloadJSON = new String(message.getPayload());
-                JSONObject payload = new JSONObject(payloadJSON);
-                logger.fine(payload.toString(2));
-
-                // Message typically looks like this:
-                // {
-                //  "headers": {"content-Type": "application/json; charset=UTF-8"},
-                //  "statusDescription": null,
-                //  "requestId": null,
-                //  "body": "{\"version\":\"1.0\",\"name\":\"TWAIN2 FreeImage Software Scanner\",\"description\":\"Sample DS\",\"url\":\"\",\"type\":\"twaindirect\",\"id\":\"\",\"device_state\":\"idle\",\"connection_state\":\"offline\",\"manufacturer\":\"TWAIN Working Group\",\"model\":\"TWAIN2 FreeImage Software Scanner\",\"serial_number\":\"X\",\"firmware\":\"2.1:1.2\",\"uptime\":\"1436\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\",\"x-privet-token\":\"50gbKrsF235rSr6RI58PSGghbpA=:636696641228998209\",\"api\":[\"/privet/twaindirect/session\"],\"semantic_state\":\"\",\"clouds\":[{\"url\":\"https://api-twain.hazybits.com/dev\",\"id\":\"3c807fab-07c2-4710-be56-5c6b40bedcaa\",\"connection_state\":\"online\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\"}]}",
-                //  "statusCode": 200
-                // }
-
-                // Pick the right listener based on the command ID
-                String bodyJSON = payload.getString("body");
-                JSONObject body = new JSONObject(bodyJSON);
-                logger.fine("Decoded message body: " + body.toString(2));
-                String commandId = null;
-                if (body.has("commandId")) {
-                    commandId = body.getString("commandId");
-                }
-                CloudEventBrokerListener foundListener = null;
-                for (CloudEventBrokerListener listener : listeners) {
-                    String listenerCommandId = listener.getCommandId();
-                    if ((listenerCommandId== null ? commandId == null : listenerCommandId.equals(commandId))) {
-                        foundListener = listener;
-                        break;
-                    }
-                }
-
-                if (foundListener == null) {
-                    logger.warning("Received command with no registered listener");
-                } else {
-                    removeListener(foundListener);
-                }
-                foundListener.deliverJSONResponse(bodyJSON);
+                deliver(new String(message.getPayload()));
             }
 
             @Override
@@ -95,23 +60,65 @@ public class CloudEventBroker {
         });
     }
 
+    /**
+     * Pass a message from the response topic to the listener for its command ID.
+     * @param payloadJSON
+     * @throws JSONException
+     */
+    void deliver(String payloadJSON) throws JSONException {
+        JSONObject payload = new JSONObject(payloadJSON);
+        logger.fine(payload.toString(2));
+
+        // Message typically looks like this:
+        // {
+        //  "headers": {"content-Type": "application/json; charset=UTF-8"},
+        //  "statusDescription": null,
+        //  "requestId": null,
+        //  "body": "{\"version\":\"1.0\",\"name\":\"TWAIN2 FreeImage Software Scanner\",\"description\":\"Sample DS\",\"url\":\"\",\"type\":\"twaindirect\",\"id\":\"\",\"device_state\":\"idle\",\"connection_state\":\"offline\",\"manufacturer\":\"TWAIN Working Group\",\"model\":\"TWAIN2 FreeImage Software Scanner\",\"serial_number\":\"X\",\"firmware\":\"2.1:1.2\",\"uptime\":\"1436\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\",\"x-privet-token\":\"50gbKrsF235rSr6RI58PSGghbpA=:636696641228998209\",\"api\":[\"/privet/twaindirect/session\"],\"semantic_state\":\"\",\"clouds\":[{\"url\":\"https://api-twain.hazybits.com/dev\",\"id\":\"3c807fab-07c2-4710-be56-5c6b40bedcaa\",\"connection_state\":\"online\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\"}]}",
+        //  "statusCode": 200
+        // }
+
+        // Pick the right listener based on the command ID
+        String bodyJSON = payload.getString("body");
+        JSONObject body = new JSONObject(bodyJSON);
+        logger.fine("Decoded message body: " + body.toString(2));
+        String commandId = null;
+        if (body.has("commandId")) {
+            commandId = body.getString("commandId");
+        }
+
+        CloudEventBrokerListener foundListener;
+        synchronized(this) {
+            foundListener = listeners.remove(commandId);
+        }
+
+        if (foundListener == null) {
+            logger.warning("Received command with no registered listener");
+            return;
+        }
+        foundListener.deliverJSONResponse(bodyJSON);
+    }
+
     /**
      * Add a command listener.
      * @param listener
      */
     public void addListener(CloudEventBrokerListener listener) {
         synchronized(this) {
-            listeners.add(listener);
+            listeners.put(listener.getCommandId(), listener);
         }
     }
 
     /**
-     * Remove a command listener.
+     * Remove a command listener, for example when the command times out.
      * @param listener
      */
-    private void removeListener(CloudEventBrokerListener listener) {
+    public void removeListener(CloudEventBrokerListener listener) {
         synchronized(this) {
-            listeners.remove(listener);
+            String commandId = listener.getCommandId();
+            if (listeners.get(commandId) == listener) {
+                listeners.remove(commandId);
+            }
         }
     }
 
@@ -0,0 +1,153 @@
+package org.twaindirect.session;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGetHC4;
+import org.apache.http.client.methods.HttpPostHC4;
+import org.apache.http.client.methods.HttpRequestBaseHC4;
+import org.apache.http.entity.StringEntityHC4;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtilsHC4;
+import org.json.JSONObject;
+import org.twaindirect.cloud.CloudBlockRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Transport that uses the shared, pooled Apache HttpClient from HttpClientBuilder.
+ * Requests block the calling thread, and the listener is called before the method returns.
+ */
+public class ApacheTransport implements Transport {
+    private static final Logger logger = Logger.getLogger(ApacheTransport.class.getName());
+
+    private static final ApacheTransport defaultTransport = new ApacheTransport();
+
+    /**
+     * The transport used by requests unless told otherwise.
+     */
+    public static ApacheTransport getDefault() {
+        return defaultTransport;
+    }
+
+    @Override
+    public void executeJson(HttpJsonRequest request, AsyncResult<TransportResponse> listener) {
+        HttpRequestBaseHC4 httpRequest;
+        if (request.method.equals("POST")) {
+            httpRequest = new HttpPostHC4(request.url.toString());
+        } else {
+            httpRequest = new HttpGetHC4(request.url.toString());
+        }
+
+        try {
+            setBody(httpRequest, request.requestBody);
+        } catch (UnsupportedEncodingException e) {
+            listener.onError(e);
+            return;
+        }
+
+        execute(request.url, request.ipaddr, httpRequest, request.headers, request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    @Override
+    public void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener) {
+        HttpPostHC4 httpRequest = new HttpPostHC4(request.url.toString());
+
+        try {
+            setBody(httpRequest, request.requestBody);
+        } catch (UnsupportedEncodingException e) {
+            listener.onError(e);
+            return;
+        }
+
+        execute(request.url, request.ipaddr, httpRequest, request.headers, request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    @Override
+    public void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener) {
+        HttpGetHC4 httpRequest = new HttpGetHC4(request.url.toString());
+        execute(request.url, null, httpRequest, request.headers, request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    private void setBody(HttpRequestBaseHC4 httpRequest, JSONObject requestBody) throws UnsupportedEncodingException {
+        if (requestBody != null && httpRequest instanceof HttpPostHC4) {
+            ((HttpPostHC4)httpRequest).setEntity(new StringEntityHC4(requestBody.toString()));
+        }
+    }
+
+    /**
+     * Send the request on the shared client for this host, and pass the response to the listener.
+     * The listener reads the body synchronously; whatever it leaves is consumed afterwards so the
+     * connection can go back to the pool. Cancelling aborts the request, closing its
+     * connection, which makes a blocked read fail; the rest of a cancelled body isn't read.
+     */
+    private void execute(URI url, String ipaddr, final HttpRequestBaseHC4 httpRequest, Map<String, String> headers,
+                         int connectTimeout, int readTimeout, RequestCanceller canceller, AsyncResult<TransportResponse> listener) {
+        Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                httpRequest.abort();
+            }
+        };
+        if (canceller != null && !canceller.add(abort)) {
+            listener.onError(new RequestCancelledException());
+            return;
+        }
+
+        CloseableHttpResponse response = null;
+        try {
+            TransportResponse transportResponse;
+            try {
+                // Use the shared connection pool for this host
+                CloseableHttpClient httpClient = HttpClientBuilder.getHttpClient(url.getHost(), ipaddr);
+
+                // Configure timeouts
+                RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
+                httpRequest.setConfig(requestConfig);
+
+                httpRequest.addHeader("Content-Type", "application/json; charset=UTF-8");
+
+                // Set any custom headers
+                for (String key : headers.keySet()) {
+                    httpRequest.addHeader(key, headers.get(key));
+                }
+
+                // Connect to our url, get the response
+                response = httpClient.execute(httpRequest);
+
+                HttpEntity entity = response.getEntity();
+                InputStream body = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+                transportResponse = new TransportResponse(response.getStatusLine().getStatusCode(), response.getStatusLine().toString(), body);
+            } catch (IOException e) {
+                listener.onError(canceller != null && canceller.isCancelled() ? new RequestCancelledException() : e);
+                return;
+            }
+
+            listener.onResult(transportResponse);
+
+            if (canceller != null && canceller.isCancelled()) {
+                // Don't read the rest of a body nobody wants; drop the connection
+                httpRequest.abort();
+                return;
+            }
+
+            try {
+                EntityUtilsHC4.consume(response.getEntity());
+            } catch (IOException e) {
+                // The connection will be discarded rather than reused
+                logger.fine(e.toString());
+            }
+        } finally {
+            if (canceller != null) {
+                canceller.remove(abort);
+            }
+            HttpClientBuilder.closeResponse(response);
+        }
+    }
+}
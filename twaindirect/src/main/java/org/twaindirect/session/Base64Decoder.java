@@ -0,0 +1,351 @@
+package org.twaindirect.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A Base64 decoder for image data, working from ByteBuffer to ByteBuffer or to a channel.
+ *
+ * Unlike Base64.decode, this doesn't allocate per call: input can be fed in pieces of any
+ * size, and a partial quantum is carried over to the next call. Whole quanta are decoded
+ * four characters at a time through a lookup table, in a tight loop over the buffers'
+ * arrays (direct buffers are copied through reusable scratch arrays), falling back to one
+ * character at a time only around padding, whitespace and escapes.
+ *
+ * In strict mode the input must be unbroken, padded Base64. In lenient mode whitespace and
+ * JSON string quoting ('"', and escapes such as "\/" or "\n") are skipped, and missing
+ * padding is accepted.
+ *
+ * A decoder isn't thread safe. Call finish at the end of the input; the decoder can then
+ * be reused.
+ */
+class Base64Decoder {
+    private static final byte INVALID = -1;
+    private static final byte IGNORED = -2;
+    private static final byte PADDING = -3;
+
+    // Six bit value for each Base64 character, or one of the negative codes above
+    private static final byte[] decodeTable = new byte[256];
+
+    static {
+        for (int i = 0; i < decodeTable.length; i++) {
+            decodeTable[i] = INVALID;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            decodeTable[alphabet.charAt(i)] = (byte)i;
+        }
+        decodeTable['='] = PADDING;
+        decodeTable[' '] = IGNORED;
+        decodeTable['\t'] = IGNORED;
+        decodeTable['\r'] = IGNORED;
+        decodeTable['\n'] = IGNORED;
+        decodeTable['"'] = IGNORED;
+        decodeTable['\\'] = IGNORED;
+    }
+
+    private static final int channelBufferSize = 48 * 1024;
+    private static final int scratchQuanta = 1024;
+
+    private final boolean strict;
+
+    // Bits of the current quantum, and how many characters they came from
+    private int quantum;
+    private int quantumChars;
+
+    // '=' characters seen in the current quantum
+    private int paddingChars;
+
+    // True once a padded quantum has been written; only ignored characters may follow
+    private boolean padded;
+
+    // True if the last character was a backslash (lenient mode)
+    private boolean escaped;
+
+    // Characters consumed since the last reset, for error messages
+    private long inputOffset;
+
+    // Output buffer for decoding to a channel, allocated on first use
+    private ByteBuffer channelBuffer;
+
+    // Arrays for decoding direct buffers in bulk, allocated on first use
+    private byte[] scratchIn;
+    private byte[] scratchOut;
+
+    Base64Decoder(boolean strict) {
+        this.strict = strict;
+    }
+
+    boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Decode as much of src as fits in dst. Both buffers' positions are advanced.
+     * Returns the number of bytes written to dst; this is less than src would produce
+     * if dst fills up, and src is left positioned at the first character not consumed.
+     */
+    int decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        final byte[] table = decodeTable;
+        final int srcStart = src.position();
+        final int srcLimit = src.limit();
+        final int dstStart = dst.position();
+        final int dstLimit = dst.limit();
+        int sp = srcStart;
+        int dp = dstStart;
+
+        try {
+            while (sp < srcLimit) {
+                boolean quantumStart = quantumChars == 0 && paddingChars == 0 && !escaped && !padded;
+
+                // Fastest path: as many whole quanta as possible, through arrays
+                if (quantumStart && srcLimit - sp >= 4 && dstLimit - dp >= 3) {
+                    int quanta = Math.min((srcLimit - sp) / 4, (dstLimit - dp) / 3);
+                    int decoded;
+                    if (src.hasArray() && dst.hasArray()) {
+                        decoded = decodeQuanta(src.array(), src.arrayOffset() + sp, dst.array(), dst.arrayOffset() + dp, quanta);
+                    } else {
+                        decoded = decodeQuantaViaScratch(src, sp, dst, dp, quanta);
+                    }
+                    sp += decoded * 4;
+                    dp += decoded * 3;
+                    if (sp == srcLimit) {
+                        break;
+                    }
+                }
+
+                // Fast path: four characters to three bytes
+                if (quantumStart && srcLimit - sp >= 4 && dstLimit - dp >= 3) {
+                    int b0 = table[src.get(sp) & 0xff];
+                    int b1 = table[src.get(sp + 1) & 0xff];
+                    int b2 = table[src.get(sp + 2) & 0xff];
+                    int b3 = table[src.get(sp + 3) & 0xff];
+                    if ((b0 | b1 | b2 | b3) >= 0) {
+                        int bits = b0 << 18 | b1 << 12 | b2 << 6 | b3;
+                        dst.put(dp, (byte)(bits >> 16));
+                        dst.put(dp + 1, (byte)(bits >> 8));
+                        dst.put(dp + 2, (byte)bits);
+                        sp += 4;
+                        dp += 3;
+                        continue;
+                    }
+                }
+
+                // Slow path: one character
+                int c = src.get(sp) & 0xff;
+                int value = table[c];
+
+                if (escaped) {
+                    // Only "\/" contributes a character; "\n", "\r" etc. are line breaks
+                    escaped = false;
+                    if (c != '/') {
+                        sp++;
+                        continue;
+                    }
+                }
+
+                if (value >= 0) {
+                    if (padded || paddingChars > 0) {
+                        throw error("Base64 data after padding", sp - srcStart);
+                    }
+                    if (quantumChars == 3 && dstLimit - dp < 3) {
+                        break;
+                    }
+                    quantum = quantum << 6 | value;
+                    quantumChars++;
+                    sp++;
+                    if (quantumChars == 4) {
+                        dst.put(dp, (byte)(quantum >> 16));
+                        dst.put(dp + 1, (byte)(quantum >> 8));
+                        dst.put(dp + 2, (byte)quantum);
+                        dp += 3;
+                        quantum = 0;
+                        quantumChars = 0;
+                    }
+                } else if (value == PADDING) {
+                    // Valid endings are "xx==" and "xxx="
+                    if (padded || quantumChars < 2 || quantumChars + paddingChars >= 4) {
+                        throw error("Unexpected Base64 padding", sp - srcStart);
+                    }
+                    if (quantumChars + paddingChars == 3) {
+                        int bytes = quantumChars - 1;
+                        if (dstLimit - dp < bytes) {
+                            break;
+                        }
+                        dp = writePartialQuantum(dst, dp);
+                        padded = true;
+                    } else {
+                        paddingChars++;
+                    }
+                    sp++;
+                } else if (value == IGNORED && !strict) {
+                    if (c == '\\') {
+                        escaped = true;
+                    }
+                    sp++;
+                } else {
+                    throw error("Bad Base64 input character " + c, sp - srcStart);
+                }
+            }
+        } finally {
+            inputOffset += sp - srcStart;
+            src.position(sp);
+            dst.position(dp);
+        }
+
+        return dp - dstStart;
+    }
+
+    /**
+     * Decode all of src, writing the result to channel (typically a FileChannel).
+     * Returns the number of bytes written.
+     */
+    long decode(ByteBuffer src, WritableByteChannel channel) throws IOException {
+        ByteBuffer out = getChannelBuffer();
+        long written = 0;
+        while (src.hasRemaining()) {
+            decode(src, out);
+            written += drain(out, channel);
+        }
+        return written;
+    }
+
+    /**
+     * Signal the end of the input, writing any final bytes to dst (which needs room for
+     * two bytes), and reset the decoder. Fails if the input ended part way through a
+     * quantum - in lenient mode, only if the quantum couldn't have come from unpadded data.
+     */
+    int finish(ByteBuffer dst) throws IOException {
+        try {
+            if (quantumChars == 0 && paddingChars == 0) {
+                return 0;
+            }
+            if (strict || quantumChars < 2) {
+                throw error("Base64 data ends part way through a quantum", 0);
+            }
+            int dp = dst.position();
+            int end = writePartialQuantum(dst, dp);
+            dst.position(end);
+            return end - dp;
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * As finish(ByteBuffer), writing any final bytes to channel.
+     */
+    long finish(WritableByteChannel channel) throws IOException {
+        ByteBuffer out = getChannelBuffer();
+        finish(out);
+        return drain(out, channel);
+    }
+
+    /**
+     * Discard any partial quantum and start again.
+     */
+    void reset() {
+        quantum = 0;
+        quantumChars = 0;
+        paddingChars = 0;
+        padded = false;
+        escaped = false;
+        inputOffset = 0;
+    }
+
+    /**
+     * Decode up to quanta whole quanta between arrays, stopping at the first quantum
+     * containing anything other than the 64 Base64 characters. Returns the number decoded.
+     */
+    private static int decodeQuanta(byte[] src, int sp, byte[] dst, int dp, int quanta) {
+        final byte[] table = decodeTable;
+        for (int i = 0; i < quanta; i++) {
+            int b0 = table[src[sp] & 0xff];
+            int b1 = table[src[sp + 1] & 0xff];
+            int b2 = table[src[sp + 2] & 0xff];
+            int b3 = table[src[sp + 3] & 0xff];
+            if ((b0 | b1 | b2 | b3) < 0) {
+                return i;
+            }
+            int bits = b0 << 18 | b1 << 12 | b2 << 6 | b3;
+            dst[dp] = (byte)(bits >> 16);
+            dst[dp + 1] = (byte)(bits >> 8);
+            dst[dp + 2] = (byte)bits;
+            sp += 4;
+            dp += 3;
+        }
+        return quanta;
+    }
+
+    /**
+     * decodeQuanta for buffers without accessible arrays (direct buffers): copy the input
+     * through scratch arrays a few KB at a time. Leaves the buffers' positions unchanged.
+     */
+    private int decodeQuantaViaScratch(ByteBuffer src, int sp, ByteBuffer dst, int dp, int quanta) {
+        if (scratchIn == null) {
+            scratchIn = new byte[scratchQuanta * 4];
+            scratchOut = new byte[scratchQuanta * 3];
+        }
+        int srcPosition = src.position();
+        int dstPosition = dst.position();
+        int total = 0;
+        try {
+            while (total < quanta) {
+                int count = Math.min(quanta - total, scratchQuanta);
+                src.position(sp);
+                src.get(scratchIn, 0, count * 4);
+                int decoded = decodeQuanta(scratchIn, 0, scratchOut, 0, count);
+                dst.position(dp);
+                dst.put(scratchOut, 0, decoded * 3);
+                total += decoded;
+                sp += decoded * 4;
+                dp += decoded * 3;
+                if (decoded < count) {
+                    break;
+                }
+            }
+        } finally {
+            src.position(srcPosition);
+            dst.position(dstPosition);
+        }
+        return total;
+    }
+
+    /**
+     * Write the one or two bytes held by a quantum of two or three characters.
+     */
+    private int writePartialQuantum(ByteBuffer dst, int dp) {
+        if (quantumChars == 2) {
+            dst.put(dp++, (byte)(quantum >> 4));
+        } else {
+            dst.put(dp++, (byte)(quantum >> 10));
+            dst.put(dp++, (byte)(quantum >> 2));
+        }
+        quantum = 0;
+        quantumChars = 0;
+        paddingChars = 0;
+        return dp;
+    }
+
+    private ByteBuffer getChannelBuffer() {
+        if (channelBuffer == null) {
+            channelBuffer = ByteBuffer.allocate(channelBufferSize);
+        }
+        return channelBuffer;
+    }
+
+    private static int drain(ByteBuffer out, WritableByteChannel channel) throws IOException {
+        out.flip();
+        int written = out.remaining();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        return written;
+    }
+
+    private IOException error(String message, int offsetInCall) {
+        return new IOException(message + " at offset " + (inputOffset + offsetInCall));
+    }
+}
@@ -6,29 +6,32 @@ import org.twaindirect.cloud.CloudBlockRequest;
 import org.twaindirect.cloud.CloudConnection;
 import org.twaindirect.cloud.CloudEventBroker;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.mail.BodyPart;
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMultipart;
-
 /**
  * This class is responsible for downloading blocks and delivering them to the client application.
  *
@@ -47,6 +50,67 @@ import javax.mail.internet.MimeMultipart;
 public class BlockDownloader {
     private static final Logger logger = Logger.getLogger(BlockDownloader.class.getName());
 
+    /**
+     * Initial number of simultaneous downloads. DownloadWindow adjusts this as blocks
+     * arrive, between the minimum and maximum.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 3;
+
+    /**
+     * Default limits for the number of simultaneous downloads. HttpClientBuilder sizes
+     * its connection pool to allow for the maximum.
+     */
+    static final int DEFAULT_MIN_WINDOW_SIZE = 1;
+    static final int DEFAULT_MAX_WINDOW_SIZE = 8;
+
+    /**
+     * Default number of assembled images that may wait for delivery before downloads
+     * pause, so a slow consumer doesn't let finished images pile up without limit.
+     */
+    static final int DEFAULT_MAX_UNDELIVERED_IMAGES = 4;
+
+    /**
+     * By default, finished blocks are released in ranges of up to this many blocks, or
+     * after DEFAULT_RELEASE_DELAY_MILLIS. See BlockReleaser.
+     */
+    static final int DEFAULT_RELEASE_BLOCKS = 8;
+    static final int DEFAULT_RELEASE_DELAY_MILLIS = 20;
+
+    /**
+     * Default size up to which images delivered to an ImageDataListener are held in memory.
+     */
+    static final int DEFAULT_IN_MEMORY_IMAGE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * By default a block is attempted up to DEFAULT_MAX_BLOCK_ATTEMPTS times. Before each
+     * retry we wait a random time between half and all of a delay that starts at
+     * DEFAULT_RETRY_BASE_DELAY_MILLIS and doubles with each failure, up to
+     * DEFAULT_RETRY_MAX_DELAY_MILLIS.
+     */
+    static final int DEFAULT_MAX_BLOCK_ATTEMPTS = 5;
+    static final int DEFAULT_RETRY_BASE_DELAY_MILLIS = 250;
+    static final int DEFAULT_RETRY_MAX_DELAY_MILLIS = 8000;
+
+    /**
+     * By default, a block download that has taken longer than DEFAULT_HEDGE_PERCENTILE
+     * percent of recent blocks, and at least DEFAULT_MIN_HEDGE_DELAY_MILLIS, gets a second
+     * request, and whichever finishes first is used.
+     */
+    static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    static final int DEFAULT_MIN_HEDGE_DELAY_MILLIS = 250;
+
+    // How long our own download threads wait for work before exiting
+    private static final long idleThreadTimeoutSeconds = 30;
+
+    // Number of recent block latencies the hedge delay is taken from, and how many we
+    // need before hedging
+    private static final int latencySamples = 128;
+    private static final int minHedgeSamples = 20;
+
+    // Runs block retries once their backoff has passed, and checks for slow downloads,
+    // for every session
+    private static final ScheduledExecutorService downloadTimer = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("twaindirect-download-timer"));
+
     // Reference to the owning session
     private Session session;
 
@@ -55,21 +119,35 @@ public class BlockDownloader {
 
     private final CloudEventBroker cloudEventBroker;
 
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
+    // Runs block downloads. Either supplied by the application, or our own pool.
+    private Executor downloadExecutor;
+    private ThreadPoolExecutor ownDownloadExecutor;
+
+    // Upper limit for the window, and the size of our own download pool
+    private int maxWindowSize = DEFAULT_MAX_WINDOW_SIZE;
 
     /**
      * Status of all the blocks we're aware of
      */
-    private Map<Integer, BlockState> blockState = new HashMap<Integer, BlockState>();
+    private final BlockStateTable blockState = new BlockStateTable();
+
+    /**
+     * Blocks in the readyToDownload state. The scanner reports new blocks in ascending
+     * order, so they normally queue in order in readyBlocksInOrder; any that arrive
+     * below the last one queued go in readyBlocksOutOfOrder. The lowest of the two
+     * heads is downloaded next.
+     */
+    private final IntRingBuffer readyBlocksInOrder = new IntRingBuffer();
+    private final IntMinHeap readyBlocksOutOfOrder = new IntMinHeap();
 
-    // Block numbers <= this value have been downloaded, assembled, and delivered
-    // to the application.
+    // Block numbers < this value have been downloaded and queued for delivery to the
+    // application. This is the watermark below which no per-block state is kept.
     int highestBlockCompleted = 1;
 
     /**
-     * Number of simultaneous downloads allowed
+     * Number of simultaneous downloads allowed, adjusted as blocks arrive
      */
-    private int windowSize = 3;
+    private final DownloadWindow window = new DownloadWindow(DEFAULT_MIN_WINDOW_SIZE, DEFAULT_MAX_WINDOW_SIZE, DEFAULT_WINDOW_SIZE);
 
     /**
      * Temporary path for downloaded images before being delivered.
@@ -82,396 +160,1647 @@ public class BlockDownloader {
     private int activeDownloadCount = 0;
 
     /**
-     * Blocks that we've downloaded but not yet delivered
+     * Blocks that we've downloaded but not yet delivered. Entries (and their metadata)
+     * are removed when the image is queued for delivery.
      */
-    Map<Integer, ImageBlockInfo> downloadedBlocks = new HashMap<>();
+    final IntObjectMap<ImageBlockInfo> downloadedBlocks = new IntObjectMap<>();
 
-    /**
-     * Each block is in one of these states.
-     */
-    enum BlockState {
-        // Ready to download
-        readyToDownload,
-        // Currently downloading
-        downloading,
-        // Downloaded, but waitingForMoreParts for more parts
-        waitingForMoreParts,
-        // Delivered to the client, and deleted
-        completed
-    }
+    // Set once a block has failed for good or downloads have been cancelled, after which
+    // downloaded blocks can be stuck waiting for a block that will never arrive
+    private boolean blocksLost = false;
 
-    public BlockDownloader(Session session, File tempDir, SessionListener sessionListener, CloudEventBroker cloudEventBroker) {
-        this.session = session;
-        this.tempDir = tempDir;
-        this.sessionListener = sessionListener;
-        this.cloudEventBroker = cloudEventBroker;
-    }
+    // Set by cancelDownloads; blocks that haven't downloaded by then never will
+    private boolean downloadsCancelled = false;
 
     /**
-     * The scanner has indicated it has these blocks available - add them to the blockStatus
-     * map if we're not already tracking them.
-     * @param blockNumbers
-     * @return
+     * Images that are being written, by first block number. Each part is written into
+     * its image's file as it downloads. Entries are removed when the image is queued for
+     * delivery.
      */
-    public void enqueueBlocks(List<Integer> blockNumbers) {
-        synchronized(this) {
-            for (int blockNum : blockNumbers) {
-                if (!blockState.containsKey(blockNum)) {
-                    blockState.put(blockNum, BlockState.readyToDownload);
-                }
-            }
-
-            // Try to queue up some downloads
-            for (int i=0; i<windowSize; i++) {
-                startDownloadThread();
-            }
-        }
-    }
+    private final IntObjectMap<ImageAssembly> assemblies = new IntObjectMap<>();
 
     /**
-     * Kick off a download thread, if there aren't already >windowSize in progress.
+     * Images whose parts are all downloaded and in place, waiting to be delivered, in order.
      */
-    private void startDownloadThread() {
-        synchronized(this) {
-            if (activeDownloadCount >= windowSize) {
-                // Can't start another download right now
-                return;
-            }
+    private final ArrayDeque<PendingImage> pendingDeliveries = new ArrayDeque<>();
 
-            Thread thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    downloadThreadEntry();
-                }
-            });
+    private static class PendingImage {
+        final ImageBlockInfo[] parts;
+        final ImageAssembly assembly;
 
-            thread.start();
+        PendingImage(ImageBlockInfo[] parts, ImageAssembly assembly) {
+            this.parts = parts;
+            this.assembly = assembly;
         }
     }
 
-    /**
-     * Start download the next block, which means fire up the download thread if it's
-     * not already running.  If it is, then the block will get downloaded in turn.
-     */
-    private void downloadThreadEntry() {
-        int blockReady = -1;
+    // If set, images are delivered here rather than to sessionListener, in memory if
+    // they're no larger than inMemoryImageThreshold
+    private ImageDataListener imageDataListener;
+    private int inMemoryImageThreshold = DEFAULT_IN_MEMORY_IMAGE_THRESHOLD;
+    private boolean directImageBuffers = false;
 
-        synchronized(this) {
-            if (session.getStopping()) {
-                return;
-            }
+    // Chooses where images are written, if the application supplied one
+    private ImageDestination imageDestination;
 
-            if (activeDownloadCount >= windowSize) {
-                return;
-            }
+    // Gives finished blocks back to the scanner
+    private final BlockReleaser blockReleaser;
 
-            // Find the lowest block number that's not already downloading
-            Object[] blocks = blockState.keySet().toArray();
-            if (blocks.length == 0) {
-                // Nothing to download
-                return;
-            }
-            Arrays.sort(blocks);
+    // Receives each part of an image as it arrives, if the application supplied one
+    private ImagePartListener imagePartListener;
 
-            // Go through the blocks in sorted order looking for one that's readyToDownload
-            for (int bidx=0; bidx<blocks.length; bidx++) {
-                int blockNum = (int)blocks[bidx];
-                if (blockState.get(blockNum) == BlockState.readyToDownload) {
-                    blockReady = blockNum;
-                    break;
-                }
-            }
+    // Images queued or being delivered. New downloads wait while this is at the limit.
+    private int undeliveredImages = 0;
+    private int maxUndeliveredImages = DEFAULT_MAX_UNDELIVERED_IMAGES;
 
-            if (blockReady == -1) {
-                // No blocks are ready
-                return;
-            }
+    // True while a task is draining pendingDeliveries
+    private boolean deliveryScheduled = false;
 
-            blockState.put(blockReady, BlockState.downloading);
+    // If true, deliver each image as soon as all its parts arrive, rather than in order
+    private boolean outOfOrderDelivery = false;
 
-            activeDownloadCount = activeDownloadCount + 1;
-        }
+    // Retry limits; see setBlockRetry
+    private int maxBlockAttempts = DEFAULT_MAX_BLOCK_ATTEMPTS;
+    private int retryBaseDelayMillis = DEFAULT_RETRY_BASE_DELAY_MILLIS;
+    private int retryMaxDelayMillis = DEFAULT_RETRY_MAX_DELAY_MILLIS;
+    private final Random retryJitter = new Random();
 
-        logger.info(String.format("Starting download of block %s", blockReady));
+    /**
+     * Blocks whose download has failed at least once, until they succeed or give up.
+     */
+    private final IntObjectMap<BlockRetry> retries = new IntObjectMap<>();
 
-        final int blockNum = blockReady;
+    private static class BlockRetry {
+        // Attempts that have failed
+        int failures;
 
-        try {
-            // Synchronously download this block - we're on a background thread
-            JSONObject params = new JSONObject();
-            params.put("sessionId", session.getSessionId());
-            params.put("imageBlockNum", blockReady);
-            params.put("withMetadata", "true");
+        // What we have of a cloud block that was cut off, to resume it from
+        CloudTransfer partial;
+    }
 
-            final AsyncResult<InputStream> localListener = new AsyncResult<InputStream>() {
-                @Override
-                public void onResult(InputStream inputStream) {
-                    try {
-                        synchronized(this) {
-                            activeDownloadCount = activeDownloadCount - 1;
-                        }
+    /**
+     * A cloud block's data download: the readImageBlock results it came from, and once
+     * data has arrived, the part it's decoded into.
+     */
+    private static class CloudTransfer {
+        final JSONObject results;
+        ImageBlockInfo imageBlockInfo;
+        ImageAssembly.PartChannel part;
+        CloudBlockDecoder decoder;
+
+        CloudTransfer(JSONObject results) {
+            this.results = results;
+        }
 
-                        InputStreamDataSource dataSource = new InputStreamDataSource(inputStream, "multipart/mixed");
-                        MimeMultipart multipart = new MimeMultipart(dataSource);
+        boolean canResume() {
+            return decoder != null && decoder.canResume();
+        }
 
-                        int count = multipart.getCount();
+        void abort() {
+            if (part != null) {
+                part.abort();
+            }
+        }
+    }
 
-                        MimeBodyPart contentPart = null;
+    /**
+     * Blocks being downloaded, until one of their requests has all the data.
+     */
+    private final IntObjectMap<BlockDownload> downloads = new IntObjectMap<>();
 
-                        JSONObject results = null;
-                        for (int part = 0; part < count; part++) {
-                            BodyPart bodyPart = multipart.getBodyPart(part);
+    /**
+     * A block's download. It normally has one request; if that's slow, a second (hedge)
+     * request is sent and whichever finishes first is used. The other request is
+     * cancelled, and it ends quietly.
+     */
+    private static class BlockDownload {
+        final int blockNum;
+        final long startNanos;
 
-                            if (bodyPart.getContentType().startsWith("application/json")) {
-                                Object partObj = bodyPart.getContent();
-                                if (partObj instanceof InputStream) {
-                                    JSONObject response = StreamUtils.inputStreamToJSONObject((InputStream)partObj);
-                                    results = response.getJSONObject("results");
-                                }
-                            }
+        // Requests still running
+        int running = 1;
+        boolean hedged = false;
 
-                            if (bodyPart.getContentType().startsWith("application/pdf")) {
-                                contentPart = (MimeBodyPart)bodyPart;
-                            }
-                        }
+        // -1 until a request has all the data, then 0 for the original or 1 for the hedge
+        int winner = -1;
 
-                        if (contentPart == null) {
-                            logger.severe("requestImageBlock did not deliver an application/pdf part");
-                            return;
-                        }
+        // Where each request is writing the data, by the same index
+        final ImageAssembly.PartChannel[] parts = new ImageAssembly.PartChannel[2];
 
-                        // Save the content part, using an intermediate filename geneated from the metadata
-                        JSONObject metadata = results.getJSONObject("metadata");
-                        ImageBlockInfo imageBlockInfo = createImageBlockInfo(metadata, blockNum);
+        // Aborts each request's connection, by the same index
+        final RequestCanceller[] cancellers = new RequestCanceller[2];
 
-                        // Save the content part to disk
-                        String partName = imageBlockInfo.partFileName();
-                        File tempFile = new File(tempDir, partName);
+        BlockDownload(int blockNum, long startNanos) {
+            this.blockNum = blockNum;
+            this.startNanos = startNanos;
+        }
+    }
 
-                        // The BodyPart.saveFile method includes the crlf at the end of the part (which
-                        // extends past Content-Length).  To work around this, truncate the file
-                        // to the value of the Content-Length header.
-                        String[] contentLengthHeader = contentPart.getHeader("Content-Length");
-                        int bodyLength = Integer.parseInt(contentLengthHeader[0]);
-                        contentPart.saveFile(tempFile);
-                        FileChannel chan = new FileOutputStream(tempFile, true).getChannel();
-                        chan.truncate(bodyLength);
-                        chan.close();
+    /**
+     * One request for a block, the first or the hedge. Whichever way the request ends,
+     * it gives back its download slot once, and reports a failure once.
+     */
+    private class BlockAttempt {
+        final BlockDownload download;
+        final boolean hedge;
+        private final AtomicBoolean holdsSlot = new AtomicBoolean(true);
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        BlockAttempt(BlockDownload download, boolean hedge) {
+            this.download = download;
+            this.hedge = hedge;
+        }
 
-                        completedImageBlockDownload(imageBlockInfo);
-                    } catch (MessagingException e) {
-                        // The MIME body was unusable
-                        sessionListener.onConnectionError(session, e);
-                    } catch (IOException e) {
-                        sessionListener.onConnectionError(session, e);
-                    } catch (JSONException e) {
-                        sessionListener.onConnectionError(session, e);
-                    }
+        /**
+         * The request is done with the network; other blocks can have its slot.
+         */
+        void releaseSlot() {
+            if (holdsSlot.compareAndSet(true, false)) {
+                synchronized(BlockDownloader.this) {
+                    activeDownloadCount = activeDownloadCount - 1;
                 }
+            }
+        }
 
-                @Override
-                public void onError(Exception e) {
-                    // We failed getting this piece
-                    synchronized(this) {
-                        activeDownloadCount = activeDownloadCount - 1;
-                    }
-                    sessionListener.onConnectionError(session, e);
+        /**
+         * A canceller for one of this attempt's requests, which the session can still
+         * cancel through sessionCanceller. If the other request has already won, it's
+         * cancelled straight away.
+         */
+        RequestCanceller track(RequestCanceller sessionCanceller) {
+            RequestCanceller canceller = new RequestCanceller(sessionCanceller);
+            int index = hedge ? 1 : 0;
+            synchronized(BlockDownloader.this) {
+                if (download.winner < 0 || download.winner == index) {
+                    download.cancellers[index] = canceller;
+                    return canceller;
                 }
-            };
+            }
+            canceller.cancel();
+            return canceller;
+        }
 
-            // The regular image block request (readImageBlock) will return JSON
-            // in this case, containing the blockId
-            AsyncResult<JSONObject> cloudListener = new AsyncResult<JSONObject>() {
-                @Override
-                public void onResult(JSONObject result) {
-                    final JSONObject results = result.getJSONObject("results");
-                    final String blockId = results.getString("imageBlockId");
-                    logger.info("Requesting download of imageBlockId " + blockId);
-
-                    // We have the metadata. Request the block data from the cloud.
-                    CloudBlockRequest cloudBlockRequest = session.createCloudBlockRequest(blockId);
-                    cloudBlockRequest.listener = new AsyncResult<InputStream>() {
-                        @Override
-                        public void onResult(InputStream imageStream) {
-                            logger.info("Received data for block num " + blockNum + " id " + blockId);
-                            synchronized(this) {
-                                activeDownloadCount = activeDownloadCount - 1;
-                            }
+        void fail(Exception e, boolean retryable, CloudTransfer transfer) {
+            releaseSlot();
+            if (failed.compareAndSet(false, true)) {
+                downloadFailed(download, hedge, e, retryable, transfer);
+            } else {
+                logger.fine(String.format(Locale.US, "Request for block %d failed again: %s", download.blockNum, e));
+            }
+        }
+    }
 
-                            JSONObject metadata = results.getJSONObject("metadata");
-                            ImageBlockInfo imageBlockInfo = createImageBlockInfo(metadata, blockNum);
-                            String partName = imageBlockInfo.partFileName();
-                            File tempFile = new File(tempDir, partName);
-                            try {
-                                // The source stream is base64 encoded, and quoted.
-                                ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-                                byte[] buffer = new byte[64*1024];
-                                int len = 0;
-                                while ((len = imageStream.read(buffer)) != -1) {
-                                    bufferStream.write(buffer, 0, len);
-                                }
+    // Hedging settings; see setHedging
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private long minHedgeDelayNanos = DEFAULT_MIN_HEDGE_DELAY_MILLIS * 1000000L;
 
-                                byte[] imageData = bufferStream.toByteArray();
-                                int offset = 0;
-                                int length = imageData.length;
+    // Time from starting each recent block to having all its data
+    private final RecentLatencies blockLatencies = new RecentLatencies(latencySamples);
 
-                                // Adjust for quotes
-                                if (imageData[0] == 34) {
-                                    offset = 1;
-                                    length = length - 2;
-                                }
+    // Set when a session update announces new blocks, until one of them starts downloading
+    private boolean newBlocksWaiting = false;
+    private long newBlocksAnnouncedNanos;
 
-                                byte[] bytes = Base64.decode(imageData, offset, length, 0);
-                                FileOutputStream outputStream = new FileOutputStream(tempFile);
-                                outputStream.write(bytes);
-                                outputStream.close();
+    // Time from each recent update announcing new blocks to starting a download
+    private final RecentLatencies eventLatencies = new RecentLatencies(latencySamples);
 
-                                completedImageBlockDownload(imageBlockInfo);
-                            } catch (IOException e) {
-                                sessionListener.onConnectionError(session, e);
-                            }
-                        }
+    // True while a straggler check is waiting on the timer
+    private boolean hedgeCheckScheduled = false;
 
-                        @Override
-                        public void onError(Exception e) {
-                            synchronized(this) {
-                                activeDownloadCount = activeDownloadCount - 1;
-                            }
-                            sessionListener.onConnectionError(session, e);
-                        }
-                    };
-                    cloudBlockRequest.run();
-                }
+    private final Runnable hedgeCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkForStragglers();
+        }
+    };
 
-                @Override
-                public void onError(Exception e) {
-                    synchronized(this) {
-                        activeDownloadCount = activeDownloadCount - 1;
-                    }
-                    sessionListener.onConnectionError(session, e);
-                }
-            };
+    // Counts for DownloadMetrics
+    private long blocksRetried = 0;
+    private long blocksResumed = 0;
+    private long blocksHedged = 0;
+    private long hedgeWins = 0;
 
-            // Use either HttpBlockRequest or cloudListener depending on which
-            // protocol we're using
-            if (cloudEventBroker != null) {
-                HttpJsonRequest request = session.createJsonRequest("readImageBlock", params);
-                request.readTimeout = 120000;
-                request.listener = cloudListener;
-                executor.submit(request);
-            } else {
-                // Local block request
-                HttpBlockRequest request = session.createBlockRequest(params);
-                request.listener = localListener;
-                request.run();
-            }
+    // Run once every queued image has been delivered
+    private final ArrayDeque<Runnable> afterDeliveries = new ArrayDeque<>();
 
-        } catch (Exception e) {
-            logger.severe(e.toString());
-        }
-    }
+    // Runs image assembly and delivery. Either supplied by the application, or our own thread.
+    private Executor deliveryExecutor;
+    private ExecutorService ownDeliveryExecutor;
 
-    private ImageBlockInfo createImageBlockInfo(JSONObject metadata, int blockNum) {
-        JSONObject address = metadata.getJSONObject("address");
+    /**
+     * Each block is in one of these states.
+     */
+    enum BlockState {
+        // Ready to download
+        readyToDownload,
+        // Currently downloading
+        downloading,
+        // Failed, and waiting to be tried again
+        waitingToRetry,
+        // Failed, and out of attempts
+        failed,
+        // Downloaded, but waitingForMoreParts for more parts
+        waitingForMoreParts,
+        // Delivered to the client, and deleted
+        completed
+    }
 
-        ImageBlockInfo imageBlockInfo = new ImageBlockInfo();
-        imageBlockInfo.metadata = metadata;
-        imageBlockInfo.blockNum = blockNum;
-        imageBlockInfo.sheetNumber = address.getInt("sheetNumber");
-        imageBlockInfo.imageNumber = address.getInt("imageNumber");
-        imageBlockInfo.imagePart = address.getInt("imagePart");
-        imageBlockInfo.moreParts = ImageBlockInfo.MoreParts.valueOf(address.getString("moreParts"));
-        return imageBlockInfo;
+    public BlockDownloader(Session session, File tempDir, SessionListener sessionListener, CloudEventBroker cloudEventBroker) {
+        this.session = session;
+        this.tempDir = tempDir;
+        this.sessionListener = sessionListener;
+        this.cloudEventBroker = cloudEventBroker;
+        this.blockReleaser = new BlockReleaser(session, DEFAULT_RELEASE_BLOCKS, DEFAULT_RELEASE_DELAY_MILLIS);
     }
 
-    private void completedImageBlockDownload(ImageBlockInfo imageBlockInfo) {
-        // Add the ImageBlockInfo to our map of lists of parts.
+    /**
+     * Set the range the download window may adjust within.
+     */
+    public void setWindowLimits(int minWindowSize, int maxWindowSize) {
+        window.setLimits(minWindowSize, maxWindowSize);
         synchronized(this) {
-            blockState.put(imageBlockInfo.blockNum, BlockState.waitingForMoreParts);
-            downloadedBlocks.put(imageBlockInfo.blockNum, imageBlockInfo);
+            this.maxWindowSize = maxWindowSize;
+            if (ownDownloadExecutor != null) {
+                // Keep core <= maximum while resizing
+                if (maxWindowSize > ownDownloadExecutor.getMaximumPoolSize()) {
+                    ownDownloadExecutor.setMaximumPoolSize(maxWindowSize);
+                    ownDownloadExecutor.setCorePoolSize(maxWindowSize);
+                } else {
+                    ownDownloadExecutor.setCorePoolSize(maxWindowSize);
+                    ownDownloadExecutor.setMaximumPoolSize(maxWindowSize);
+                }
+            }
         }
-
-        logger.fine(String.format("Finished downloading block %d", imageBlockInfo.blockNum));
-
-        deliverCompletedParts();
-
-        // On to the next part
-        startDownloadThread();
-
-        session.releaseBlock(imageBlockInfo.blockNum, imageBlockInfo.blockNum);
-
     }
+
     /**
-     * If we have all the parts for the next image to deliver, deliver it to the application.
+     * Get a snapshot of download progress, including the current window size.
      */
-    private void deliverCompletedParts() {
-        int partsToAssemble = 0;
+    public DownloadMetrics getMetrics() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        window.getMetrics(metrics);
+        synchronized(this) {
+            metrics.activeDownloads = activeDownloadCount;
+            metrics.undeliveredImages = undeliveredImages;
+            metrics.blocksRetried = blocksRetried;
+            metrics.blocksResumed = blocksResumed;
+            metrics.blocksHedged = blocksHedged;
+            metrics.hedgeWins = hedgeWins;
+        }
+        metrics.blockLatencyP50Millis = Math.max(0, blockLatencies.percentile(50) / 1000000);
+        metrics.blockLatencyP99Millis = Math.max(0, blockLatencies.percentile(99) / 1000000);
+        metrics.eventToDownloadP50Millis = Math.max(0, eventLatencies.percentile(50) / 1000000);
+        metrics.eventToDownloadP99Millis = Math.max(0, eventLatencies.percentile(99) / 1000000);
+        return metrics;
+    }
 
+    /**
+     * Set the executor that runs block downloads. The application owns the executor;
+     * BlockDownloader never shuts it down. Set this before enqueueing any blocks.
+     * By default, BlockDownloader uses its own pool of up to the maximum window size
+     * threads, which exit when idle. Only as many downloads as the window allows are
+     * submitted at a time.
+     */
+    public void setDownloadExecutor(Executor executor) {
         synchronized(this) {
-            // See if we have an unbroken sequence of blocks ending in a block that has
-            // moreParts = lastPart
-            int nextBlock = 0;
+            downloadExecutor = executor;
+        }
+    }
 
-            for (int blockNum = highestBlockCompleted;; blockNum++) {
-                ImageBlockInfo ibi = downloadedBlocks.get(blockNum);
-                if (ibi == null) {
-                    // No block with this index
-                    return;
-                }
+    /**
+     * Stop the download pool, if we created one. Downloads in progress are allowed
+     * to finish.
+     */
+    public void shutdown() {
+        synchronized(this) {
+            if (ownDownloadExecutor != null) {
+                ownDownloadExecutor.shutdown();
+                ownDownloadExecutor = null;
+                downloadExecutor = null;
+            }
+            if (ownDeliveryExecutor != null) {
+                ownDeliveryExecutor.shutdown();
+                ownDeliveryExecutor = null;
+                deliveryExecutor = null;
+            }
 
-                partsToAssemble++;
+            blockReleaser.cancel();
 
-                if (ibi.moreParts != ImageBlockInfo.MoreParts.morePartsPending) {
-                    // This is a last part
-                    nextBlock = blockNum + 1;
-                    break;
+            // Partial downloads we won't resume
+            for (BlockRetry retry : retries.values()) {
+                if (retry.partial != null) {
+                    retry.partial.abort();
                 }
             }
+            retries.clear();
+            downloads.clear();
 
-            // Assemble parts from highestBlockDownloaded to nextBlock
-            ImageBlockInfo firstBlockInfo = downloadedBlocks.get(highestBlockCompleted);
-            File outFile = new File(tempDir, firstBlockInfo.eventualFileName());
-
-            logger.log(Level.FINE, String.format("Assembling parts from %s to %s into %s", highestBlockCompleted, nextBlock, outFile.getAbsolutePath()));
-
-            File firstBlockFile = new File(tempDir, firstBlockInfo.partFileName());
-            if (partsToAssemble > 1) {
-                // Append all subsequent blocks to the first one
-                try {
-                    OutputStream out = new FileOutputStream(firstBlockFile, true);
-
-                    byte[] buf = new byte[65536];
-
-                    for (int idx = highestBlockCompleted+ 1; idx < nextBlock; idx++) {
-                        ImageBlockInfo block = downloadedBlocks.get(idx);
-                        File inFile = new File(tempDir, block.partFileName());
-                        InputStream in = new FileInputStream(inFile);
-                        int b = 0;
-                        while ((b = in.read(buf)) >= 0) {
-                            out.write(buf, 0, b);
-                        }
+            // Images we won't finish
+            for (ImageAssembly assembly : assemblies.values()) {
+                assembly.abandon();
+            }
+            assemblies.clear();
+        }
+    }
 
-                        in.close();
-                        inFile.delete();
-                    }
-                    out.close();
-                } catch (FileNotFoundException e) {
-                    logger.severe(e.toString());
-                } catch (IOException e) {
-                    logger.severe(e.toString());
+    /**
+     * Stop downloading, because the session is closing. Blocks waiting to be downloaded
+     * or retried are dropped, and partial data kept to resume a block is deleted.
+     * Downloads in flight are cancelled by the session, and end quietly. Images that
+     * have already downloaded are still delivered; blocks of images that can't be
+     * finished now are dropped, and their files deleted.
+     */
+    public void cancelDownloads() {
+        synchronized(this) {
+            for (BlockRetry retry : retries.values()) {
+                if (retry.partial != null) {
+                    retry.partial.abort();
+                    retry.partial = null;
                 }
             }
+            retries.clear();
+            readyBlocksInOrder.clear();
+            readyBlocksOutOfOrder.clear();
 
-            JSONObject metadata = firstBlockInfo.metadata;
+            downloadsCancelled = true;
+            blocksLost = true;
+            dropUndeliverableBlocks();
+        }
+        runAfterDeliveriesIfIdle();
+    }
 
-            if (sessionListener != null) {
-                File finalFile = new File(tempDir, firstBlockInfo.eventualFileName());
-                firstBlockFile.renameTo(finalFile);
-                sessionListener.onImageReceived(session, finalFile, metadata);
-                finalFile.delete();
-            }
+    /**
+     * Set the executor that assembles images and calls SessionListener.onImageReceived.
+     * Images are delivered in order, one at a time, whatever the executor. The application
+     * owns the executor. By default BlockDownloader uses its own thread.
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        synchronized(this) {
+            deliveryExecutor = executor;
+        }
+    }
 
-            highestBlockCompleted = nextBlock;
+    /**
+     * By default images are delivered in block order, so an image waits for every image
+     * before it. If outOfOrder is true, each image is delivered as soon as all of its
+     * parts have downloaded. Delivery is still one image at a time.
+     */
+    public void setOutOfOrderDelivery(boolean outOfOrder) {
+        synchronized(this) {
+            outOfOrderDelivery = outOfOrder;
+        }
+    }
+
+    /**
+     * Deliver images to listener, rather than SessionListener.onImageReceived. Images up
+     * to inMemoryThreshold bytes are held in memory, in direct buffers if directBuffers
+     * is true; larger images are written to a temporary file.
+     */
+    public void setImageDataListener(ImageDataListener listener, int inMemoryThreshold, boolean directBuffers) {
+        synchronized(this) {
+            imageDataListener = listener;
+            inMemoryImageThreshold = inMemoryThreshold;
+            directImageBuffers = directBuffers;
+        }
+    }
+
+    /**
+     * Have images written to the files destination chooses, rather than the temp directory.
+     */
+    public void setImageDestination(ImageDestination destination) {
+        synchronized(this) {
+            imageDestination = destination;
+        }
+    }
+
+    /**
+     * Pass each part of each image to listener, in order, as soon as it has downloaded.
+     */
+    public void setImagePartListener(ImagePartListener listener) {
+        synchronized(this) {
+            imagePartListener = listener;
+        }
+    }
+
+    /**
+     * Set how finished blocks are released to the scanner: in ranges of up to maxBlocks,
+     * waiting at most delayMillis to collect them. setBlockRelease(1, 0) releases each
+     * block on its own as soon as it's downloaded.
+     */
+    public void setBlockRelease(int maxBlocks, int delayMillis) {
+        blockReleaser.setLimits(maxBlocks, delayMillis);
+    }
+
+    /**
+     * Set how failed block downloads are retried: up to maxAttempts attempts in all, with
+     * a randomized delay before each retry that starts at baseDelayMillis and doubles
+     * each time, up to maxDelayMillis. setBlockRetry(1, 0, 0) reports the first failure
+     * to SessionListener.onConnectionError, without retrying.
+     */
+    public void setBlockRetry(int maxAttempts, int baseDelayMillis, int maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        synchronized(this) {
+            maxBlockAttempts = maxAttempts;
+            retryBaseDelayMillis = baseDelayMillis;
+            retryMaxDelayMillis = Math.max(baseDelayMillis, maxDelayMillis);
+        }
+    }
+
+    /**
+     * Set when slow block downloads are hedged. Once a download has taken longer than
+     * percentile percent of recent blocks, and at least minDelayMillis, a second request
+     * is sent for the block if a download slot is free, and the first to finish is used.
+     * A percentile of 0 turns hedging off.
+     */
+    public void setHedging(double percentile, int minDelayMillis) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid hedge percentile " + percentile);
+        }
+        synchronized(this) {
+            hedgePercentile = percentile;
+            minHedgeDelayNanos = minDelayMillis * 1000000L;
+        }
+    }
+
+    /**
+     * Set how many images may be waiting for delivery before new downloads pause.
+     */
+    public void setMaxUndeliveredImages(int maxUndeliveredImages) {
+        if (maxUndeliveredImages < 1) {
+            throw new IllegalArgumentException("maxUndeliveredImages must be at least 1");
+        }
+        synchronized(this) {
+            this.maxUndeliveredImages = maxUndeliveredImages;
+        }
+        fillWindow();
+    }
+
+    /**
+     * The scanner has indicated it has these blocks available - add them to the blockStatus
+     * map if we're not already tracking them.
+     * @param blockNumbers
+     * @return
+     */
+    public void enqueueBlocks(List<Integer> blockNumbers) {
+        synchronized(this) {
+            boolean added = false;
+            for (int blockNum : blockNumbers) {
+                added |= enqueueBlock(blockNum);
+            }
+            if (added) {
+                newBlocksAdded();
+            }
+
+            // Try to queue up some downloads
+            fillWindow();
+        }
+    }
+
+    /**
+     * As enqueueBlocks(List), without boxing.
+     */
+    public void enqueueBlocks(int[] blockNumbers) {
+        enqueueBlocks(blockNumbers, blockNumbers.length);
+    }
+
+    /**
+     * As enqueueBlocks(int[]), using the first count entries of blockNumbers.
+     */
+    public void enqueueBlocks(int[] blockNumbers, int count) {
+        synchronized(this) {
+            boolean added = false;
+            for (int i = 0; i < count; i++) {
+                added |= enqueueBlock(blockNumbers[i]);
+            }
+            if (added) {
+                newBlocksAdded();
+            }
+
+            // Try to queue up some downloads
+            fillWindow();
+        }
+    }
+
+    /**
+     * Blocks have just been announced; note when, unless earlier ones are still waiting.
+     */
+    private void newBlocksAdded() {
+        if (!newBlocksWaiting) {
+            newBlocksWaiting = true;
+            newBlocksAnnouncedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Queue a block the scanner has announced. Returns false if we already knew of it.
+     */
+    private boolean enqueueBlock(int blockNum) {
+        if (blockState.contains(blockNum)) {
+            return false;
+        }
+        blockState.put(blockNum, BlockState.readyToDownload);
+        addReadyBlock(blockNum);
+        return true;
+    }
+
+    private void addReadyBlock(int blockNum) {
+        if (readyBlocksInOrder.isEmpty() || blockNum > readyBlocksInOrder.peekLast()) {
+            readyBlocksInOrder.add(blockNum);
+        } else {
+            readyBlocksOutOfOrder.add(blockNum);
+        }
+    }
+
+    private boolean hasReadyBlocks() {
+        return !readyBlocksInOrder.isEmpty() || !readyBlocksOutOfOrder.isEmpty();
+    }
+
+    /**
+     * Remove and return the lowest ready block.
+     */
+    private int pollReadyBlock() {
+        if (readyBlocksOutOfOrder.isEmpty()) {
+            return readyBlocksInOrder.poll();
+        }
+        if (readyBlocksInOrder.isEmpty() || readyBlocksOutOfOrder.peek() < readyBlocksInOrder.peek()) {
+            return readyBlocksOutOfOrder.poll();
+        }
+        return readyBlocksInOrder.poll();
+    }
+
+    /**
+     * Start downloading ready blocks, lowest first, until the window is full. Downloads
+     * also wait while too many images are waiting for delivery.
+     */
+    private void fillWindow() {
+        synchronized(this) {
+            if (session.getStopping()) {
+                return;
+            }
+
+            boolean started = false;
+            while (activeDownloadCount < window.getWindowSize() && undeliveredImages < maxUndeliveredImages && hasReadyBlocks()) {
+                int blockNum = pollReadyBlock();
+                final BlockDownload download = new BlockDownload(blockNum, System.nanoTime());
+                blockState.put(blockNum, BlockState.downloading);
+                downloads.put(blockNum, download);
+                activeDownloadCount = activeDownloadCount + 1;
+
+                try {
+                    getDownloadExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            downloadBlock(download, false);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down
+                    logger.warning("Block download rejected: " + e);
+                    blockState.put(blockNum, BlockState.readyToDownload);
+                    addReadyBlock(blockNum);
+                    downloads.remove(blockNum);
+                    activeDownloadCount = activeDownloadCount - 1;
+                    return;
+                }
+                started = true;
+
+                if (newBlocksWaiting) {
+                    newBlocksWaiting = false;
+                    eventLatencies.record(download.startNanos - newBlocksAnnouncedNanos);
+                }
+            }
+
+            if (started) {
+                scheduleHedgeCheck(hedgeDelayNanos());
+            }
+        }
+    }
+
+    /**
+     * How long a download may take before it's hedged, or -1 if it won't be: hedging is
+     * off, or we don't have enough history yet. Call with the lock held.
+     */
+    private long hedgeDelayNanos() {
+        if (hedgePercentile <= 0 || blockLatencies.size() < minHedgeSamples) {
+            return -1;
+        }
+        return Math.max(blockLatencies.percentile(hedgePercentile), minHedgeDelayNanos);
+    }
+
+    /**
+     * Check for slow downloads after delayNanos, unless a check is already due or
+     * delayNanos is negative. Call with the lock held.
+     */
+    private void scheduleHedgeCheck(long delayNanos) {
+        if (delayNanos < 0 || hedgeCheckScheduled) {
+            return;
+        }
+        hedgeCheckScheduled = true;
+        downloadTimer.schedule(hedgeCheck, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Hedge every download that has been running longer than the hedge delay, while
+     * there are download slots free, and schedule the next check. Runs on the timer.
+     */
+    private void checkForStragglers() {
+        synchronized(this) {
+            hedgeCheckScheduled = false;
+            long delayNanos = hedgeDelayNanos();
+            if (delayNanos < 0 || downloads.isEmpty() || session.getStopping()) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long nextCheckNanos = Long.MAX_VALUE;
+            for (BlockDownload download : downloads.values()) {
+                if (download.hedged) {
+                    continue;
+                }
+                long remaining = download.startNanos + delayNanos - now;
+                if (remaining > 0) {
+                    nextCheckNanos = Math.min(nextCheckNanos, remaining);
+                } else if (activeDownloadCount >= maxWindowSize) {
+                    // No connection to spare. Look again in a while.
+                    nextCheckNanos = Math.min(nextCheckNanos, delayNanos / 4);
+                } else {
+                    hedge(download);
+                }
+            }
+
+            if (nextCheckNanos != Long.MAX_VALUE) {
+                scheduleHedgeCheck(nextCheckNanos);
+            }
+        }
+    }
+
+    /**
+     * Send a second request for a slow block. Call with the lock held.
+     */
+    private void hedge(final BlockDownload download) {
+        logger.info(String.format(Locale.US, "Block %d is taking %d ms, sending a second request",
+                download.blockNum, (System.nanoTime() - download.startNanos) / 1000000));
+
+        download.hedged = true;
+        download.running++;
+        activeDownloadCount = activeDownloadCount + 1;
+        blocksHedged++;
+
+        try {
+            getDownloadExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    downloadBlock(download, true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Hedged block download rejected: " + e);
+            download.running--;
+            activeDownloadCount = activeDownloadCount - 1;
+        }
+    }
+
+    /**
+     * A request has opened part to write to. If the block's other request has already
+     * finished, cancel it.
+     */
+    private void registerPart(BlockDownload download, boolean hedge, ImageAssembly.PartChannel part) {
+        synchronized(this) {
+            if (download.winner < 0) {
+                download.parts[hedge ? 1 : 0] = part;
+                return;
+            }
+        }
+        part.cancel();
+    }
+
+    /**
+     * A request has all of its block's data. Returns true if it's the first, and cancels
+     * the other request and its part; false if the other request already won.
+     */
+    private boolean claimBlock(BlockDownload download, boolean hedge) {
+        int index = hedge ? 1 : 0;
+        ImageAssembly.PartChannel loser;
+        RequestCanceller loserCanceller;
+        synchronized(this) {
+            if (download.winner >= 0) {
+                return false;
+            }
+            download.winner = index;
+            loser = download.parts[1 - index];
+            loserCanceller = download.cancellers[1 - index];
+            if (downloads.get(download.blockNum) == download) {
+                downloads.remove(download.blockNum);
+            }
+            if (hedge) {
+                hedgeWins++;
+            }
+        }
+
+        blockLatencies.record(System.nanoTime() - download.startNanos);
+        if (loserCanceller != null) {
+            loserCanceller.cancel();
+        }
+        if (loser != null) {
+            loser.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * A request for a block has failed. Returns true if the block's download has failed:
+     * this was the only request still running, or it failed after winning. Returns false
+     * if the other request won, or is still running.
+     */
+    private boolean requestFailed(BlockDownload download, boolean hedge) {
+        int index = hedge ? 1 : 0;
+        synchronized(this) {
+            download.running--;
+            download.parts[index] = null;
+            if (download.winner >= 0) {
+                return download.winner == index;
+            }
+            if (download.running > 0) {
+                return false;
+            }
+            if (downloads.get(download.blockNum) == download) {
+                downloads.remove(download.blockNum);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Get the download executor, creating our own pool if the application didn't supply one.
+     */
+    private Executor getDownloadExecutor() {
+        synchronized(this) {
+            if (downloadExecutor == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWindowSize, maxWindowSize,
+                        idleThreadTimeoutSeconds, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("twaindirect-download"));
+                pool.allowCoreThreadTimeOut(true);
+                ownDownloadExecutor = pool;
+                downloadExecutor = pool;
+            }
+            return downloadExecutor;
+        }
+    }
+
+    /**
+     * Get the delivery executor, creating our own thread if the application didn't supply one.
+     */
+    private Executor getDeliveryExecutor() {
+        synchronized(this) {
+            if (deliveryExecutor == null) {
+                ThreadPoolExecutor thread = new ThreadPoolExecutor(1, 1,
+                        idleThreadTimeoutSeconds, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("twaindirect-delivery"));
+                thread.allowCoreThreadTimeOut(true);
+                ownDeliveryExecutor = thread;
+                deliveryExecutor = thread;
+            }
+            return deliveryExecutor;
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Send a request for a block. Runs on the download executor; the request has already
+     * been counted as an active download. hedge is true for a second request for a slow
+     * block.
+     */
+    private void downloadBlock(final BlockDownload download, final boolean hedge) {
+        final int blockNum = download.blockNum;
+        logger.info(String.format("Starting download of block %s", blockNum));
+
+        final long startNanos = System.nanoTime();
+        final BlockAttempt attempt = new BlockAttempt(download, hedge);
+
+        try {
+            // A cloud block that was cut off carries on where it stopped
+            CloudTransfer partial = hedge ? null : takePartialTransfer(blockNum);
+            if (partial != null) {
+                fetchCloudBlock(attempt, partial, startNanos);
+                return;
+            }
+
+            // Synchronously download this block - we're on a background thread
+            JSONObject params = new JSONObject();
+            params.put("sessionId", session.getSessionId());
+            params.put("imageBlockNum", blockNum);
+            params.put("withMetadata", "true");
+
+            final AsyncResult<InputStream> localListener = new AsyncResult<InputStream>() {
+                @Override
+                public void onResult(InputStream inputStream) {
+                    try {
+                        attempt.releaseSlot();
+
+                        ImageBlockInfo imageBlockInfo = receiveImageBlock(inputStream, download, hedge);
+                        if (imageBlockInfo == null) {
+                            attempt.fail(new IOException("Incomplete readImageBlock response"), true, null);
+                            return;
+                        }
+
+                        window.blockCompleted(imageBlockInfo.size, System.nanoTime() - startNanos);
+
+                        completedImageBlockDownload(imageBlockInfo);
+                    } catch (IOException e) {
+                        // Most likely the connection dropped part way through. TWAIN Local
+                        // can't resume a block, so the retry downloads it again.
+                        attempt.fail(e, true, null);
+                    } catch (JSONException e) {
+                        attempt.fail(e, false, null);
+                    } catch (RuntimeException e) {
+                        attempt.fail(e, false, null);
+                    }
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    // We failed getting this piece
+                    attempt.fail(e, true, null);
+                }
+            };
+
+            // The regular image block request (readImageBlock) will return JSON
+            // in this case, containing the blockId
+            AsyncResult<JSONObject> cloudListener = new AsyncResult<JSONObject>() {
+                @Override
+                public void onResult(final JSONObject result) {
+                    // We're on the MQTT client's thread, which has to get on with
+                    // delivering messages; download the data on one of ours
+                    try {
+                        getDownloadExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    fetchCloudBlock(attempt, new CloudTransfer(result.getJSONObject("results")), startNanos);
+                                } catch (JSONException e) {
+                                    // Most likely the scanner reported an error; ask again
+                                    attempt.fail(e, true, null);
+                                } catch (RuntimeException e) {
+                                    attempt.fail(e, false, null);
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        attempt.fail(e, false, null);
+                    }
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    attempt.fail(e, true, null);
+                }
+            };
+
+            // Use either HttpBlockRequest or cloudListener depending on which
+            // protocol we're using
+            if (cloudEventBroker != null) {
+                HttpJsonRequest request = session.createJsonRequest("readImageBlock", params);
+                request.canceller = attempt.track(request.canceller);
+                request.readTimeout = 120000;
+                request.listener = cloudListener;
+                request.run();
+            } else {
+                // Local block request
+                HttpBlockRequest request = session.createBlockRequest(params);
+                request.canceller = attempt.track(request.canceller);
+                request.listener = localListener;
+                request.run();
+            }
+
+        } catch (Exception e) {
+            logger.severe(e.toString());
+            attempt.fail(e, false, null);
+        }
+    }
+
+    /**
+     * We have a cloud block's metadata and blockId. Download its data from the cloud,
+     * decoding it into the image as it arrives. If the transfer was cut off before, ask
+     * for the rest with a Range request and decode it into the same part.
+     */
+    private void fetchCloudBlock(final BlockAttempt attempt, final CloudTransfer transfer, final long startNanos) throws JSONException {
+        final BlockDownload download = attempt.download;
+        final boolean hedge = attempt.hedge;
+        final int blockNum = download.blockNum;
+        final String blockId = transfer.results.getString("imageBlockId");
+        logger.info("Requesting download of imageBlockId " + blockId);
+
+        CloudBlockRequest cloudBlockRequest = session.createCloudBlockRequest(blockId);
+        cloudBlockRequest.canceller = attempt.track(cloudBlockRequest.canceller);
+        if (transfer.decoder != null) {
+            registerPart(download, hedge, transfer.part);
+            cloudBlockRequest.rangeStart = transfer.decoder.getBytesRead();
+            logger.info("Resuming block num " + blockNum + " at byte " + cloudBlockRequest.rangeStart);
+        }
+
+        cloudBlockRequest.listener = new AsyncResult<InputStream>() {
+            @Override
+            public void onResult(InputStream imageStream) {
+                logger.info("Received data for block num " + blockNum + " id " + blockId);
+                attempt.releaseSlot();
+
+                try {
+                    if (transfer.decoder == null) {
+                        transfer.imageBlockInfo = createImageBlockInfo(transfer.results.getJSONObject("metadata"), blockNum);
+                        transfer.part = openPart(transfer.imageBlockInfo, download, hedge);
+                        transfer.decoder = new CloudBlockDecoder(transfer.part);
+                    }
+
+                    // The source stream is base64 encoded, and quoted. Decode it
+                    // into the image as it arrives.
+                    transfer.decoder.decodeFrom(imageStream);
+                    transfer.decoder.finish();
+
+                    partDownloaded(transfer.imageBlockInfo, transfer.part, download, hedge);
+                    window.blockCompleted(transfer.imageBlockInfo.size, System.nanoTime() - startNanos);
+
+                    completedImageBlockDownload(transfer.imageBlockInfo);
+                } catch (IOException e) {
+                    attempt.fail(e, true, transfer);
+                } catch (JSONException e) {
+                    attempt.fail(e, false, transfer);
+                } catch (RuntimeException e) {
+                    attempt.fail(e, false, transfer);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                attempt.fail(e, true, transfer);
+            }
+        };
+        cloudBlockRequest.run();
+    }
+
+    /**
+     * If an earlier attempt at this block left a cloud transfer that can be resumed,
+     * take it.
+     */
+    private CloudTransfer takePartialTransfer(int blockNum) {
+        synchronized(this) {
+            if (retries.isEmpty()) {
+                return null;
+            }
+            BlockRetry retry = retries.get(blockNum);
+            if (retry == null) {
+                return null;
+            }
+            CloudTransfer partial = retry.partial;
+            retry.partial = null;
+            return partial;
+        }
+    }
+
+    /**
+     * A request for a block failed; it's no longer counted as active. If the block's other
+     * request won or is still running, that's all. Otherwise, if the failure is retryable
+     * and the block has attempts left, try it again after a backoff delay, keeping
+     * whatever of transfer can be resumed, or report the error to the application.
+     */
+    private void downloadFailed(BlockDownload download, boolean hedge, Exception e, boolean retryable, CloudTransfer transfer) {
+        final int blockNum = download.blockNum;
+        if (!requestFailed(download, hedge)) {
+            logger.fine(String.format(Locale.US, "Request for block %d ended: %s", blockNum, e));
+            if (transfer != null) {
+                transfer.abort();
+            }
+            fillWindow();
+            return;
+        }
+
+        if (e instanceof RequestCancelledException || session.getStopping()) {
+            // The session is closing, and cancelled the request
+            logger.fine(String.format(Locale.US, "Download of block %d cancelled: %s", blockNum, e));
+            synchronized(this) {
+                retries.remove(blockNum);
+                blockState.put(blockNum, BlockState.failed);
+                blocksLost = true;
+                dropUndeliverableBlocks();
+            }
+            if (transfer != null) {
+                transfer.abort();
+            }
+            runAfterDeliveriesIfIdle();
+            return;
+        }
+
+        window.blockFailed();
+
+        long delayMillis = -1;
+        int failures;
+        int attempts;
+        synchronized(this) {
+            BlockRetry retry = retries.get(blockNum);
+            if (retry == null) {
+                retry = new BlockRetry();
+                retries.put(blockNum, retry);
+            }
+            failures = ++retry.failures;
+            attempts = maxBlockAttempts;
+
+            if (retryable && failures < maxBlockAttempts && !session.getStopping()) {
+                if (transfer != null && transfer.canResume()) {
+                    retry.partial = transfer;
+                    blocksResumed++;
+                    transfer = null;
+                }
+                blockState.put(blockNum, BlockState.waitingToRetry);
+                blocksRetried++;
+                delayMillis = retryDelayMillis(failures);
+            } else {
+                retries.remove(blockNum);
+                blockState.put(blockNum, BlockState.failed);
+                blocksLost = true;
+                dropUndeliverableBlocks();
+            }
+        }
+
+        if (transfer != null) {
+            // Any data we keep was handed to the retry
+            transfer.abort();
+        }
+
+        if (delayMillis >= 0) {
+            logger.warning(String.format(Locale.US, "Download of block %d failed (attempt %d of %d), retrying in %d ms: %s",
+                    blockNum, failures, attempts, delayMillis, e));
+            downloadTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retryBlock(blockNum);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            logger.severe(String.format(Locale.US, "Download of block %d failed after %d attempts: %s", blockNum, failures, e));
+            sessionListener.onConnectionError(session, e);
+            runAfterDeliveriesIfIdle();
+        }
+
+        // Other blocks can use the slot
+        fillWindow();
+    }
+
+    /**
+     * The delay before retrying a block that has failed this many times: a random time
+     * between half and all of the backoff, so sessions that lost the connection together
+     * don't all come back at once.
+     */
+    private long retryDelayMillis(int failures) {
+        long backoff = retryBaseDelayMillis;
+        for (int i = 1; i < failures && backoff < retryMaxDelayMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, retryMaxDelayMillis);
+        long half = backoff / 2;
+        return half + (long)(retryJitter.nextDouble() * (backoff - half + 1));
+    }
+
+    /**
+     * A block's backoff has passed. Queue it to be downloaded again.
+     */
+    private void retryBlock(int blockNum) {
+        synchronized(this) {
+            if (blockState.get(blockNum) != BlockState.waitingToRetry) {
+                // Shut down meanwhile
+                return;
+            }
+            blockState.put(blockNum, BlockState.readyToDownload);
+            addReadyBlock(blockNum);
+        }
+        fillWindow();
+    }
+
+    /**
+     * Read a readImageBlock response, a multipart/mixed body with the metadata as an
+     * application/json part and the image as an application/pdf part, in a single pass.
+     * The image data is written straight into the image's file (see ImageAssembly).
+     * Returns null if the response didn't include both parts.
+     */
+    private ImageBlockInfo receiveImageBlock(InputStream inputStream, BlockDownload download, boolean hedge) throws IOException, JSONException {
+        int blockNum = download.blockNum;
+        MultipartParser parser = new MultipartParser(inputStream);
+        ImageBlockInfo imageBlockInfo = null;
+        ImageAssembly.PartChannel part = null;
+        File downloadFile = null;
+
+        try {
+            while (parser.nextPart()) {
+                String contentType = parser.getContentType();
+                if (contentType.startsWith("application/json")) {
+                    JSONObject response = new JSONObject(new String(parser.readBody(), "UTF-8"));
+                    JSONObject results = response.getJSONObject("results");
+                    imageBlockInfo = createImageBlockInfo(results.getJSONObject("metadata"), blockNum);
+                } else if (contentType.startsWith("application/pdf")) {
+                    // The metadata normally comes first, so we know where the data goes. If
+                    // it doesn't, save under the block number and copy it in once we know.
+                    if (imageBlockInfo != null) {
+                        part = openPart(imageBlockInfo, download, hedge);
+                        parser.transferBody(part);
+                    } else {
+                        downloadFile = new File(tempDir, String.format(Locale.US, hedge ? "%d-hedge.download" : "%d.download", blockNum));
+                        FileChannel chan = new FileOutputStream(downloadFile).getChannel();
+                        try {
+                            parser.transferBody(chan);
+                        } finally {
+                            chan.close();
+                        }
+                    }
+                }
+            }
+
+            if (part == null && downloadFile == null) {
+                logger.severe("requestImageBlock did not deliver an application/pdf part");
+                return null;
+            }
+
+            if (imageBlockInfo == null) {
+                logger.severe("requestImageBlock did not deliver an application/json part");
+                return null;
+            }
+
+            if (part == null) {
+                part = openPart(imageBlockInfo, download, hedge);
+                FileChannel chan = new FileInputStream(downloadFile).getChannel();
+                try {
+                    long size = chan.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += chan.transferTo(position, size - position, part);
+                    }
+                } finally {
+                    chan.close();
+                }
+            }
+        } catch (IOException | JSONException e) {
+            if (part != null) {
+                part.abort();
+            }
+            throw e;
+        } finally {
+            if (downloadFile != null) {
+                downloadFile.delete();
+            }
+        }
+
+        partDownloaded(imageBlockInfo, part, download, hedge);
+        return imageBlockInfo;
+    }
+
+    /**
+     * Open the channel a request writes its block's image data to, creating the image's
+     * file if this is the first of its parts to arrive.
+     */
+    private ImageAssembly.PartChannel openPart(ImageBlockInfo imageBlockInfo, BlockDownload download, boolean hedge) throws IOException {
+        int firstBlock = imageBlockInfo.firstBlockNum();
+        ImageAssembly assembly;
+        ImageDestination destinationChooser;
+        synchronized(this) {
+            assembly = assemblies.get(firstBlock);
+            destinationChooser = imageDestination;
+        }
+
+        if (assembly == null) {
+            // Ask the application where the image goes without holding the lock
+            File destination = null;
+            if (destinationChooser != null) {
+                destination = destinationChooser.getImageDestination(session, imageBlockInfo.eventualFileName(), imageBlockInfo.metadata);
+            }
+
+            synchronized(this) {
+                // If the block's other request has won, the image may already have been
+                // delivered; starting it again would overwrite it
+                if (download.winner >= 0 && download.winner != (hedge ? 1 : 0)) {
+                    throw new IOException("Block " + download.blockNum + " was downloaded by another request");
+                }
+
+                // Another part of the image may have got here first
+                assembly = assemblies.get(firstBlock);
+                if (assembly == null) {
+                    if (destination != null) {
+                        assembly = new ImageAssembly(destination);
+                        assembly.keepFile();
+                    } else if (imageDataListener != null) {
+                        assembly = new ImageAssembly(new File(tempDir, imageBlockInfo.eventualFileName()), inMemoryImageThreshold, directImageBuffers);
+                    } else {
+                        assembly = new ImageAssembly(new File(tempDir, imageBlockInfo.eventualFileName()));
+                    }
+                    assemblies.put(firstBlock, assembly);
+                }
+            }
+        }
+
+        // Each request for the block needs its own staging file
+        String stagingName = hedge ? "hedge-" + imageBlockInfo.partFileName() : imageBlockInfo.partFileName();
+        ImageAssembly.PartChannel part = assembly.openPart(imageBlockInfo.imagePart, new File(tempDir, stagingName));
+        part.metadata = imageBlockInfo.metadata;
+        registerPart(download, hedge, part);
+        return part;
+    }
+
+    /**
+     * A request has written all of its block's image data to part. If it's the first of
+     * the block's requests to get here, put the data in place in the image; if not,
+     * discard it and throw.
+     */
+    private void partDownloaded(ImageBlockInfo imageBlockInfo, ImageAssembly.PartChannel part, BlockDownload download, boolean hedge) throws IOException {
+        if (!claimBlock(download, hedge)) {
+            part.abort();
+            throw new IOException("Block " + imageBlockInfo.blockNum + " was downloaded by another request");
+        }
+
+        ImageAssembly assembly;
+        synchronized(this) {
+            assembly = assemblies.get(imageBlockInfo.firstBlockNum());
+        }
+        if (assembly == null) {
+            // Shut down while downloading
+            part.abort();
+            throw new IOException("Image for block " + imageBlockInfo.blockNum + " was abandoned");
+        }
+        imageBlockInfo.size = part.size();
+        assembly.partDownloaded(part, imageBlockInfo.moreParts != ImageBlockInfo.MoreParts.morePartsPending);
+    }
+
+    private ImageBlockInfo createImageBlockInfo(JSONObject metadata, int blockNum) {
+        JSONObject address = metadata.getJSONObject("address");
+
+        ImageBlockInfo imageBlockInfo = new ImageBlockInfo();
+        imageBlockInfo.metadata = metadata;
+        imageBlockInfo.blockNum = blockNum;
+        imageBlockInfo.sheetNumber = address.getInt("sheetNumber");
+        imageBlockInfo.imageNumber = address.getInt("imageNumber");
+        imageBlockInfo.imagePart = address.getInt("imagePart");
+        imageBlockInfo.moreParts = ImageBlockInfo.MoreParts.valueOf(address.getString("moreParts"));
+        return imageBlockInfo;
+    }
+
+    private void completedImageBlockDownload(ImageBlockInfo imageBlockInfo) {
+        // Add the ImageBlockInfo to our map of lists of parts.
+        synchronized(this) {
+            blockState.put(imageBlockInfo.blockNum, BlockState.waitingForMoreParts);
+            downloadedBlocks.put(imageBlockInfo.blockNum, imageBlockInfo);
+            if (!retries.isEmpty()) {
+                retries.remove(imageBlockInfo.blockNum);
+            }
+        }
+
+        logger.fine(String.format("Finished downloading block %d", imageBlockInfo.blockNum));
+
+        // The data is in place, so the scanner can have its buffer back
+        boolean moreComing;
+        synchronized(this) {
+            moreComing = activeDownloadCount > 0 || hasReadyBlocks();
+        }
+        blockReleaser.blockDone(imageBlockInfo.blockNum, moreComing);
+
+        streamParts(imageBlockInfo);
+
+        deliverCompletedParts(imageBlockInfo);
+
+        // A block after one that was lost can't be delivered
+        boolean dropped;
+        synchronized(this) {
+            dropped = dropUndeliverableBlocks();
+        }
+        if (dropped) {
+            runAfterDeliveriesIfIdle();
+        }
+
+        // On to the next part, or parts if the window has grown
+        fillWindow();
+    }
+
+    /**
+     * If the application wants image parts as they arrive, pass it the parts of this
+     * block's image that are now in place. This happens before the image can be queued
+     * for delivery, so the parts always precede the image.
+     */
+    private void streamParts(ImageBlockInfo imageBlockInfo) {
+        final ImagePartListener listener;
+        ImageAssembly assembly;
+        synchronized(this) {
+            listener = imagePartListener;
+            assembly = assemblies.get(imageBlockInfo.firstBlockNum());
+        }
+        if (listener == null || assembly == null) {
+            return;
+        }
+
+        try {
+            assembly.streamParts(new ImageAssembly.PartHandler() {
+                @Override
+                public void onPart(int imagePart, long offset, ByteBuffer data, boolean lastPart, JSONObject metadata) {
+                    try {
+                        listener.onImagePartReceived(session, imagePart, offset, data, lastPart, metadata);
+                    } catch (RuntimeException e) {
+                        logger.severe("Error delivering image part: " + e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.severe("Unable to read image part: " + e);
+        }
+    }
+
+    /**
+     * Queue every image we have all the parts for, in order, for delivery to the
+     * application. In out-of-order mode, also queue the image containing the block we
+     * just downloaded, if it's complete. Only bookkeeping happens here, under the lock;
+     * assembling the parts and calling the listener happen on the delivery executor.
+     */
+    private void deliverCompletedParts(ImageBlockInfo downloaded) {
+        synchronized(this) {
+            int queued = pendingDeliveries.size();
+
+            if (outOfOrderDelivery) {
+                queueImage(downloaded.firstBlockNum());
+            }
+
+            while (queueImage(highestBlockCompleted)) {
+                // Keep going while the next image in order is complete
+            }
+
+            if (pendingDeliveries.size() == queued || deliveryScheduled) {
+                // Nothing new, or the running delivery task will pick it up
+                return;
+            }
+            deliveryScheduled = true;
+        }
+
+        try {
+            getDeliveryExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliverPendingImages();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Image delivery rejected: " + e);
+            synchronized(this) {
+                deliveryScheduled = false;
+                undeliveredImages -= pendingDeliveries.size();
+                for (PendingImage image : pendingDeliveries) {
+                    image.assembly.abandon();
+                }
+                pendingDeliveries.clear();
+            }
+            runAfterDeliveriesIfIdle();
+        }
+    }
+
+    /**
+     * If all the parts of the image starting at firstBlock have downloaded and are in
+     * place in its file, move it to the delivery queue and return true. Call with the
+     * lock held.
+     */
+    private boolean queueImage(int firstBlock) {
+        if (firstBlock < highestBlockCompleted) {
+            // Already delivered
+            return false;
+        }
+
+        // See if we have an unbroken sequence of blocks ending in a block that has
+        // moreParts = lastPart
+        int nextBlock;
+        for (int blockNum = firstBlock;; blockNum++) {
+            ImageBlockInfo ibi = downloadedBlocks.get(blockNum);
+            if (ibi == null) {
+                // No block with this index
+                return false;
+            }
+
+            if (ibi.moreParts != ImageBlockInfo.MoreParts.morePartsPending) {
+                // This is a last part
+                nextBlock = blockNum + 1;
+                break;
+            }
+        }
+
+        // A part may still be being copied into place. Whoever finishes it will call back.
+        ImageAssembly assembly = assemblies.get(firstBlock);
+        if (assembly == null || !assembly.isComplete()) {
+            return false;
+        }
+        if (imagePartListener != null && !assembly.allPartsStreamed()) {
+            // The parts go to the application first
+            return false;
+        }
+        assemblies.remove(firstBlock);
+
+        // Take the parts, and forget them
+        ImageBlockInfo[] parts = new ImageBlockInfo[nextBlock - firstBlock];
+        for (int blockNum = firstBlock; blockNum < nextBlock; blockNum++) {
+            parts[blockNum - firstBlock] = downloadedBlocks.remove(blockNum);
+            blockState.put(blockNum, BlockState.completed);
+        }
+
+        // Move the watermark past this image, and any delivered out of order after it
+        while (blockState.get(highestBlockCompleted) == BlockState.completed) {
+            highestBlockCompleted++;
+        }
+        blockState.setCompletedBelow(highestBlockCompleted);
+
+        pendingDeliveries.add(new PendingImage(parts, assembly));
+        undeliveredImages++;
+        return true;
+    }
+
+    /**
+     * Drop downloaded blocks that can never be delivered, because a block they need was
+     * lost: another block of their image, or with in-order delivery, any block before
+     * them. Their images are abandoned, which deletes the files, and the dropped blocks
+     * count as lost, so the rest of their images are dropped as they arrive. Returns true
+     * if anything was dropped. Call with the lock held.
+     */
+    private boolean dropUndeliverableBlocks() {
+        if (!blocksLost || downloadedBlocks.isEmpty()) {
+            return false;
+        }
+
+        List<ImageBlockInfo> downloaded = downloadedBlocks.values();
+
+        // With in-order delivery, nothing after the first lost block can be delivered
+        int firstLost = Integer.MAX_VALUE;
+        if (!outOfOrderDelivery) {
+            int lastDownloaded = 0;
+            for (ImageBlockInfo ibi : downloaded) {
+                lastDownloaded = Math.max(lastDownloaded, ibi.blockNum);
+            }
+            for (int blockNum = highestBlockCompleted; blockNum < lastDownloaded; blockNum++) {
+                if (blockLost(blockNum)) {
+                    firstLost = blockNum;
+                    break;
+                }
+            }
+        }
+
+        List<ImageBlockInfo> stuck = new ArrayList<>();
+        for (ImageBlockInfo ibi : downloaded) {
+            if (ibi.blockNum > firstLost || imageLost(ibi)) {
+                stuck.add(ibi);
+            }
+        }
+
+        for (ImageBlockInfo ibi : stuck) {
+            logger.warning(String.format(Locale.US, "Dropping block %d, whose image can't be delivered", ibi.blockNum));
+            downloadedBlocks.remove(ibi.blockNum);
+            blockState.put(ibi.blockNum, BlockState.failed);
+            ImageAssembly assembly = assemblies.remove(ibi.firstBlockNum());
+            if (assembly != null) {
+                assembly.abandon();
+            }
+        }
+        return !stuck.isEmpty();
+    }
+
+    /**
+     * True if a block of downloaded's image was lost. The parts after downloaded that
+     * haven't arrived yet may still come. Call with the lock held.
+     */
+    private boolean imageLost(ImageBlockInfo downloaded) {
+        for (int blockNum = downloaded.firstBlockNum(); blockNum < downloaded.blockNum; blockNum++) {
+            if (blockLost(blockNum)) {
+                return true;
+            }
+        }
+
+        ImageBlockInfo ibi = downloaded;
+        int blockNum = downloaded.blockNum;
+        while (ibi.moreParts == ImageBlockInfo.MoreParts.morePartsPending) {
+            blockNum++;
+            ibi = downloadedBlocks.get(blockNum);
+            if (ibi == null) {
+                return blockLost(blockNum);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if blockNum will never be downloaded: it failed for good or was dropped, or
+     * downloads were cancelled before it finished. Call with the lock held.
+     */
+    private boolean blockLost(int blockNum) {
+        BlockState state = blockState.get(blockNum);
+        if (state == BlockState.failed) {
+            return true;
+        }
+        return downloadsCancelled && state != BlockState.downloading
+                && state != BlockState.waitingForMoreParts && state != BlockState.completed;
+    }
+
+    /**
+     * Run task once every image queued so far has been delivered to the application, or
+     * now if there's nothing waiting. Session uses this so that onDoneCapturing follows
+     * the last onImageReceived.
+     */
+    void runAfterDeliveries(Runnable task) {
+        synchronized(this) {
+            if (deliveriesOutstanding()) {
+                afterDeliveries.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Deliver queued images in order until the queue is empty. Runs on the delivery executor.
+     */
+    private void deliverPendingImages() {
+        while (true) {
+            PendingImage image;
+            synchronized(this) {
+                image = pendingDeliveries.poll();
+                if (image == null) {
+                    deliveryScheduled = false;
+                    break;
+                }
+            }
+
+            try {
+                deliverImage(image);
+            } catch (RuntimeException e) {
+                logger.severe("Error delivering image: " + e);
+            }
+
+            synchronized(this) {
+                undeliveredImages--;
+            }
+
+            // Downloads may have been waiting for delivery to catch up
+            fillWindow();
+        }
+
+        runAfterDeliveriesIfIdle();
+    }
+
+    /**
+     * True if any image is waiting to be delivered, including downloaded blocks whose
+     * image isn't queued yet. Blocks are released before their image is queued, so the
+     * scanner can report that it's drained while they're still here. Blocks that can't
+     * be delivered don't count; dropUndeliverableBlocks removes them. Call with the lock
+     * held.
+     */
+    private boolean deliveriesOutstanding() {
+        return undeliveredImages > 0 || !downloadedBlocks.isEmpty();
+    }
+
+    private void runAfterDeliveriesIfIdle() {
+        while (true) {
+            Runnable task;
+            synchronized(this) {
+                if (deliveriesOutstanding()) {
+                    return;
+                }
+                task = afterDeliveries.poll();
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Hand an image to the application. Its parts are already in place, in its file or
+     * in memory.
+     */
+    private void deliverImage(PendingImage image) {
+        ImageBlockInfo firstBlockInfo = image.parts[0];
+        ImageDataListener dataListener;
+        synchronized(this) {
+            dataListener = imageDataListener;
+        }
+
+        logger.log(Level.FINE, String.format("Delivering blocks %s to %s", firstBlockInfo.blockNum, firstBlockInfo.blockNum + image.parts.length - 1));
+
+        try {
+            if (dataListener != null) {
+                dataListener.onImageReceived(session, image.assembly.getImage(), firstBlockInfo.metadata);
+            } else if (sessionListener != null) {
+                sessionListener.onImageReceived(session, image.assembly.getFile(), firstBlockInfo.metadata);
+            }
+        } finally {
+            image.assembly.delivered();
         }
     }
 }
@@ -0,0 +1,154 @@
+package org.twaindirect.session;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Releases downloaded image blocks back to the scanner, so it can reuse its buffer.
+ *
+ * Each releaseImageBlocks is a command to the scanner, and Session runs commands one
+ * at a time, so releasing blocks one by one queues up commands and keeps the scanner's
+ * buffer full for longer than necessary. Instead, blocks that finish close together are
+ * collected and released as contiguous ranges, one command per range.
+ *
+ * Blocks are released when there are no more downloads in progress to wait for, when
+ * enough have been collected, or after a short delay, whichever comes first. While a
+ * release is in progress, blocks are collected until it completes, since a command sent
+ * then would only wait behind it.
+ */
+class BlockReleaser {
+    private static final Logger logger = Logger.getLogger(BlockReleaser.class.getName());
+
+    // Runs delayed releases for every session
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "twaindirect-release-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Session session;
+
+    // Blocks waiting to be released, lowest first
+    private final IntMinHeap pending = new IntMinHeap();
+
+    private int maxPendingBlocks;
+    private long delayMillis;
+
+    // True while a delayed release is scheduled
+    private boolean releaseScheduled = false;
+
+    // Number of releaseImageBlocks commands sent that haven't completed
+    private int releasesInProgress = 0;
+
+    BlockReleaser(Session session, int maxPendingBlocks, long delayMillis) {
+        this.session = session;
+        setLimits(maxPendingBlocks, delayMillis);
+    }
+
+    /**
+     * Release blocks once maxPendingBlocks have been collected, or delayMillis after the
+     * first one. With maxPendingBlocks 1, every block is released on its own right away.
+     */
+    void setLimits(int maxPendingBlocks, long delayMillis) {
+        if (maxPendingBlocks < 1 || delayMillis < 0) {
+            throw new IllegalArgumentException("Invalid release limits " + maxPendingBlocks + ", " + delayMillis);
+        }
+        synchronized(this) {
+            this.maxPendingBlocks = maxPendingBlocks;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * A block's data is safely stored and the scanner can discard it. If moreComing is
+     * false there are no other downloads to wait for, so release what we have now.
+     */
+    void blockDone(int blockNum, boolean moreComing) {
+        synchronized(this) {
+            pending.add(blockNum);
+            if (releasesInProgress > 0 && maxPendingBlocks > 1) {
+                // Released when the current release completes
+                return;
+            }
+            if (moreComing && pending.size() < maxPendingBlocks && delayMillis > 0) {
+                if (!releaseScheduled) {
+                    releaseScheduled = scheduleRelease();
+                }
+                if (releaseScheduled) {
+                    return;
+                }
+            }
+        }
+        release();
+    }
+
+    /**
+     * Forget blocks we haven't released, for when the session is being torn down.
+     */
+    void cancel() {
+        synchronized(this) {
+            pending.clear();
+        }
+    }
+
+    private boolean scheduleRelease() {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(BlockReleaser.this) {
+                        releaseScheduled = false;
+                    }
+                    release();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.warning("Unable to schedule block release: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Release everything pending, one releaseImageBlocks per contiguous range.
+     */
+    void release() {
+        Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                boolean releaseMore;
+                synchronized(BlockReleaser.this) {
+                    releasesInProgress--;
+                    releaseMore = releasesInProgress == 0 && !pending.isEmpty();
+                }
+                if (releaseMore) {
+                    release();
+                }
+            }
+        };
+
+        while (true) {
+            int fromBlock;
+            int toBlock;
+            synchronized(this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                fromBlock = pending.poll();
+                toBlock = fromBlock;
+                while (!pending.isEmpty() && pending.peek() <= toBlock + 1) {
+                    toBlock = Math.max(toBlock, pending.poll());
+                }
+                releasesInProgress++;
+            }
+            session.releaseBlock(fromBlock, toBlock, done);
+        }
+    }
+}
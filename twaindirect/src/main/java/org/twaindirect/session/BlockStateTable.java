@@ -0,0 +1,84 @@
+package org.twaindirect.session;
+
+import java.util.Arrays;
+
+/**
+ * The state of each image block BlockDownloader knows about, as one byte per block
+ * number. Scanners number blocks from 1 upwards, so the table is dense; it grows as
+ * higher block numbers arrive. Looking up or changing a state doesn't allocate.
+ *
+ * Blocks below the watermark (see setCompletedBelow) are completed, and the table
+ * drops their entries, so its size depends on the number of outstanding blocks rather
+ * than the length of the session.
+ *
+ * Not thread safe.
+ */
+class BlockStateTable {
+    private static final BlockDownloader.BlockState[] blockStates = BlockDownloader.BlockState.values();
+
+    // State ordinal + 1 for block number base + index, 0 for blocks we haven't seen
+    private byte[] states = new byte[64];
+    private int base = 0;
+
+    // Every block below this is completed
+    private int completedBelow = 0;
+
+    /**
+     * The block's state, or null if we aren't tracking it.
+     */
+    BlockDownloader.BlockState get(int blockNum) {
+        if (blockNum < completedBelow) {
+            return BlockDownloader.BlockState.completed;
+        }
+        int index = blockNum - base;
+        if (index >= states.length || states[index] == 0) {
+            return null;
+        }
+        return blockStates[states[index] - 1];
+    }
+
+    boolean contains(int blockNum) {
+        return get(blockNum) != null;
+    }
+
+    void put(int blockNum, BlockDownloader.BlockState state) {
+        if (blockNum < completedBelow) {
+            // Already completed, and no longer tracked individually
+            return;
+        }
+        int index = blockNum - base;
+        if (index >= states.length) {
+            states = Arrays.copyOf(states, Math.max(states.length * 2, index + 1));
+        }
+        states[index] = (byte)(state.ordinal() + 1);
+    }
+
+    /**
+     * Mark every block below watermark as completed, and release their entries.
+     */
+    void setCompletedBelow(int watermark) {
+        if (watermark <= completedBelow) {
+            return;
+        }
+        completedBelow = watermark;
+
+        // Shift the table down once at least half of it is below the watermark, so the
+        // copying is amortized over many calls
+        int drop = completedBelow - base;
+        if (drop >= states.length) {
+            Arrays.fill(states, (byte)0);
+            base = completedBelow;
+        } else if (drop >= states.length / 2) {
+            System.arraycopy(states, drop, states, 0, states.length - drop);
+            Arrays.fill(states, states.length - drop, states.length, (byte)0);
+            base = completedBelow;
+        }
+    }
+
+    /**
+     * Number of entries the table is holding, for tests.
+     */
+    int capacity() {
+        return states.length;
+    }
+}
@@ -0,0 +1,112 @@
+package org.twaindirect.session;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Decodes a TWAIN Cloud image block to a file or channel as it's received.
+ *
+ * The cloud blocks endpoint returns the image as a JSON string: Base64, in quotes. The
+ * block is read through a fixed-size buffer and decoded by a lenient Base64Decoder, which
+ * skips the quoting, so memory use doesn't depend on the size of the image.
+ *
+ * A CloudBlockDecoder instance decodes one block and counts the encoded bytes it has
+ * consumed, so a download that's cut off can be resumed from that offset with an HTTP
+ * Range request.
+ */
+class CloudBlockDecoder {
+    private static final int bufferSize = 64 * 1024;
+
+    /**
+     * Read the block from in, and write the decoded image to file. On failure the
+     * partial file is deleted.
+     */
+    static void decodeToFile(InputStream in, File file) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        boolean success = false;
+        try {
+            decode(in, fileOut.getChannel());
+            success = true;
+        } finally {
+            fileOut.close();
+            if (!success) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Read the block from in, and write the decoded image to channel.
+     */
+    static void decode(InputStream in, WritableByteChannel channel) throws IOException {
+        CloudBlockDecoder decoder = new CloudBlockDecoder(channel);
+        decoder.decodeFrom(in);
+        decoder.finish();
+    }
+
+    private final Base64Decoder decoder = new Base64Decoder(false);
+    private final WritableByteChannel channel;
+    private final byte[] buffer = new byte[bufferSize];
+
+    // Encoded bytes consumed so far, across all the streams
+    private long bytesRead = 0;
+
+    // False once decoding or writing has failed, rather than reading
+    private boolean resumable = true;
+
+    /**
+     * Create a decoder for one block, which may arrive over several streams if the
+     * connection is lost part way through. See decodeFrom.
+     */
+    CloudBlockDecoder(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Decode from in until it ends. The stream must start at getBytesRead() bytes into
+     * the block. If reading fails, the exception is passed on and the decoder can carry
+     * on from another stream starting where this one stopped; a partial quantum is kept
+     * for it. If the data is invalid or can't be written, canResume returns false.
+     */
+    void decodeFrom(InputStream in) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buffer);
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            src.clear();
+            src.limit(len);
+            try {
+                decoder.decode(src, channel);
+            } catch (IOException e) {
+                resumable = false;
+                throw e;
+            }
+            bytesRead += len;
+        }
+    }
+
+    /**
+     * Number of encoded bytes decoded so far: the offset to resume the block from.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * True if decoding can continue from another stream after a failure.
+     */
+    boolean canResume() {
+        return resumable;
+    }
+
+    /**
+     * Signal the end of the block. Fails if the input stopped part way through a quantum.
+     */
+    void finish() throws IOException {
+        resumable = false;
+        decoder.finish(channel);
+    }
+}
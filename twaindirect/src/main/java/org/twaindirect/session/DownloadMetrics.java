@@ -0,0 +1,72 @@
+package org.twaindirect.session;
+
+/**
+ * A snapshot of BlockDownloader's progress and download window.
+ * See Session.getDownloadMetrics.
+ */
+public class DownloadMetrics {
+    // Number of block downloads allowed at once, and its configured range
+    public int windowSize;
+    public int minWindowSize;
+    public int maxWindowSize;
+
+    // Number of block downloads in progress
+    public int activeDownloads;
+
+    // Images downloaded but not yet delivered to the application
+    public int undeliveredImages;
+
+    public long blocksDownloaded;
+    public long blocksFailed;
+    public long bytesDownloaded;
+
+    // Block downloads tried again after failing, and how many of those carried on
+    // from where the failed attempt stopped
+    public long blocksRetried;
+    public long blocksResumed;
+
+    // Slow block downloads that were sent a second (hedge) request, and how many of
+    // those the hedge finished first. blocksHedged / blocksDownloaded is the hedge rate,
+    // hedgeWins / blocksHedged the win rate.
+    public long blocksHedged;
+    public long hedgeWins;
+
+    // Median and 99th percentile time from starting a block to having all its data,
+    // over recent blocks
+    public long blockLatencyP50Millis;
+    public long blockLatencyP99Millis;
+
+    // Median and 99th percentile time from a session update announcing new blocks to
+    // starting to download one of them, over recent updates
+    public long eventToDownloadP50Millis;
+    public long eventToDownloadP99Millis;
+
+    // 99th percentile time from a waitForEvents response arriving to sending the next
+    // waitForEvents, over recent polls. The scanner can't tell us about events in this
+    // gap, so an event can take up to this plus eventToDownloadP99Millis to start a download.
+    public long waitForEventsGapP99Millis;
+
+    // Throughput and average block latency over the most recent window's worth of blocks
+    public long bytesPerSecond;
+    public long averageBlockLatencyMillis;
+
+    // How many times the window has been adjusted
+    public int windowIncreases;
+    public int windowDecreases;
+
+    @Override
+    public String toString() {
+        return "window=" + windowSize + " (" + minWindowSize + ".." + maxWindowSize + ")"
+                + ", active=" + activeDownloads + ", undelivered=" + undeliveredImages
+                + ", blocks=" + blocksDownloaded + ", failed=" + blocksFailed
+                + ", retried=" + blocksRetried + ", resumed=" + blocksResumed
+                + ", hedged=" + blocksHedged + ", hedgeWins=" + hedgeWins
+                + ", p50Millis=" + blockLatencyP50Millis + ", p99Millis=" + blockLatencyP99Millis
+                + ", eventToDownloadP50Millis=" + eventToDownloadP50Millis
+                + ", eventToDownloadP99Millis=" + eventToDownloadP99Millis
+                + ", waitForEventsGapP99Millis=" + waitForEventsGapP99Millis
+                + ", bytes=" + bytesDownloaded + ", bytesPerSecond=" + bytesPerSecond
+                + ", latencyMillis=" + averageBlockLatencyMillis
+                + ", increases=" + windowIncreases + ", decreases=" + windowDecreases;
+    }
+}
@@ -0,0 +1,172 @@
+package org.twaindirect.session;
+
+/**
+ * Decides how many image blocks BlockDownloader downloads at once.
+ *
+ * This works like TCP congestion control (additive increase, multiplicative decrease),
+ * in rounds of one window's worth of completed blocks. At the end of each round:
+ *
+ *  - If throughput held up or improved, and block latency hasn't inflated well beyond the
+ *    baseline (the lowest seen, or the latest at the minimum window), the extra download
+ *    is paying off: grow the window by one.
+ *  - If latency has inflated and throughput hasn't improved, downloads are just queueing
+ *    behind each other (a slow link, or a busy scanner): shrink the window by a quarter.
+ *  - Otherwise leave it alone.
+ *
+ * A failed download halves the window straight away.
+ *
+ * The window stays between the configured minimum and maximum. All methods are
+ * thread safe.
+ */
+class DownloadWindow {
+    // Growth needs throughput to be at least this fraction of the previous round's
+    private static final double throughputTolerance = 0.95;
+
+    // Latency above this multiple of the baseline counts as inflated
+    private static final double latencyTolerance = 2.0;
+
+    private int minWindowSize;
+    private int maxWindowSize;
+    private int windowSize;
+
+    // The current round
+    private long roundStartNanos;
+    private int roundBlocks;
+    private long roundBytes;
+    private long roundLatencyNanos;
+
+    // Results of the last complete round
+    private double lastBytesPerSecond;
+    private long lastLatencyNanos;
+
+    // Lowest average block latency seen, or 0 before the first round
+    private long baselineLatencyNanos;
+
+    // Totals, for metrics
+    private long blocksCompleted;
+    private long blocksFailed;
+    private long bytesCompleted;
+    private int windowIncreases;
+    private int windowDecreases;
+
+    DownloadWindow(int minWindowSize, int maxWindowSize, int initialWindowSize) {
+        setLimits(minWindowSize, maxWindowSize);
+        windowSize = clamp(initialWindowSize);
+        roundStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Change the window limits. The current window is clamped to the new range.
+     */
+    synchronized void setLimits(int minWindowSize, int maxWindowSize) {
+        if (minWindowSize < 1 || maxWindowSize < minWindowSize) {
+            throw new IllegalArgumentException("Invalid window limits " + minWindowSize + ".." + maxWindowSize);
+        }
+        this.minWindowSize = minWindowSize;
+        this.maxWindowSize = maxWindowSize;
+        windowSize = clamp(windowSize);
+    }
+
+    synchronized int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Record a block download that finished successfully.
+     * @param bytes Size of the block
+     * @param latencyNanos Time from sending the request to having the whole block
+     */
+    void blockCompleted(long bytes, long latencyNanos) {
+        blockCompleted(bytes, latencyNanos, System.nanoTime());
+    }
+
+    synchronized void blockCompleted(long bytes, long latencyNanos, long nowNanos) {
+        blocksCompleted++;
+        bytesCompleted += bytes;
+
+        roundBlocks++;
+        roundBytes += bytes;
+        roundLatencyNanos += latencyNanos;
+
+        if (roundBlocks >= windowSize) {
+            endRound(nowNanos);
+        }
+    }
+
+    /**
+     * Record a block download that failed.
+     */
+    void blockFailed() {
+        blockFailed(System.nanoTime());
+    }
+
+    synchronized void blockFailed(long nowNanos) {
+        blocksFailed++;
+        setWindowSize(windowSize / 2);
+        startRound(nowNanos);
+    }
+
+    /**
+     * Fill in the window fields of metrics.
+     */
+    synchronized void getMetrics(DownloadMetrics metrics) {
+        metrics.windowSize = windowSize;
+        metrics.minWindowSize = minWindowSize;
+        metrics.maxWindowSize = maxWindowSize;
+        metrics.blocksDownloaded = blocksCompleted;
+        metrics.blocksFailed = blocksFailed;
+        metrics.bytesDownloaded = bytesCompleted;
+        metrics.bytesPerSecond = (long)lastBytesPerSecond;
+        metrics.averageBlockLatencyMillis = lastLatencyNanos / 1000000;
+        metrics.windowIncreases = windowIncreases;
+        metrics.windowDecreases = windowDecreases;
+    }
+
+    private void endRound(long nowNanos) {
+        long elapsedNanos = Math.max(nowNanos - roundStartNanos, 1);
+        double bytesPerSecond = roundBytes * 1e9 / elapsedNanos;
+        long latencyNanos = roundLatencyNanos / roundBlocks;
+
+        // At the minimum window our own downloads aren't what's slowing blocks down, so
+        // take the latency as it is. This lets the baseline follow a permanent change in
+        // conditions.
+        if (baselineLatencyNanos == 0 || latencyNanos < baselineLatencyNanos || windowSize == minWindowSize) {
+            baselineLatencyNanos = latencyNanos;
+        }
+
+        boolean latencyInflated = latencyNanos > baselineLatencyNanos * latencyTolerance;
+        boolean throughputHeld = bytesPerSecond >= lastBytesPerSecond * throughputTolerance;
+        boolean throughputImproved = bytesPerSecond > lastBytesPerSecond / throughputTolerance;
+
+        if (throughputHeld && !latencyInflated) {
+            setWindowSize(windowSize + 1);
+        } else if (latencyInflated && !throughputImproved) {
+            setWindowSize(windowSize - Math.max(1, windowSize / 4));
+        }
+
+        lastBytesPerSecond = bytesPerSecond;
+        lastLatencyNanos = latencyNanos;
+        startRound(nowNanos);
+    }
+
+    private void startRound(long nowNanos) {
+        roundStartNanos = nowNanos;
+        roundBlocks = 0;
+        roundBytes = 0;
+        roundLatencyNanos = 0;
+    }
+
+    private void setWindowSize(int newWindowSize) {
+        newWindowSize = clamp(newWindowSize);
+        if (newWindowSize > windowSize) {
+            windowIncreases++;
+        } else if (newWindowSize < windowSize) {
+            windowDecreases++;
+        }
+        windowSize = newWindowSize;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minWindowSize, Math.min(maxWindowSize, size));
+    }
+}
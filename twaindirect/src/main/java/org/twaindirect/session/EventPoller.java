@@ -0,0 +1,195 @@
+package org.twaindirect.session;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Sends the waitForEvents long-polls for any number of sessions from a small, shared set
+ * of threads.
+ *
+ * A poll is an asynchronous request. Sessions on the default ApacheTransport, which
+ * would block a thread for as long as the scanner holds the poll open, poll through a
+ * NioTransport on the default NioHttpClient instead, so an open poll only costs a
+ * connection on one of the client's event loops. When the response arrives, the session
+ * handles it on its own serial executor and schedules its next poll here, straight away
+ * or after a backoff.
+ *
+ * A transport that does block (such as LoopbackTransport, whose handler runs on the
+ * calling thread) holds a poller thread while its poll is open. If polls are left
+ * waiting because every thread is held like that, the poller adds a thread, and lets
+ * the extra threads go once they're idle again.
+ */
+public class EventPoller {
+    private static final Logger logger = Logger.getLogger(EventPoller.class.getName());
+
+    // How long threads beyond the fixed count wait for work before exiting
+    private static final long idleThreadTimeoutSeconds = 30;
+
+    // How long polls can wait without any thread finishing one, before adding a thread
+    private static final long blockedCheckMillis = 100;
+
+    private static EventPoller defaultPoller;
+    private static int defaultThreads = 2;
+
+    // Send the polls
+    private final int threads;
+    private final ThreadPoolExecutor pollThreads;
+
+    // Runs polls that have to wait for a backoff, and checkForBlockedThreads
+    private final ScheduledExecutorService timer;
+
+    // checkForBlockedThreads is scheduled, and the number of polls sent when it last ran
+    private final AtomicBoolean blockedCheckScheduled = new AtomicBoolean();
+    private volatile long lastCompletedPolls;
+
+    // Polls for sessions on the default ApacheTransport; created on first use
+    private NioTransport nonBlockingTransport;
+
+    /**
+     * Get the process-wide poller, which sessions use unless told otherwise, creating it
+     * on first use.
+     */
+    public static synchronized EventPoller getDefault() {
+        if (defaultPoller == null) {
+            defaultPoller = new EventPoller(defaultThreads);
+        }
+        return defaultPoller;
+    }
+
+    /**
+     * Set the number of threads the default poller keeps. Must be called before getDefault.
+     */
+    public static synchronized void setDefaultThreadCount(int threads) {
+        defaultThreads = threads;
+    }
+
+    public EventPoller(int threads) {
+        this.threads = threads;
+        pollThreads = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, idleThreadTimeoutSeconds, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("twaindirect-event-poller"));
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("twaindirect-event-timer"));
+    }
+
+    /**
+     * Run poll on a poller thread after delayMillis, or straight away if it's 0.
+     */
+    void schedule(final Runnable poll, long delayMillis) {
+        try {
+            if (delayMillis <= 0) {
+                execute(poll);
+                return;
+            }
+
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(poll);
+                    } catch (RejectedExecutionException e) {
+                        logger.warning("Event poll rejected: " + e);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.warning("Event poll rejected: " + e);
+        }
+    }
+
+    private void execute(Runnable poll) {
+        pollThreads.execute(poll);
+        if (pollThreads.getActiveCount() >= pollThreads.getCorePoolSize()) {
+            scheduleBlockedCheck();
+        }
+    }
+
+    private void scheduleBlockedCheck() {
+        if (!blockedCheckScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        lastCompletedPolls = pollThreads.getCompletedTaskCount();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                blockedCheckScheduled.set(false);
+                checkForBlockedThreads();
+            }
+        }, blockedCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the timer. If polls are waiting and no thread has finished one since the
+     * check was scheduled, the threads are all held by a blocking transport, so add one.
+     * Once nothing is waiting, go back to the fixed count; the extra threads exit when
+     * they have been idle for a while.
+     */
+    private void checkForBlockedThreads() {
+        if (pollThreads.getQueue().isEmpty()) {
+            if (pollThreads.getCorePoolSize() > threads) {
+                pollThreads.setCorePoolSize(threads);
+            }
+            return;
+        }
+
+        if (pollThreads.getCompletedTaskCount() == lastCompletedPolls) {
+            logger.fine("Event poller threads are blocked, adding one");
+            pollThreads.setCorePoolSize(pollThreads.getPoolSize() + 1);
+        }
+        scheduleBlockedCheck();
+    }
+
+    /**
+     * The transport to send a session's polls with, given the session's own transport.
+     */
+    synchronized Transport getPollTransport(Transport transport) {
+        if (transport != ApacheTransport.getDefault()) {
+            return transport;
+        }
+        if (nonBlockingTransport == null) {
+            nonBlockingTransport = new NioTransport();
+        }
+        return nonBlockingTransport;
+    }
+
+    /**
+     * Number of threads sending a poll right now. With a non-blocking transport this is
+     * normally 0, however many polls are open.
+     */
+    public int getActiveCount() {
+        return pollThreads.getActiveCount();
+    }
+
+    /**
+     * Number of threads in the pool.
+     */
+    public int getThreadCount() {
+        return pollThreads.getPoolSize();
+    }
+
+    /**
+     * Stop the threads. Polls that are already open complete, but sessions can't poll again.
+     */
+    public void shutdown() {
+        timer.shutdown();
+        pollThreads.shutdown();
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
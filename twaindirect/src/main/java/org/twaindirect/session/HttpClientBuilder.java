@@ -1,20 +1,23 @@
 package org.twaindirect.session;
 
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContextBuilder;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -28,44 +31,190 @@ import java.util.logging.Logger;
  * And we need to configure the https stack to not require chaning back to one of the big
  * SSL cert vendors because the scanner self-signs a cert for its local name.
  *
- * Used by HttpBlockRequest and HttpJsonRequest.
+ * SSLContexts come from SSLContextCache, so TLS sessions are resumed across connections.
+ *
+ * Requests should use getHttpClient, which returns a client shared by every request to
+ * the same scanner (host and IP address). The shared client uses a pooling connection
+ * manager so connections are kept alive and reused, rather than paying for a new TCP
+ * and TLS handshake on every command and image block. Callers must close each response
+ * (after consuming its entity) so the connection is returned to the pool.
+ *
+ * Used by ApacheTransport.
  */
 public class HttpClientBuilder {
     private static final Logger logger = Logger.getLogger(HttpClientBuilder.class.getName());
 
-    public static CloseableHttpClient createHttpClient(String host, String ipaddr) throws UnknownHostException {
+    // How long an idle pooled connection may be kept before it's discarded
+    private static final long connectionTimeToLiveSeconds = 60;
 
-        try {
-            InMemoryDnsResolver resolver = null;
-            if (ipaddr != null) {
-                resolver = new InMemoryDnsResolver();
-                resolver.add(host, InetAddress.getByName(ipaddr));
+    // A shared client and the connection manager that backs it
+    private static class SharedClient {
+        CloseableHttpClient httpClient;
+        PoolingHttpClientConnectionManager connManager;
+    }
+
+    // Shared clients, keyed by host and IP address
+    private static final Map<String, SharedClient> sharedClients = new HashMap<>();
+
+    // Enough connections for BlockDownloader's largest window, plus the waitForEvents
+    // long-poll and the session's command executor.
+    private static int maxConnectionsPerRoute = BlockDownloader.DEFAULT_MAX_WINDOW_SIZE + 2;
+
+    // How we decide to trust the scanner's certificate
+    private static SSLContextCache.TrustPolicy trustPolicy = SSLContextCache.TrustPolicy.trustSelfSigned;
+
+    /**
+     * Get the shared, pooled client for this host and IP address, creating it if required.
+     * Don't close the returned client - close the responses instead.
+     */
+    public static CloseableHttpClient getHttpClient(String host, String ipaddr) throws UnknownHostException {
+        String key = host + "|" + ipaddr;
+        synchronized(sharedClients) {
+            SharedClient sharedClient = sharedClients.get(key);
+            if (sharedClient != null) {
+                return sharedClient.httpClient;
             }
 
-            SSLContextBuilder builder = new SSLContextBuilder();
-            builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
-            SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-                    builder.build());
+            Registry<ConnectionSocketFactory> registry = createSocketFactoryRegistry();
+            if (registry == null) {
+                return null;
+            }
 
-            BasicHttpClientConnectionManager connManager = new BasicHttpClientConnectionManager(
-                    RegistryBuilder.<ConnectionSocketFactory>create()
-                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                            .register("https", sslsf)
-                            .build(),
+            PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(
+                    registry,
                     null, /* Default ConnectionFactory */
                     null, /* Default SchemePortResolver */
-                    resolver /* Our DnsResolver */
-            );
+                    createDnsResolver(host, ipaddr),
+                    connectionTimeToLiveSeconds, TimeUnit.SECONDS);
+            connManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connManager.setMaxTotal(maxConnectionsPerRoute * 2);
 
-            CloseableHttpClient httpClient = org.apache.http.impl.client.HttpClientBuilder.create().setConnectionManager(connManager).setSSLSocketFactory(sslsf).build();
-            return httpClient;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
+            sharedClient = new SharedClient();
+            sharedClient.connManager = connManager;
+            sharedClient.httpClient = org.apache.http.impl.client.HttpClientBuilder.create()
+                    .setConnectionManager(connManager)
+                    .disableConnectionState()
+                    .build();
+            sharedClients.put(key, sharedClient);
+
+            logger.fine("Created shared HTTP client for " + key);
+            return sharedClient.httpClient;
+        }
+    }
+
+    /**
+     * Create a new, unshared client with its own single-connection manager. The caller
+     * owns the client and is responsible for closing it.
+     */
+    public static CloseableHttpClient createHttpClient(String host, String ipaddr) throws UnknownHostException {
+        Registry<ConnectionSocketFactory> registry = createSocketFactoryRegistry();
+        if (registry == null) {
             return null;
-        } catch (KeyManagementException e) {
+        }
+
+        BasicHttpClientConnectionManager connManager = new BasicHttpClientConnectionManager(
+                registry,
+                null, /* Default ConnectionFactory */
+                null, /* Default SchemePortResolver */
+                createDnsResolver(host, ipaddr) /* Our DnsResolver */
+        );
+
+        CloseableHttpClient httpClient = org.apache.http.impl.client.HttpClientBuilder.create().setConnectionManager(connManager).build();
+        return httpClient;
+    }
+
+    /**
+     * Set the maximum number of simultaneous connections to a single scanner.
+     * This should be at least the maximum BlockDownloader window size plus two, so that the
+     * event long-poll and session commands don't wait behind block downloads.
+     * Applies to shared clients that already exist as well as new ones.
+     */
+    public static void setMaxConnectionsPerRoute(int max) {
+        synchronized(sharedClients) {
+            maxConnectionsPerRoute = max;
+            for (SharedClient sharedClient : sharedClients.values()) {
+                sharedClient.connManager.setDefaultMaxPerRoute(max);
+                sharedClient.connManager.setMaxTotal(max * 2);
+            }
+        }
+    }
+
+    public static int getMaxConnectionsPerRoute() {
+        synchronized(sharedClients) {
+            return maxConnectionsPerRoute;
+        }
+    }
+
+    /**
+     * Set how scanner certificates are trusted. Takes effect for shared clients
+     * created after the call, so set this before opening sessions.
+     */
+    public static void setTrustPolicy(SSLContextCache.TrustPolicy policy) {
+        synchronized(sharedClients) {
+            trustPolicy = policy;
+        }
+    }
+
+    public static SSLContextCache.TrustPolicy getTrustPolicy() {
+        synchronized(sharedClients) {
+            return trustPolicy;
+        }
+    }
+
+    /**
+     * Close every shared client and its pooled connections.
+     * Subsequent calls to getHttpClient will create new clients.
+     */
+    public static void closeSharedClients() {
+        synchronized(sharedClients) {
+            for (SharedClient sharedClient : sharedClients.values()) {
+                try {
+                    sharedClient.httpClient.close();
+                } catch (IOException e) {
+                    logger.warning(e.toString());
+                }
+            }
+            sharedClients.clear();
+        }
+    }
+
+    /**
+     * Close a response, which releases its connection back to the shared pool (or
+     * discards the connection if the entity wasn't fully consumed).
+     */
+    public static void closeResponse(CloseableHttpResponse response) {
+        if (response != null) {
+            try {
+                response.close();
+            } catch (IOException e) {
+                logger.fine(e.toString());
+            }
+        }
+    }
+
+    /**
+     * Map the scanner's host name to its IP address, if we have one.
+     */
+    private static InMemoryDnsResolver createDnsResolver(String host, String ipaddr) throws UnknownHostException {
+        InMemoryDnsResolver resolver = null;
+        if (ipaddr != null) {
+            resolver = new InMemoryDnsResolver();
+            resolver.add(host, InetAddress.getByName(ipaddr));
+        }
+        return resolver;
+    }
+
+    private static Registry<ConnectionSocketFactory> createSocketFactoryRegistry() {
+        try {
+            // The SSL socket factory, and its SSLContext, are shared so TLS sessions
+            // can be resumed by later connections.
+            SSLConnectionSocketFactory sslsf = SSLContextCache.getSocketFactory(getTrustPolicy());
+
+            return RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", sslsf)
+                    .build();
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
             return null;
         }
@@ -1,13 +1,5 @@
 package org.twaindirect.session;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGetHC4;
-import org.apache.http.client.methods.HttpPostHC4;
-import org.apache.http.client.methods.HttpRequestBaseHC4;
-import org.apache.http.entity.StringEntityHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtilsHC4;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -19,9 +11,15 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -29,6 +27,15 @@ import java.util.logging.Logger;
  * For TWAIN Cloud connections, responses to our JSON requests are delivered asynchronously
  * through the CloudEventBroker. This class is aware of this, and when we're in cloud mode,
  * will register the request with CloudEventBroker and the JSON response when it arrives.
+ *
+ * The HTTP exchange itself is handled by the request's Transport. With a cloud
+ * connection, run() returns once the command has been accepted, and the listener is
+ * called when the response arrives or readTimeout passes.
+ *
+ * A non-blocking transport calls back on its own threads, and cloud responses arrive on
+ * the MQTT client's thread, which has to get on with delivering messages. Set
+ * listenerExecutor to have the listener called on the owner's thread instead, such as a
+ * Session's executor.
  */
 public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
     private static final Logger logger = Logger.getLogger(HttpJsonRequest.class.getName());
@@ -48,7 +55,44 @@ public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
 
     public AsyncResult<JSONObject> listener;
 
-    CountDownLatch responseReady = new CountDownLatch(1);
+    // Calls the listener, if set; otherwise it's called on the thread the response arrives on
+    public Executor listenerExecutor;
+
+    // Sends the request
+    public Transport transport = ApacheTransport.getDefault();
+
+    // If set, cancelling it aborts the request, including the wait for a cloud response
+    public RequestCanceller canceller;
+
+    // Set once the listener has been given a cloud response or a timeout, so it only gets one
+    private final AtomicBoolean cloudResponseHandled = new AtomicBoolean();
+
+    // Times out cloud commands whose response doesn't arrive. A timeout is cancelled when
+    // the response arrives, and cancelled timeouts are purged from the queue every
+    // cloudTimeoutPurgeInterval cancellations rather than kept until they would have run.
+    private static final ScheduledThreadPoolExecutor cloudTimeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HttpJsonRequest cloud timeouts");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // (setRemoveOnCancelPolicy would do this, but needs API 21)
+    private static final int cloudTimeoutPurgeInterval = 64;
+    private static final AtomicInteger cloudTimeoutsCancelled = new AtomicInteger();
+
+    // The timeout for the cloud response we're waiting for
+    private volatile ScheduledFuture<?> cloudTimeout;
+
+    // Added to canceller while we wait for a cloud response
+    private final Runnable cloudAbort = new Runnable() {
+        @Override
+        public void run() {
+            cloudResponseCancelled();
+        }
+    };
 
     public JSONObject requestBody;
 
@@ -56,86 +100,164 @@ public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
 
     @Override
     public void run() {
-        String result = null;
-        try {
-            logger.finer("Executing JSON request for " + url + " commandId " + commandId);
-            if (requestBody != null) {
-                logger.finest("Request body: " + requestBody.toString(2));
-            }
+        logger.finer("Executing JSON request for " + url + " commandId " + commandId);
+        if (requestBody != null) {
+            logger.finest("Request body: " + requestBody.toString(2));
+        }
 
-            //Create a connection
-            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), ipaddr);
+        if (cloudConnection != null) {
+            headers.put("Authorization", cloudConnection.getAccessToken());
+        }
 
-            HttpRequestBaseHC4 request = null;
-            if (method.equals("POST")) {
-                request = new HttpPostHC4(url.toString());
-            } else if (method.equals("GET")) {
-                request = new HttpGetHC4(url.toString());
-            }
+        if (cloudEventBroker != null) {
+            // The actual response will arrive through MQTT .. add the listener
+            cloudEventBroker.addListener(this);
+        }
 
-            // Configure timeouts
-            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
-            request.setConfig(requestConfig);
+        transport.executeJson(this, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                try {
+                    if (cloudEventBroker == null) {
+                        // Not using MQTT for this request, so we will have the response here.
+                        // Read it while the transport still has it open.
+                        final String json = response.getBodyAsString();
+                        callListener(new Runnable() {
+                            @Override
+                            public void run() {
+                                processResponse(json);
+                            }
+                        });
+                        return;
+                    }
+
+                    // Check for an error sending the request
+                    if (response.statusCode != 200) {
+                        cloudEventBroker.removeListener(HttpJsonRequest.this);
+                        logger.finest(response.getBodyAsString());
+                        final Exception error = new Exception("HTTP response " + response.statusLine);
+
+                        // 401 can mean our OAuth2 access token has expired. Attempt to refresh it,
+                        // without holding the transport's thread while we wait.
+                        if (response.statusCode == 401 && !attemptedTokenRefresh) {
+                            attemptedTokenRefresh = true;
+                            cloudConnection.refreshToken(new AsyncResult<Boolean>() {
+                                @Override
+                                public void onResult(Boolean refreshed) {
+                                    if (refreshed) {
+                                        // Retry
+                                        run();
+                                    } else {
+                                        listenerError(error);
+                                    }
+                                }
+
+                                @Override
+                                public void onError(Exception e) {
+                                    listenerError(error);
+                                }
+                            });
+                            return;
+                        }
 
-            request.addHeader("Content-Type", "application/json; charset=UTF-8");
+                        listenerError(error);
+                        return;
+                    }
 
-            if (cloudConnection != null) {
-                request.addHeader("Authorization", cloudConnection.getAccessToken());
+                    // The command has been accepted. Wait for the MQTT response without holding a thread.
+                    waitForCloudResponse();
+                } catch (IOException e) {
+                    listenerError(e);
+                }
             }
 
-            // Set any custom headers
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key));
+            @Override
+            public void onError(Exception e) {
+                if (cloudEventBroker != null) {
+                    cloudEventBroker.removeListener(HttpJsonRequest.this);
+                }
+                listenerError(e);
             }
+        });
+    }
+
+    /**
+     * Run a call to the listener on listenerExecutor, or here if there isn't one.
+     */
+    private void callListener(Runnable call) {
+        if (listenerExecutor == null) {
+            call.run();
+            return;
+        }
+        try {
+            listenerExecutor.execute(call);
+        } catch (RejectedExecutionException e) {
+            logger.warning("Response for " + commandId + " dropped: " + e);
+        }
+    }
 
-            // Set the request body
-            if (requestBody != null) {
-                byte[] bodyBytes = requestBody.toString().getBytes("UTF-8");
-                HttpPostHC4 postRequest = (HttpPostHC4)request;
-                postRequest.setEntity(new StringEntityHC4(requestBody.toString()));
+    private void listenerError(final Exception e) {
+        callListener(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(e);
             }
+        });
+    }
 
-            if (cloudEventBroker != null) {
-                // The actual response will arrive through MQTT .. add the listener
-                cloudEventBroker.addListener(this);
+    /**
+     * The command has been accepted. Time it out if the response doesn't arrive within
+     * readTimeout, and let the canceller end the wait. The response can arrive before
+     * we get here, in which case there's nothing left to wait for.
+     */
+    private void waitForCloudResponse() {
+        cloudTimeout = cloudTimeouts.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cloudResponseTimedOut();
             }
+        }, readTimeout, TimeUnit.MILLISECONDS);
+        if (canceller != null && !canceller.add(cloudAbort)) {
+            cloudResponseCancelled();
+        }
+        if (cloudResponseHandled.get()) {
+            endCloudWait();
+        }
+    }
 
-            // Connect to our url, get the response
-            CloseableHttpResponse response = httpClient.execute(request);
-
-            if (cloudEventBroker == null) {
-                // Not using MQTT for this request, so we will have the response here
-                String json = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                processResponse(json);
-            } else {
-                // Check for an error sending the request
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-                    if (response.getStatusLine().getStatusCode() == 401 && !attemptedTokenRefresh) {
-                        attemptedTokenRefresh = true;
-                        if (cloudConnection.refreshToken()) {
-                            // Retry
-                            run();
-                            return;
-                        }
-                    }
+    /**
+     * The cloud response has been handled: drop its timeout and abort action.
+     */
+    private void endCloudWait() {
+        ScheduledFuture<?> timeout = cloudTimeout;
+        if (timeout != null && timeout.cancel(false)
+                && cloudTimeoutsCancelled.incrementAndGet() % cloudTimeoutPurgeInterval == 0) {
+            cloudTimeouts.purge();
+        }
+        if (canceller != null) {
+            canceller.remove(cloudAbort);
+        }
+    }
 
-                    String responseBody = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                    logger.finest(responseBody);
-                    listener.onError(new Exception("HTTP response " + response.getStatusLine().toString()));
-                    return;
-                }
+    /**
+     * The cloud response didn't arrive within readTimeout.
+     */
+    private void cloudResponseTimedOut() {
+        if (cloudResponseHandled.compareAndSet(false, true)) {
+            cloudEventBroker.removeListener(this);
+            endCloudWait();
+            listenerError(new TimeoutException());
+        }
+    }
 
-                // Block here for the response
-                boolean success = responseReady.await(readTimeout, TimeUnit.MILLISECONDS);
-                if (!success) {
-                    listener.onError(new TimeoutException());
-                }
-            }
-        } catch (IOException | JSONException e) {
-            listener.onError(e);
-        } catch (Exception e) {
-            listener.onError(e);
+    /**
+     * The request was cancelled while we waited for the cloud response.
+     */
+    private void cloudResponseCancelled() {
+        if (cloudResponseHandled.compareAndSet(false, true)) {
+            cloudEventBroker.removeListener(this);
+            endCloudWait();
+            listenerError(new RequestCancelledException());
         }
     }
 
@@ -175,8 +297,15 @@ public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
      * @param json
      */
     @Override
-    public void deliverJSONResponse(String json) {
-        processResponse(json);
-        responseReady.countDown();
+    public void deliverJSONResponse(final String json) {
+        if (cloudResponseHandled.compareAndSet(false, true)) {
+            endCloudWait();
+            callListener(new Runnable() {
+                @Override
+                public void run() {
+                    processResponse(json);
+                }
+            });
+        }
     }
 }
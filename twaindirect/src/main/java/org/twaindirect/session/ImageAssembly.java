@@ -0,0 +1,547 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Builds one image file from its parts as they download, writing each part at its final
+ * offset with positional writes, so the parts are never joined afterwards.
+ *
+ * The metadata doesn't give a part's size or offset, so a part's offset is only known
+ * once every part before it has downloaded. A part that starts downloading after that is
+ * written straight into the image file. A part that starts before is staged in its own
+ * file, and copied into place as soon as its offset is known. A coverage map of the
+ * parts in place tells us when the image is complete.
+ *
+ * The image can be held in memory instead (see Session.setImageDataListener). It's
+ * spilled to the file if it grows beyond the in-memory threshold.
+ *
+ * Parts are numbered from 1. Thread safe: parts of an image may download concurrently.
+ */
+class ImageAssembly {
+    private static final Logger logger = Logger.getLogger(ImageAssembly.class.getName());
+
+    // Initial size of the in-memory buffer, which grows up to the threshold as needed
+    private static final int initialBufferSize = 64 * 1024;
+
+    private final File file;
+
+    // The image file, once we're writing to it
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    // The image, while it's in memory, and the number of bytes in it
+    private ByteBuffer memory;
+    private int memorySize = 0;
+    private final int memoryThreshold;
+    private final boolean directBuffer;
+
+    // Size of each downloaded part, indexed by part number - 1, or -1 if not downloaded yet
+    private long[] partSizes = new long[4];
+
+    // Staging file for each downloaded part that isn't in place yet
+    private File[] stagedParts = new File[4];
+
+    // Metadata of each downloaded part, for streamParts
+    private JSONObject[] partMetadata = new JSONObject[4];
+
+    // Parts that are in place in the image file
+    private final BitSet placed = new BitSet();
+
+    // The first knownParts parts have downloaded, so we know the offset of the next one
+    private int knownParts = 0;
+    private long nextOffset = 0;
+
+    // Number of parts in the image, once we've seen the last one
+    private int partCount = 0;
+
+    private boolean closed = false;
+
+    // The application owns the file once the image is delivered
+    private boolean keepFile = false;
+
+    // Number of parts passed to streamParts' handler, and the offset of the next one.
+    // Only one thread streams at a time, holding streamLock.
+    private final Object streamLock = new Object();
+    private int streamedParts = 0;
+    private long streamedOffset = 0;
+
+    /**
+     * Receives the parts of an image, in order, from streamParts.
+     */
+    interface PartHandler {
+        void onPart(int imagePart, long offset, ByteBuffer data, boolean lastPart, JSONObject metadata);
+    }
+
+    /**
+     * Assemble the image in file.
+     */
+    ImageAssembly(File file) throws IOException {
+        this(file, 0, false);
+    }
+
+    /**
+     * Assemble the image in memory, in a direct buffer if directBuffer is true, unless
+     * it's larger than memoryThreshold bytes, in which case it's moved to file.
+     */
+    ImageAssembly(File file, int memoryThreshold, boolean directBuffer) throws IOException {
+        this.file = file;
+        this.memoryThreshold = memoryThreshold;
+        this.directBuffer = directBuffer;
+        Arrays.fill(partSizes, -1);
+
+        if (memoryThreshold > 0) {
+            memory = allocate(Math.min(memoryThreshold, initialBufferSize));
+        } else {
+            openFile();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Open a channel to write a part's data to: at its offset in the image file if we know
+     * it, or to stagingFile if we don't. Pass it to partDownloaded once the data is written,
+     * or call abort if the download fails.
+     */
+    PartChannel openPart(int imagePart, File stagingFile) throws IOException {
+        synchronized(this) {
+            if (closed) {
+                throw new IOException("Image " + file + " is closed");
+            }
+            if (imagePart - 1 == knownParts) {
+                return new PartChannel(imagePart, nextOffset, null);
+            }
+        }
+        return new PartChannel(imagePart, -1, stagingFile);
+    }
+
+    /**
+     * Record that a part has downloaded, and copy it and any other staged parts whose
+     * offsets are now known into place. Returns true once every part is in place; the
+     * image file is then complete and closed.
+     */
+    boolean partDownloaded(PartChannel part, boolean lastPart) throws IOException {
+        part.close();
+
+        List<Integer> toPlace = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        synchronized(this) {
+            int index = part.imagePart - 1;
+            ensureCapacity(index + 1);
+            partSizes[index] = part.size;
+            partMetadata[index] = part.metadata;
+            if (part.stagingFile == null) {
+                placed.set(index);
+            } else {
+                stagedParts[index] = part.stagingFile;
+            }
+            if (lastPart) {
+                partCount = part.imagePart;
+            }
+
+            // Work out the offsets we can now, and take the staged parts they place
+            while (knownParts < partSizes.length && partSizes[knownParts] >= 0) {
+                if (stagedParts[knownParts] != null) {
+                    toPlace.add(knownParts);
+                    offsets.add(nextOffset);
+                }
+                nextOffset += partSizes[knownParts];
+                knownParts++;
+            }
+        }
+
+        for (int i = 0; i < toPlace.size(); i++) {
+            int index = toPlace.get(i);
+            File staged;
+            synchronized(this) {
+                staged = stagedParts[index];
+                stagedParts[index] = null;
+            }
+            try {
+                copyInto(staged, offsets.get(i));
+            } finally {
+                staged.delete();
+            }
+            synchronized(this) {
+                placed.set(index);
+            }
+        }
+
+        synchronized(this) {
+            if (!isComplete()) {
+                return false;
+            }
+            if (!closed) {
+                closed = true;
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Pass each part that's in place in the image, and hasn't been passed already, to
+     * handler, in order. A part that's in place may be waiting for an earlier one. If
+     * another thread is streaming this image, wait for it, then pass anything it left.
+     */
+    void streamParts(PartHandler handler) throws IOException {
+        synchronized(streamLock) {
+            while (true) {
+                int index;
+                long offset;
+                long size;
+                boolean lastPart;
+                JSONObject metadata;
+                synchronized(this) {
+                    if (closed && !isComplete() || !placed.get(streamedParts)) {
+                        return;
+                    }
+                    index = streamedParts;
+                    offset = streamedOffset;
+                    size = partSizes[index];
+                    lastPart = index + 1 == partCount;
+                    metadata = partMetadata[index];
+                }
+
+                handler.onPart(index + 1, offset, readPart(offset, size), lastPart, metadata);
+
+                synchronized(this) {
+                    streamedParts++;
+                    streamedOffset += size;
+                }
+            }
+        }
+    }
+
+    /**
+     * True once streamParts has passed every part on.
+     */
+    boolean allPartsStreamed() {
+        synchronized(this) {
+            return partCount > 0 && streamedParts >= partCount;
+        }
+    }
+
+    /**
+     * A read-only view of size bytes of the image at offset. The bytes must be in place.
+     */
+    private ByteBuffer readPart(long offset, long size) throws IOException {
+        synchronized(this) {
+            if (memory != null) {
+                // Placed bytes don't change, so the view stays good if the buffer grows or spills
+                ByteBuffer view = memory.duplicate();
+                view.limit((int)(offset + size));
+                view.position((int)offset);
+                return view.slice().asReadOnlyBuffer();
+            }
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The complete image, in memory or in the file.
+     */
+    ReceivedImage getImage() {
+        synchronized(this) {
+            if (memory != null) {
+                ByteBuffer image = memory.duplicate();
+                image.position(0);
+                image.limit(memorySize);
+                return new ReceivedImage(image.slice());
+            }
+            return new ReceivedImage(file);
+        }
+    }
+
+    /**
+     * True once every part is in place.
+     */
+    boolean isComplete() {
+        synchronized(this) {
+            return partCount > 0 && placed.nextClearBit(0) >= partCount;
+        }
+    }
+
+    /**
+     * The file is the application's once the image is complete: delivered() leaves it.
+     */
+    void keepFile() {
+        synchronized(this) {
+            keepFile = true;
+        }
+    }
+
+    /**
+     * The image has been delivered. Release it, deleting the file unless it's the
+     * application's.
+     */
+    void delivered() {
+        synchronized(this) {
+            if (keepFile && isComplete()) {
+                memory = null;
+                return;
+            }
+        }
+        abandon();
+    }
+
+    /**
+     * Give up on the image: close it, and delete it and any staged parts.
+     */
+    void abandon() {
+        synchronized(this) {
+            if (!closed) {
+                closed = true;
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (IOException e) {
+                        logger.warning(e.toString());
+                    }
+                }
+            }
+            memory = null;
+            for (File staged : stagedParts) {
+                if (staged != null) {
+                    staged.delete();
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Write src at position in the image, in memory or in the file. Returns the number of
+     * bytes written, which is all of them.
+     */
+    private int writeAt(ByteBuffer src, long position) throws IOException {
+        FileChannel fileChannel;
+        synchronized(this) {
+            if (closed) {
+                throw new IOException("Image " + file + " is closed");
+            }
+
+            if (memory != null) {
+                long end = position + src.remaining();
+                if (end <= memoryThreshold) {
+                    int len = src.remaining();
+                    ensureMemory((int)end);
+                    memory.clear();
+                    memory.position((int)position);
+                    memory.put(src);
+                    memorySize = Math.max(memorySize, (int)end);
+                    return len;
+                }
+
+                // Too big to keep in memory
+                spill();
+            }
+            fileChannel = channel;
+        }
+
+        // Positional writes to the file can proceed concurrently
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += fileChannel.write(src, position + written);
+        }
+        return written;
+    }
+
+    private void ensureMemory(int size) {
+        if (size > memory.capacity()) {
+            ByteBuffer grown = allocate(Math.min(memoryThreshold, Math.max(size, memory.capacity() * 2)));
+            memory.clear();
+            memory.limit(memorySize);
+            grown.put(memory);
+            memory = grown;
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return directBuffer ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Move the image from memory to the file. Call with the lock held.
+     */
+    private void spill() throws IOException {
+        openFile();
+        memory.clear();
+        memory.limit(memorySize);
+        while (memory.hasRemaining()) {
+            channel.write(memory, memory.position());
+        }
+        memory = null;
+    }
+
+    private void openFile() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        channel = randomAccessFile.getChannel();
+    }
+
+    private void ensureCapacity(int parts) {
+        if (parts > partSizes.length) {
+            int oldLength = partSizes.length;
+            int newLength = Math.max(parts, oldLength * 2);
+            partSizes = Arrays.copyOf(partSizes, newLength);
+            Arrays.fill(partSizes, oldLength, newLength, -1);
+            stagedParts = Arrays.copyOf(stagedParts, newLength);
+            partMetadata = Arrays.copyOf(partMetadata, newLength);
+        }
+    }
+
+    /**
+     * Copy a staged part into the image file at offset. The parts before it may still be
+     * being copied by another thread, so this uses positional writes, which can go past
+     * the current end of the file.
+     */
+    private void copyInto(File staged, long offset) throws IOException {
+        FileChannel in = new FileInputStream(staged).getChannel();
+        try {
+            PositionalWriter out = new PositionalWriter(offset);
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes to the image file at a position that advances with each write.
+     */
+    private class PositionalWriter implements WritableByteChannel {
+        private long position;
+
+        PositionalWriter(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = writeAt(src, position);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized(ImageAssembly.this) {
+                return !closed;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The image file stays open for the other parts
+        }
+    }
+
+    /**
+     * Where one part's data goes as it downloads, counting the bytes written.
+     */
+    class PartChannel implements WritableByteChannel {
+        final int imagePart;
+        final File stagingFile;
+
+        // The block's metadata, passed back with the part by streamParts
+        JSONObject metadata;
+
+        private final WritableByteChannel target;
+        private FileOutputStream stagingOut;
+        private long size = 0;
+
+        // Set if another download of the same part finished first
+        private boolean cancelled = false;
+
+        private PartChannel(int imagePart, long offset, File stagingFile) throws IOException {
+            this.imagePart = imagePart;
+            this.stagingFile = stagingFile;
+            if (stagingFile == null) {
+                target = new PositionalWriter(offset);
+            } else {
+                stagingOut = new FileOutputStream(stagingFile);
+                target = stagingOut.getChannel();
+            }
+        }
+
+        /**
+         * Number of bytes written to the part so far.
+         */
+        long size() {
+            return size;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if (cancelled) {
+                throw new IOException("Download of part " + imagePart + " was cancelled");
+            }
+            int len = target.write(src);
+            size += len;
+            return len;
+        }
+
+        /**
+         * Another download of this part has finished first. Once this returns nothing more
+         * is written; further writes fail, and the download should call abort.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (stagingOut != null) {
+                stagingOut.close();
+            }
+        }
+
+        /**
+         * The download failed. Bytes already written in place are overwritten if the part
+         * is downloaded again.
+         */
+        void abort() {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.warning(e.toString());
+            }
+            if (stagingFile != null) {
+                stagingFile.delete();
+            }
+        }
+    }
+}
@@ -22,13 +22,26 @@ class ImageBlockInfo {
     public int blockNum;
     public MoreParts moreParts;
 
+    // Size of the part's image data, once downloaded
+    public long size;
+
     public JSONObject metadata;
 
     public String partFileName() {
         return String.format(Locale.US, "%d-%d-%d-%d.part", sheetNumber, imageNumber, imagePart, blockNum);
     }
 
+    /**
+     * Number of the image's first block. An image's parts are consecutive blocks.
+     */
+    public int firstBlockNum() {
+        return blockNum - (imagePart - 1);
+    }
+
+    /**
+     * Name of the assembled image, the same for every part.
+     */
     public String eventualFileName() {
-        return String.format(Locale.US, "%d-%d-%d.pdf", sheetNumber, imageNumber, imagePart);
+        return String.format(Locale.US, "%d-%d-1.pdf", sheetNumber, imageNumber);
     }
 }
@@ -0,0 +1,19 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+/**
+ * An alternative to SessionListener.onImageReceived, for applications that would rather
+ * have each image in memory than in a file. See Session.setImageDataListener.
+ */
+public interface ImageDataListener {
+    /**
+     * Sent when an image has been completely received. Images up to the session's
+     * in-memory threshold are held in memory; larger ones are in a temporary file.
+     * Either way, the image is only valid until this call returns.
+     *
+     * @param image
+     * @param metadata
+     */
+    void onImageReceived(Session session, ReceivedImage image, JSONObject metadata);
+}
@@ -0,0 +1,24 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.io.File;
+
+/**
+ * Chooses where the session writes each image, so the application can have images
+ * written straight to where it keeps them instead of copying them out of the temp
+ * directory. See Session.setImageDestination.
+ */
+public interface ImageDestination {
+    /**
+     * Return the file to write an image to, or null to use the temp directory as usual.
+     * Called on a download thread when the image's first block arrives. The file is
+     * passed to SessionListener.onImageReceived (or ImageDataListener) when complete,
+     * and then belongs to the application: the session doesn't delete it. If the session
+     * is stopped before the image is complete, the partial file is deleted.
+     *
+     * @param suggestedName the session's name for the image, for example 3-3-1.pdf
+     * @param metadata metadata of the block that started the image
+     */
+    File getImageDestination(Session session, String suggestedName, JSONObject metadata);
+}
@@ -0,0 +1,26 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives each part of an image as soon as it has downloaded, so the application can
+ * start work on an image (upload it, hash it, and so on) before the rest of it arrives.
+ * See Session.setImagePartListener.
+ */
+public interface ImagePartListener {
+    /**
+     * Sent for each part of an image, in order, once it and every part before it are
+     * written to the image. The parts of an image are passed one at a time, on a download
+     * thread, before the complete image is delivered. Parts of different images may be
+     * passed concurrently.
+     *
+     * @param imagePart the part number, starting at 1
+     * @param offset the offset of the part's data in the image
+     * @param data the part's data, read-only. Only valid until this call returns.
+     * @param lastPart true if this is the image's last part
+     * @param metadata the metadata of the block that carried this part
+     */
+    void onImagePartReceived(Session session, int imagePart, long offset, ByteBuffer data, boolean lastPart, JSONObject metadata);
+}
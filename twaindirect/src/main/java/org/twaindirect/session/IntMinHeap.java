@@ -0,0 +1,93 @@
+package org.twaindirect.session;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min-heap of primitive ints, used by BlockDownloader to pick the lowest
+ * numbered block that's ready to download: O(log n) to add or remove, O(1) to peek,
+ * and no boxing. Not thread safe.
+ */
+class IntMinHeap {
+    private int[] heap;
+    private int size;
+
+    IntMinHeap() {
+        this(16);
+    }
+
+    IntMinHeap(int initialCapacity) {
+        heap = new int[Math.max(initialCapacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(int value) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+
+        // Sift up
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * The lowest value, without removing it.
+     */
+    int peek() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return heap[0];
+    }
+
+    /**
+     * Remove and return the lowest value.
+     */
+    int poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        int result = heap[0];
+        int last = heap[--size];
+
+        // Sift the last value down from the root
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right] < heap[child]) {
+                child = right;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        if (size > 0) {
+            heap[index] = last;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,155 @@
+package org.twaindirect.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A map from primitive int keys to objects, using open addressing with linear probing,
+ * so that adding, finding and removing entries doesn't box the key or allocate an entry.
+ * Null values aren't allowed. Not thread safe.
+ */
+class IntObjectMap<V> {
+    private static final int minCapacity = 16;
+
+    // Parallel arrays; a null value marks an empty slot. The length is a power of two.
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    // 32 - log2(capacity), for hashing keys to slots
+    private int shift;
+
+    IntObjectMap() {
+        allocate(minCapacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(int key) {
+        return values[find(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        return (V)values[find(key)];
+    }
+
+    /**
+     * Returns the previous value for the key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("IntObjectMap doesn't allow null values");
+        }
+
+        int slot = find(key);
+        V previous = (V)values[slot];
+        if (previous != null) {
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+
+        // Keep the load factor at or below a half
+        if (size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the removed value, or null if the key wasn't present.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int slot = find(key);
+        V previous = (V)values[slot];
+        if (previous == null) {
+            return null;
+        }
+
+        // Shift later entries in the probe sequence back, so lookups needn't skip holes
+        int mask = values.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = slot(keys[next]);
+            // Move the entry if the hole lies between its home slot and where it is
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    /**
+     * The values, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                result.add((V)value);
+            }
+        }
+        return result;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * The slot holding key, or the empty slot where it would go.
+     */
+    private int find(int key) {
+        int mask = values.length - 1;
+        int slot = slot(key);
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int slot(int key) {
+        // Fibonacci hashing spreads sequential block numbers across the table
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.twaindirect.session;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A first-in, first-out queue of primitive ints in a circular array, which grows
+ * when full. Adding and removing are O(1) and don't allocate. Not thread safe.
+ */
+class IntRingBuffer {
+    // Length is a power of two
+    private int[] buffer;
+    private int head;
+    private int size;
+
+    IntRingBuffer() {
+        this(16);
+    }
+
+    IntRingBuffer(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        buffer = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Add a value at the tail.
+     */
+    void add(int value) {
+        if (size == buffer.length) {
+            grow();
+        }
+        buffer[(head + size) & (buffer.length - 1)] = value;
+        size++;
+    }
+
+    /**
+     * The value at the head, without removing it.
+     */
+    int peek() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return buffer[head];
+    }
+
+    /**
+     * The value at the tail (the most recently added).
+     */
+    int peekLast() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return buffer[(head + size - 1) & (buffer.length - 1)];
+    }
+
+    /**
+     * Remove and return the value at the head.
+     */
+    int poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        int value = buffer[head];
+        head = (head + 1) & (buffer.length - 1);
+        size--;
+        return value;
+    }
+
+    private void grow() {
+        int[] grown = new int[buffer.length * 2];
+        int firstPart = buffer.length - head;
+        System.arraycopy(buffer, head, grown, 0, firstPart);
+        System.arraycopy(buffer, 0, grown, firstPart, head);
+        buffer = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,154 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.twaindirect.cloud.CloudBlockRequest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transport that passes every request to an in-memory Handler, with no sockets involved.
+ * Used to simulate a scanner or cloud service in tests, and to measure the library's
+ * own throughput without the network.
+ *
+ * The handler is called on the calling thread, and the listener before the method returns.
+ * Cancelling a request while the handler is running interrupts that thread, so a handler
+ * that sleeps to simulate a slow scanner is woken. Once the listener has the response,
+ * cancelling makes reads of the body fail, as they would when a connection is aborted;
+ * interrupting the listener could close files it shares with other requests.
+ */
+public class LoopbackTransport implements Transport {
+    /**
+     * Produces the response to a request.
+     */
+    public interface Handler {
+        /**
+         * @param method "GET" or "POST"
+         * @param url the request URL
+         * @param headers request headers, including Content-Type
+         * @param body request body, or null
+         * @return the response; throw to fail the request
+         */
+        TransportResponse handle(String method, URI url, Map<String, String> headers, byte[] body) throws Exception;
+    }
+
+    private final Handler handler;
+
+    public LoopbackTransport(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void executeJson(HttpJsonRequest request, AsyncResult<TransportResponse> listener) {
+        execute(request.method, request.url, request.headers, request.requestBody, request.canceller, listener);
+    }
+
+    @Override
+    public void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener) {
+        execute("POST", request.url, request.headers, request.requestBody, request.canceller, listener);
+    }
+
+    @Override
+    public void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener) {
+        execute("GET", request.url, request.headers, null, request.canceller, listener);
+    }
+
+    private void execute(String method, URI url, Map<String, String> headers, JSONObject requestBody,
+                         RequestCanceller canceller, AsyncResult<TransportResponse> listener) {
+        Map<String, String> allHeaders = new HashMap<String, String>();
+        allHeaders.put("Content-Type", "application/json; charset=UTF-8");
+        allHeaders.putAll(headers);
+
+        final ThreadAbort abort = new ThreadAbort(Thread.currentThread());
+        if (canceller != null && !canceller.add(abort)) {
+            listener.onError(new RequestCancelledException());
+            return;
+        }
+
+        try {
+            TransportResponse response = null;
+            Exception error = null;
+            try {
+                byte[] body = null;
+                if (requestBody != null) {
+                    body = requestBody.toString().getBytes("UTF-8");
+                }
+                response = handler.handle(method, url, allHeaders, body);
+            } catch (Exception e) {
+                error = e;
+            }
+            if (abort.handled()) {
+                // Don't leave the interrupt for the listener, or the thread's next task
+                Thread.interrupted();
+            }
+
+            if (error != null) {
+                listener.onError(canceller != null && canceller.isCancelled() ? new RequestCancelledException() : error);
+                return;
+            }
+
+            if (response.body != null) {
+                response.body = new FilterInputStream(response.body) {
+                    @Override
+                    public int read() throws IOException {
+                        abort.check();
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int len) throws IOException {
+                        abort.check();
+                        return super.read(buffer, offset, len);
+                    }
+                };
+            }
+            listener.onResult(response);
+        } finally {
+            if (canceller != null) {
+                canceller.remove(abort);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the thread running a request's handler; after that, fails reads of the
+     * response body.
+     */
+    private static class ThreadAbort implements Runnable {
+        private final Thread thread;
+        private boolean handling = true;
+        private boolean interrupted = false;
+        private boolean cancelled = false;
+
+        ThreadAbort(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            cancelled = true;
+            if (handling) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * The handler has returned. Returns true if the thread was interrupted.
+         */
+        synchronized boolean handled() {
+            handling = false;
+            return interrupted;
+        }
+
+        synchronized void check() throws RequestCancelledException {
+            if (cancelled) {
+                throw new RequestCancelledException();
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.twaindirect.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming parser for the multipart/mixed body of a readImageBlock response.
+ *
+ * The body is read in a single pass through one fixed-size buffer. Small parts (the
+ * JSON metadata) can be read into memory with readBody, and large parts (the image
+ * data) written straight to a channel with transferBody. A part with a Content-Length
+ * header is read for exactly that many bytes; otherwise it ends at the next boundary.
+ *
+ * The boundary is taken from the first delimiter line, as the Content-Type header of
+ * the response isn't available to us.
+ *
+ * Usage:
+ *   while (parser.nextPart()) {
+ *       if (parser.getContentType().startsWith("application/json")) {
+ *           byte[] json = parser.readBody();
+ *       } else {
+ *           parser.transferBody(channel);
+ *       }
+ *   }
+ */
+class MultipartParser {
+    private static final int bufferSize = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[bufferSize];
+    private int pos;
+    private int limit;
+
+    // Delimiter between parts, as "\r\n--boundary"
+    private byte[] delimiter;
+
+    // Headers of the current part, with lowercased names
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    // True if the current part's body hasn't been read yet
+    private boolean bodyPending;
+
+    private boolean finished;
+
+    MultipartParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advance to the next part and read its headers, skipping any unread body of the
+     * current part. Returns false once the closing delimiter has been reached.
+     */
+    boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+
+        if (delimiter == null) {
+            readFirstDelimiter();
+        } else {
+            if (bodyPending) {
+                readBody(null);
+            }
+            readDelimiter();
+        }
+
+        if (finished) {
+            return false;
+        }
+
+        headers.clear();
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Multipart body ended in part headers");
+        }
+
+        bodyPending = true;
+        return true;
+    }
+
+    /**
+     * Get a header of the current part, or null.
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * The content type of the current part, or "" if it has none.
+     */
+    String getContentType() {
+        String contentType = getHeader("Content-Type");
+        return contentType == null ? "" : contentType;
+    }
+
+    /**
+     * The Content-Length of the current part, or -1 if it has none.
+     */
+    long getContentLength() throws IOException {
+        String contentLength = getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid part Content-Length " + contentLength);
+        }
+    }
+
+    /**
+     * Read the current part's body into memory.
+     */
+    byte[] readBody() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        readBody(new Sink() {
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                out.write(bytes, offset, length);
+            }
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the current part's body to a channel. Returns the number of bytes written.
+     */
+    long transferBody(final WritableByteChannel channel) throws IOException {
+        final long[] written = new long[1];
+        readBody(new Sink() {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, length);
+                while (byteBuffer.hasRemaining()) {
+                    written[0] += channel.write(byteBuffer);
+                }
+            }
+        });
+        return written[0];
+    }
+
+    private interface Sink {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Pass the current part's body to sink (or skip it if sink is null), leaving the
+     * input positioned at the delimiter that follows.
+     */
+    private void readBody(Sink sink) throws IOException {
+        if (!bodyPending) {
+            throw new IllegalStateException("Part body already read");
+        }
+        bodyPending = false;
+
+        long remaining = getContentLength();
+        if (remaining >= 0) {
+            while (remaining > 0) {
+                if (pos == limit && fill() == -1) {
+                    throw new EOFException("Multipart body ended " + remaining + " bytes before the end of the part");
+                }
+                int count = (int)Math.min(remaining, limit - pos);
+                if (sink != null) {
+                    sink.write(buffer, pos, count);
+                }
+                pos += count;
+                remaining -= count;
+            }
+            return;
+        }
+
+        // No length, so look for the delimiter. Bytes that could be the start of a
+        // delimiter split across reads are held back until we know.
+        while (true) {
+            int match = indexOf(delimiter, pos, limit);
+            if (match >= 0) {
+                if (sink != null) {
+                    sink.write(buffer, pos, match - pos);
+                }
+                pos = match;
+                return;
+            }
+
+            int safe = Math.max(pos, limit - delimiter.length + 1);
+            if (sink != null && safe > pos) {
+                sink.write(buffer, pos, safe - pos);
+            }
+            pos = safe;
+
+            if (fill() == -1) {
+                throw new EOFException("Multipart body ended without a closing delimiter");
+            }
+        }
+    }
+
+    /**
+     * Skip any preamble, and take the boundary from the first line starting with "--".
+     */
+    private void readFirstDelimiter() throws IOException {
+        String line;
+        while ((line = readLine()) != null) {
+            if (line.startsWith("--") && line.trim().length() > 2) {
+                String boundary = line.substring(2).trim();
+                delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+                return;
+            }
+        }
+        throw new EOFException("No multipart boundary found");
+    }
+
+    /**
+     * Read the delimiter after a part body: either the next part's delimiter, or the close delimiter.
+     */
+    private void readDelimiter() throws IOException {
+        // A body read by length is normally followed by CRLF and the delimiter, but tolerate
+        // scanners that leave out or add line breaks.
+        String expected = new String(delimiter, 2, delimiter.length - 2, "ISO-8859-1");
+        String line;
+        while ((line = readLine()) != null) {
+            if (line.startsWith(expected)) {
+                if (line.startsWith("--", expected.length())) {
+                    finished = true;
+                }
+                return;
+            }
+            if (line.length() > 0) {
+                throw new IOException("Unexpected data after multipart body");
+            }
+        }
+        throw new EOFException("Multipart body ended without a closing delimiter");
+    }
+
+    /**
+     * Read a line ending in LF or CRLF, without the line ending. Returns null at end of input.
+     */
+    private String readLine() throws IOException {
+        StringBuilder sb = null;
+        while (true) {
+            if (pos == limit && fill() == -1) {
+                return sb == null ? null : sb.toString();
+            }
+
+            int start = pos;
+            while (pos < limit && buffer[pos] != '\n') {
+                pos++;
+            }
+
+            if (sb == null) {
+                sb = new StringBuilder();
+            }
+            sb.append(new String(buffer, start, pos - start, "ISO-8859-1"));
+
+            if (pos < limit) {
+                // Found the LF
+                pos++;
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Read more input into the buffer, keeping any unconsumed bytes.
+     * Returns the number of bytes read, or -1 at end of input.
+     */
+    private int fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+
+        int count = in.read(buffer, limit, buffer.length - limit);
+        if (count > 0) {
+            limit += count;
+        }
+        return count;
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
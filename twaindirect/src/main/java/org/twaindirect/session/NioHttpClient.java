@@ -0,0 +1,1416 @@
+package org.twaindirect.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A small non-blocking HTTP/1.1 client.
+ *
+ * A fixed group of event loop threads drives every request with java.nio selectors, so
+ * in-flight commands, long-polls and block downloads for any number of sessions don't
+ * each park a thread while they wait for the scanner. Each loop owns the connections
+ * for the scanners (routes) assigned to it, and keeps them alive for reuse, up to
+ * HttpClientBuilder.getMaxConnectionsPerRoute() per route. Requests over the limit
+ * wait for a connection to free up.
+ *
+ * A response is delivered to the AsyncResult on a callback thread as soon as its
+ * headers arrive, and the listener reads the body as it streams in, so a large block
+ * isn't held on the heap. A slow listener never stalls the event loops: once
+ * maxBufferedBodyBytes of a body are waiting to be read, its connection stops reading
+ * until the listener catches up. Since each body being read holds a callback thread,
+ * the callback pool grows to as many threads as there are connections for two scanners
+ * by default, so a session's whole download window and its hedges can stream at once.
+ * Callback threads exit when idle.
+ *
+ * A request that fails on a kept-alive connection the server had already closed is
+ * retried once on a new connection, but only if it's idempotent or none of it was sent,
+ * so a POST is never sent twice.
+ *
+ * https uses the SSLContext from SSLContextCache, so TLS sessions are resumed and
+ * certificates are trusted (and pinned) the same way as on the blocking path. Like
+ * HttpClientBuilder, we connect to the scanner's IP address but use its mDNS host name
+ * for TLS and the Host header.
+ */
+public class NioHttpClient {
+    private static final Logger logger = Logger.getLogger(NioHttpClient.class.getName());
+
+    // How long an idle connection is kept for reuse
+    private static final long idleTimeoutMillis = 60000;
+
+    // Upper bound on how long a loop sleeps in select, so timeouts are noticed promptly
+    private static final long maxSelectMillis = 250;
+
+    private static final int readBufferSize = 64 * 1024;
+
+    // How much of a response body can wait for the listener to read it
+    private static final int maxBufferedBodyBytes = 256 * 1024;
+
+    // How long an idle callback thread waits for work before exiting
+    private static final long idleCallbackThreadSeconds = 30;
+
+    private static NioHttpClient defaultClient;
+    private static int defaultEventLoopThreads = 2;
+    // 0 for defaultCallbackThreads()
+    private static int defaultCallbackThreads = 0;
+
+    private final EventLoop[] eventLoops;
+    private final ExecutorService callbackExecutor;
+    private volatile boolean shutdown;
+
+    /**
+     * A request to execute.
+     */
+    public static class Request {
+        public URI url;
+        // IP address to connect to, in place of resolving url's host, or null
+        public String ipaddr;
+        public String method = "GET";
+        public Map<String, String> headers = new HashMap<String, String>();
+        public byte[] body;
+        public int connectTimeout = 15000;
+        // Longest time to wait for data from the server, as with a socket timeout
+        public int readTimeout = 30000;
+    }
+
+    /**
+     * A response, delivered once its headers have arrived.
+     */
+    public static class Response {
+        public int statusCode;
+        public String reasonPhrase;
+        // Header names are lower case
+        public Map<String, String> headers = new HashMap<String, String>();
+        private BodyStream body;
+
+        public String getStatusLine() {
+            return statusCode + " " + reasonPhrase;
+        }
+
+        /**
+         * Read the rest of the body as UTF-8, waiting for it to arrive.
+         */
+        public String getBodyAsString() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = body.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return out.toString("UTF-8");
+        }
+
+        /**
+         * The body, as it streams in. Reads block until data arrives, and fail if the
+         * connection fails or the request is cancelled. Closing it early discards the rest.
+         */
+        public InputStream getBodyStream() {
+            return body;
+        }
+    }
+
+    /**
+     * A request that has been executed, which can be cancelled until it completes.
+     */
+    public interface Call {
+        /**
+         * Abandon the request, closing its connection if it has one. The listener gets a
+         * RequestCancelledException, unless the request has already completed.
+         */
+        void cancel();
+    }
+
+    /**
+     * Get the process-wide client, creating it on first use.
+     */
+    public static synchronized NioHttpClient getDefault() {
+        if (defaultClient == null) {
+            defaultClient = new NioHttpClient(defaultEventLoopThreads, defaultCallbackThreads());
+        }
+        return defaultClient;
+    }
+
+    /**
+     * The most callback threads the default client uses: as set by setDefaultThreadCounts,
+     * or enough to read a response on every connection to two scanners.
+     */
+    static synchronized int defaultCallbackThreads() {
+        if (defaultCallbackThreads > 0) {
+            return defaultCallbackThreads;
+        }
+        return HttpClientBuilder.getMaxConnectionsPerRoute() * 2;
+    }
+
+    /**
+     * Set the thread counts for the default client. Must be called before getDefault.
+     * callbackThreads is the most listeners that can run at once, each reading a
+     * response body; 0 sizes it to the connection limit.
+     */
+    public static synchronized void setDefaultThreadCounts(int eventLoopThreads, int callbackThreads) {
+        defaultEventLoopThreads = eventLoopThreads;
+        defaultCallbackThreads = callbackThreads;
+    }
+
+    public NioHttpClient(int eventLoopThreads, int callbackThreads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(callbackThreads, callbackThreads,
+                idleCallbackThreadSeconds, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("twaindirect-nio-callback"));
+        pool.allowCoreThreadTimeOut(true);
+        callbackExecutor = pool;
+        eventLoops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            try {
+                eventLoops[i] = new EventLoop("twaindirect-nio-" + i);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+        }
+    }
+
+    /**
+     * Execute a request. Returns immediately; the response or error is delivered to
+     * listener on a callback thread.
+     */
+    public Call execute(Request request, AsyncResult<Response> listener) {
+        Exchange exchange = new Exchange(request, listener);
+        try {
+            if (shutdown) {
+                throw new IOException("NioHttpClient has been shut down");
+            }
+
+            String scheme = request.url.getScheme().toLowerCase(Locale.US);
+            exchange.secure = scheme.equals("https");
+            exchange.host = request.url.getHost();
+            exchange.port = request.url.getPort() != -1 ? request.url.getPort() : (exchange.secure ? 443 : 80);
+
+            // Resolve here rather than on the event loop - InetAddress caches lookups
+            InetAddress address = InetAddress.getByName(request.ipaddr != null ? request.ipaddr : exchange.host);
+            exchange.address = new InetSocketAddress(address, exchange.port);
+            exchange.routeKey = scheme + "://" + exchange.host + ":" + exchange.port + "|" + request.ipaddr;
+            exchange.requestBytes = encodeRequest(request, exchange);
+        } catch (IOException e) {
+            exchange.fail(e);
+            return exchange;
+        }
+
+        final EventLoop loop = eventLoops[(exchange.routeKey.hashCode() & 0x7fffffff) % eventLoops.length];
+        final Exchange dispatched = exchange;
+        exchange.loop = loop;
+        loop.submit(new Runnable() {
+            @Override
+            public void run() {
+                loop.dispatch(dispatched);
+            }
+        });
+        return exchange;
+    }
+
+    /**
+     * Close every connection and stop the threads. Requests in flight fail.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (EventLoop loop : eventLoops) {
+            loop.selector.wakeup();
+        }
+        callbackExecutor.shutdown();
+    }
+
+    /**
+     * Run a listener callback on the callback executor, or right here if we've shut down.
+     */
+    private void deliver(Runnable callback) {
+        try {
+            callbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            callback.run();
+        }
+    }
+
+    private static byte[] encodeRequest(Request request, Exchange exchange) throws UnsupportedEncodingException {
+        String path = request.url.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        if (request.url.getRawQuery() != null) {
+            path = path + "?" + request.url.getRawQuery();
+        }
+
+        boolean defaultPort = exchange.port == (exchange.secure ? 443 : 80);
+
+        StringBuilder head = new StringBuilder();
+        head.append(request.method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(exchange.host);
+        if (!defaultPort) {
+            head.append(':').append(exchange.port);
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        byte[] body = request.body != null ? request.body : new byte[0];
+        if (request.body != null || !request.method.equals("GET")) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes("ISO-8859-1");
+        byte[] bytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+        return bytes;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * One request and its eventual response.
+     */
+    private class Exchange implements Call {
+        final Request request;
+        final AsyncResult<Response> listener;
+        final AtomicBoolean completed = new AtomicBoolean();
+
+        // The loop it was dispatched to, and the connection carrying it, if any. Only the
+        // loop thread sets connection.
+        volatile EventLoop loop;
+        Connection connection;
+
+        boolean secure;
+        String host;
+        int port;
+        InetSocketAddress address;
+        String routeKey;
+        byte[] requestBytes;
+
+        // Set once we've retried on a new connection after a stale kept-alive one failed
+        boolean retried;
+
+        // The response body, once the listener has the response
+        volatile BodyStream body;
+
+        Exchange(Request request, AsyncResult<Response> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        /**
+         * The response's headers have arrived; pass it to the listener, if we haven't yet.
+         */
+        void succeed(final Response response) {
+            if (body == null) {
+                body = response.body;
+            }
+            if (completed.compareAndSet(false, true)) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(response);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Fail the exchange: through the listener, or if it already has the response,
+         * through reads of the body.
+         */
+        void fail(final Exception e) {
+            if (completed.compareAndSet(false, true)) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError(e);
+                    }
+                });
+            } else if (body != null) {
+                body.fail(e instanceof IOException ? (IOException)e : new IOException(e));
+            }
+        }
+
+        /**
+         * Whether the exchange is over: it failed, or the whole response has arrived.
+         */
+        boolean isFinished() {
+            return completed.get() && (body == null || body.isEnded());
+        }
+
+        /**
+         * Whether the request can safely be sent again.
+         */
+        boolean isIdempotent() {
+            String method = request.method;
+            return method.equals("GET") || method.equals("HEAD") || method.equals("PUT")
+                    || method.equals("DELETE") || method.equals("OPTIONS");
+        }
+
+        @Override
+        public void cancel() {
+            if (isFinished() || loop == null) {
+                return;
+            }
+            final EventLoop cancelLoop = loop;
+            cancelLoop.submit(new Runnable() {
+                @Override
+                public void run() {
+                    cancelLoop.cancel(Exchange.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Connections to a single scanner or server.
+     */
+    private static class Route {
+        final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+        final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+        // Connections open on this route, busy or idle
+        int open;
+    }
+
+    /**
+     * A selector thread and the connections it owns. Only the loop thread touches its
+     * routes and connections.
+     */
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final Map<String, Route> routes = new HashMap<String, Route>();
+        final Set<Connection> connections = new HashSet<Connection>();
+
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            Thread thread = daemonThreadFactory(name).newThread(this);
+            thread.start();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    selector.select(maxSelectMillis);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection)key.attachment();
+                        try {
+                            connection.onReady(key.readyOps());
+                        } catch (CancelledKeyException e) {
+                            connection.close();
+                        } catch (IOException e) {
+                            connection.onError(e);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Unexpected error on connection", e);
+                            connection.onError(new IOException(e));
+                        }
+                    }
+
+                    checkTimeouts();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.severe(e.toString());
+            }
+
+            // Shutting down
+            IOException shutdownException = new IOException("NioHttpClient has been shut down");
+            for (Route route : routes.values()) {
+                for (Exchange exchange : route.pending) {
+                    exchange.fail(shutdownException);
+                }
+                route.pending.clear();
+            }
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.onError(shutdownException);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.fine(e.toString());
+            }
+        }
+
+        private void checkTimeouts() {
+            if (connections.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                // A paused connection is waiting for its listener, not the server
+                if (!connection.paused && now - connection.deadline > 0) {
+                    connection.onTimeout();
+                }
+            }
+        }
+
+        Route route(String routeKey) {
+            Route route = routes.get(routeKey);
+            if (route == null) {
+                route = new Route();
+                routes.put(routeKey, route);
+            }
+            return route;
+        }
+
+        /**
+         * Start the exchange on an idle connection, a new connection, or queue it if
+         * the route is at its connection limit.
+         */
+        void dispatch(Exchange exchange) {
+            if (exchange.completed.get()) {
+                // Cancelled before it started
+                return;
+            }
+            if (shutdown) {
+                exchange.fail(new IOException("NioHttpClient has been shut down"));
+                return;
+            }
+
+            Route route = route(exchange.routeKey);
+            Connection connection = route.idle.poll();
+            if (connection != null) {
+                connection.start(exchange, true);
+                return;
+            }
+
+            if (route.open < HttpClientBuilder.getMaxConnectionsPerRoute()) {
+                open(route, exchange);
+            } else {
+                route.pending.add(exchange);
+            }
+        }
+
+        private void open(Route route, Exchange exchange) {
+            route.open++;
+            Connection connection = new Connection(this, route, exchange);
+            connections.add(connection);
+            try {
+                connection.connect();
+            } catch (IOException e) {
+                connection.onError(e);
+            }
+        }
+
+        /**
+         * The connection finished an exchange and can be used for another one.
+         */
+        void release(Connection connection) {
+            Route route = connection.route;
+            Exchange next = route.pending.poll();
+            if (next != null) {
+                connection.start(next, true);
+            } else {
+                connection.idle();
+                route.idle.add(connection);
+            }
+        }
+
+        /**
+         * Abandon an exchange: take it out of its route's queue, or close the connection
+         * carrying it, so the connection isn't reused with half a response unread.
+         */
+        void cancel(Exchange exchange) {
+            if (exchange.isFinished()) {
+                return;
+            }
+            Route route = routes.get(exchange.routeKey);
+            if (route != null) {
+                route.pending.remove(exchange);
+            }
+            Connection connection = exchange.connection;
+            if (connection != null && connection.exchange == exchange) {
+                connection.close();
+            }
+            exchange.fail(new RequestCancelledException());
+        }
+
+        /**
+         * The connection has been closed.
+         */
+        void closed(Connection connection) {
+            if (!connections.remove(connection)) {
+                return;
+            }
+            Route route = connection.route;
+            route.open--;
+            route.idle.remove(connection);
+
+            // Let a waiting exchange use the free slot
+            Exchange next = route.pending.poll();
+            if (next != null) {
+                open(route, next);
+            }
+        }
+    }
+
+    private enum ConnectionState {
+        connecting,
+        handshaking,
+        exchanging,
+        idle,
+        closed
+    }
+
+    /**
+     * A connection to a server, optionally over TLS, that carries one exchange at a time.
+     */
+    private class Connection {
+        final EventLoop loop;
+        final Route route;
+        final String host;
+        final int port;
+        final InetSocketAddress address;
+        final boolean secure;
+
+        SocketChannel channel;
+        SelectionKey key;
+        ConnectionState state;
+        // System.nanoTime() when the current wait times out
+        long deadline;
+
+        // TLS engine and its buffers, or null for plain http. netIn and netOut are left
+        // in fill mode between operations.
+        SSLEngine ssl;
+        ByteBuffer netIn;
+        ByteBuffer netOut;
+        long handshakeStartTime;
+
+        // Decrypted (or plain) bytes read from the server
+        ByteBuffer appIn;
+
+        Exchange exchange;
+        ResponseParser parser;
+        ByteBuffer outbound;
+        // Whether this exchange is reusing a kept-alive connection
+        boolean reused;
+        // Not reading, while the listener catches up with the body
+        boolean paused;
+
+        Connection(EventLoop loop, Route route, Exchange exchange) {
+            this.loop = loop;
+            this.route = route;
+            this.host = exchange.host;
+            this.port = exchange.port;
+            this.address = exchange.address;
+            this.secure = exchange.secure;
+            this.exchange = exchange;
+            exchange.connection = this;
+        }
+
+        void connect() throws IOException {
+            state = ConnectionState.connecting;
+            deadline = System.nanoTime() + exchange.request.connectTimeout * 1000000L;
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(loop.selector, 0, this);
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        private void connected() throws IOException {
+            appIn = ByteBuffer.allocate(readBufferSize);
+
+            if (!secure) {
+                start(exchange, false);
+                return;
+            }
+
+            try {
+                ssl = SSLContextCache.getSSLContext(HttpClientBuilder.getTrustPolicy()).createSSLEngine(host, port);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            ssl.setUseClientMode(true);
+            SSLSession session = ssl.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(Math.max(readBufferSize, session.getApplicationBufferSize()));
+
+            state = ConnectionState.handshaking;
+            deadline = System.nanoTime() + exchange.request.readTimeout * 1000000L;
+            handshakeStartTime = System.currentTimeMillis();
+            ssl.beginHandshake();
+            handshake();
+        }
+
+        /**
+         * Send this exchange's request on the connection.
+         */
+        void start(Exchange exchange, boolean reused) {
+            this.exchange = exchange;
+            exchange.connection = this;
+            this.reused = reused;
+            this.paused = false;
+            this.parser = new ResponseParser(exchange.request.method);
+            this.outbound = ByteBuffer.wrap(exchange.requestBytes);
+            state = ConnectionState.exchanging;
+            deadline = System.nanoTime() + exchange.request.readTimeout * 1000000L;
+
+            try {
+                flush();
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+
+        void idle() {
+            state = ConnectionState.idle;
+            paused = false;
+            exchange = null;
+            parser = null;
+            deadline = System.nanoTime() + idleTimeoutMillis * 1000000L;
+            // Watch for the server closing the connection
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReady(int readyOps) throws IOException {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                read();
+            }
+
+            if (state != ConnectionState.closed && (readyOps & SelectionKey.OP_WRITE) != 0) {
+                if (state == ConnectionState.handshaking) {
+                    handshake();
+                } else if (state == ConnectionState.exchanging) {
+                    flush();
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            int count = channel.read(secure ? netIn : appIn);
+            if (count > 0) {
+                deadline = System.nanoTime() + (exchange != null ? exchange.request.readTimeout : idleTimeoutMillis) * 1000000L;
+            }
+
+            if (state == ConnectionState.idle) {
+                // Late TLS housekeeping (like session tickets) is fine, but otherwise
+                // the server either closed the connection or sent something we
+                // didn't ask for.
+                if (count >= 0 && secure) {
+                    unwrapAvailable();
+                }
+                if (count < 0 || appIn.position() > 0) {
+                    close();
+                }
+                return;
+            }
+
+            if (state == ConnectionState.handshaking) {
+                if (count < 0) {
+                    throw new EOFException("Connection closed during TLS handshake");
+                }
+                handshake();
+                return;
+            }
+
+            if (secure) {
+                unwrapAvailable();
+            }
+
+            appIn.flip();
+            parser.consume(appIn);
+            appIn.clear();
+
+            if (!parser.isComplete() && count < 0) {
+                parser.endOfStream();
+            }
+
+            if (parser.hasHeaders()) {
+                exchange.succeed(parser.getResponse());
+            }
+
+            if (parser.isComplete()) {
+                completeExchange();
+            } else if (parser.hasHeaders()) {
+                pauseIfFull();
+            }
+        }
+
+        /**
+         * If the listener has fallen behind with the body, stop reading until it catches up.
+         */
+        private void pauseIfFull() {
+            final Exchange waiting = exchange;
+            boolean full = parser.getResponse().body.waitForSpace(new Runnable() {
+                @Override
+                public void run() {
+                    loop.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume(waiting);
+                        }
+                    });
+                }
+            });
+            if (full) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * The listener has read enough of waiting's body to read more.
+         */
+        private void resume(Exchange waiting) {
+            if (state != ConnectionState.exchanging || exchange != waiting || !paused) {
+                return;
+            }
+            paused = false;
+            deadline = System.nanoTime() + exchange.request.readTimeout * 1000000L;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Drive the TLS handshake as far as it can go without waiting for I/O.
+         */
+        private void handshake() throws IOException {
+            while (true) {
+                switch (ssl.getHandshakeStatus()) {
+                    case NOT_HANDSHAKING:
+                    case FINISHED:
+                        handshakeFinished();
+                        return;
+
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        break;
+
+                    case NEED_WRAP:
+                        SSLEngineResult wrapResult = ssl.wrap(ByteBuffer.allocate(0), netOut);
+                        if (wrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("TLS engine closed during handshake");
+                        }
+                        if (!flushNetOut()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        break;
+
+                    default:
+                        // NEED_UNWRAP
+                        netIn.flip();
+                        SSLEngineResult unwrapResult = ssl.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            netIn = ensureSpace(netIn, ssl.getSession().getPacketBufferSize());
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        if (unwrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void handshakeFinished() throws IOException {
+            SSLSession session = ssl.getSession();
+            SSLContextCache.handshakeCompleted(session, handshakeStartTime);
+
+            if (!SSLContextCache.getHostnameVerifier(HttpClientBuilder.getTrustPolicy()).verify(host, session)) {
+                throw new SSLPeerUnverifiedException("Certificate for '" + host + "' was not accepted");
+            }
+
+            start(exchange, false);
+        }
+
+        /**
+         * Decrypt whatever's in netIn into appIn.
+         */
+        private void unwrapAvailable() throws IOException {
+            netIn.flip();
+            try {
+                while (netIn.hasRemaining()) {
+                    SSLEngineResult result = ssl.unwrap(netIn, appIn);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        appIn = ensureSpace(appIn, ssl.getSession().getApplicationBufferSize());
+                        continue;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        break;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        break;
+                    }
+
+                    // Post-handshake messages, such as TLS 1.3 session tickets
+                    SSLEngineResult.HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+                    if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    } else if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        ssl.wrap(ByteBuffer.allocate(0), netOut);
+                        flushNetOut();
+                    }
+                }
+            } finally {
+                netIn.compact();
+            }
+            netIn = ensureSpace(netIn, ssl.getSession().getPacketBufferSize());
+        }
+
+        /**
+         * Write as much of the request as the socket will take.
+         */
+        private void flush() throws IOException {
+            if (secure) {
+                while (true) {
+                    if (!flushNetOut()) {
+                        break;
+                    }
+                    if (!outbound.hasRemaining()) {
+                        break;
+                    }
+                    SSLEngineResult result = ssl.wrap(outbound, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS engine closed");
+                    }
+                }
+            } else {
+                channel.write(outbound);
+            }
+
+            boolean pending = outbound.hasRemaining() || (secure && netOut.position() > 0);
+            int ops = paused ? 0 : SelectionKey.OP_READ;
+            key.interestOps(pending ? ops | SelectionKey.OP_WRITE : ops);
+        }
+
+        /**
+         * Write netOut to the socket. Returns true if it's all been written.
+         */
+        private boolean flushNetOut() throws IOException {
+            netOut.flip();
+            try {
+                while (netOut.hasRemaining()) {
+                    if (channel.write(netOut) == 0) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                netOut.compact();
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = ssl.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        private ByteBuffer ensureSpace(ByteBuffer buffer, int space) {
+            if (buffer.remaining() >= space) {
+                return buffer;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(buffer.position() + space);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        private void completeExchange() {
+            Exchange finished = exchange;
+            Response response = parser.getResponse();
+            boolean keepAlive = parser.isKeepAlive();
+
+            if (keepAlive) {
+                loop.release(this);
+            } else {
+                close();
+            }
+
+            response.body.end();
+            finished.succeed(response);
+        }
+
+        void onTimeout() {
+            if (state == ConnectionState.idle) {
+                close();
+            } else if (state == ConnectionState.connecting) {
+                onError(new SocketTimeoutException("Connect timed out"));
+            } else {
+                onError(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        void onError(IOException e) {
+            Exchange failed = exchange;
+
+            // Only retry if the server can't have acted on the request
+            boolean retry = reused && failed != null && !failed.retried && !failed.completed.get()
+                    && (parser == null || !parser.hasStarted())
+                    && (failed.isIdempotent() || outbound == null || outbound.position() == 0);
+            close();
+
+            if (failed == null) {
+                return;
+            }
+
+            if (retry && !(e instanceof SocketTimeoutException)) {
+                // A kept-alive connection the server had already closed - try once more
+                // on a fresh connection.
+                logger.fine("Retrying on a new connection after " + e);
+                failed.retried = true;
+                loop.dispatch(failed);
+                return;
+            }
+
+            failed.fail(e);
+        }
+
+        void close() {
+            if (state == ConnectionState.closed) {
+                return;
+            }
+            state = ConnectionState.closed;
+            exchange = null;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                logger.fine(e.toString());
+            }
+            loop.closed(this);
+        }
+    }
+
+    private enum ParserState {
+        head,
+        body,
+        chunkSize,
+        chunkData,
+        chunkDataEnd,
+        trailers,
+        bodyUntilClose,
+        complete
+    }
+
+    /**
+     * Incremental parser for a single HTTP/1.x response.
+     */
+    private static class ResponseParser {
+        private final boolean headRequest;
+        private ParserState state = ParserState.head;
+
+        // Current line, for the status line, headers, chunk sizes and trailers
+        private final StringBuilder line = new StringBuilder();
+        private boolean lineIsStatus = true;
+        private boolean started;
+
+        private final Response response = new Response();
+        private String httpVersion;
+        private long remaining;
+
+        // Created once the headers are complete
+        private BodyStream body;
+
+        ResponseParser(String method) {
+            this.headRequest = method.equals("HEAD");
+        }
+
+        boolean hasStarted() {
+            return started;
+        }
+
+        boolean isComplete() {
+            return state == ParserState.complete;
+        }
+
+        boolean hasHeaders() {
+            return body != null;
+        }
+
+        Response getResponse() {
+            return response;
+        }
+
+        boolean isKeepAlive() {
+            String connection = response.headers.get("connection");
+            if (connection != null && connection.toLowerCase(Locale.US).contains("close")) {
+                return false;
+            }
+            if ("HTTP/1.0".equals(httpVersion)) {
+                return connection != null && connection.toLowerCase(Locale.US).contains("keep-alive");
+            }
+            return true;
+        }
+
+        void endOfStream() throws IOException {
+            if (state == ParserState.bodyUntilClose) {
+                state = ParserState.complete;
+                // The body ended with the connection, so it can't be reused
+                response.headers.put("connection", "close");
+                return;
+            }
+            throw new EOFException("Connection closed before the response was complete");
+        }
+
+        void consume(ByteBuffer src) throws IOException {
+            if (src.hasRemaining()) {
+                started = true;
+            }
+
+            while (src.hasRemaining() && state != ParserState.complete) {
+                switch (state) {
+                    case head:
+                    case chunkSize:
+                    case chunkDataEnd:
+                    case trailers:
+                        if (readLine(src)) {
+                            onLine(line.toString());
+                            line.setLength(0);
+                        }
+                        break;
+
+                    case body:
+                    case chunkData: {
+                        int count = (int)Math.min(remaining, src.remaining());
+                        body.append(src, count);
+                        remaining -= count;
+                        if (remaining == 0) {
+                            state = state == ParserState.body ? ParserState.complete : ParserState.chunkDataEnd;
+                        }
+                        break;
+                    }
+
+                    case bodyUntilClose:
+                        body.append(src, src.remaining());
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Accumulate into line until LF. Returns true if a full line has been read.
+         */
+        private boolean readLine(ByteBuffer src) {
+            while (src.hasRemaining()) {
+                char c = (char)(src.get() & 0xff);
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return true;
+                }
+                line.append(c);
+            }
+            return false;
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (state) {
+                case head:
+                    if (lineIsStatus) {
+                        parseStatusLine(text);
+                        lineIsStatus = false;
+                    } else if (text.isEmpty()) {
+                        headersComplete();
+                    } else {
+                        int colon = text.indexOf(':');
+                        if (colon > 0) {
+                            response.headers.put(text.substring(0, colon).trim().toLowerCase(Locale.US), text.substring(colon + 1).trim());
+                        }
+                    }
+                    break;
+
+                case chunkSize: {
+                    int semicolon = text.indexOf(';');
+                    String size = (semicolon >= 0 ? text.substring(0, semicolon) : text).trim();
+                    try {
+                        remaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad chunk size: " + text);
+                    }
+                    state = remaining == 0 ? ParserState.trailers : ParserState.chunkData;
+                    break;
+                }
+
+                case chunkDataEnd:
+                    state = ParserState.chunkSize;
+                    break;
+
+                case trailers:
+                    if (text.isEmpty()) {
+                        state = ParserState.complete;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        private void parseStatusLine(String text) throws IOException {
+            // HTTP/1.1 200 OK
+            String[] parts = text.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line: " + text);
+            }
+            httpVersion = parts[0];
+            try {
+                response.statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line: " + text);
+            }
+            response.reasonPhrase = parts.length > 2 ? parts[2] : "";
+        }
+
+        private void headersComplete() throws IOException {
+            int status = response.statusCode;
+            if (status >= 100 && status < 200) {
+                // Interim response - the real one follows
+                response.headers.clear();
+                lineIsStatus = true;
+                return;
+            }
+
+            if (headRequest || status == 204 || status == 304) {
+                state = ParserState.complete;
+            } else {
+                String transferEncoding = response.headers.get("transfer-encoding");
+                String contentLength = response.headers.get("content-length");
+                if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                    state = ParserState.chunkSize;
+                } else if (contentLength != null) {
+                    try {
+                        remaining = Long.parseLong(contentLength);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad Content-Length: " + contentLength);
+                    }
+                    state = remaining == 0 ? ParserState.complete : ParserState.body;
+                } else {
+                    state = ParserState.bodyUntilClose;
+                }
+            }
+
+            body = new BodyStream();
+            response.body = body;
+        }
+    }
+
+    /**
+     * A response body, passed from the event loop that reads it to the listener's thread.
+     */
+    private static class BodyStream extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+        // Read position in the first chunk, and bytes waiting to be read
+        private int offset;
+        private int buffered;
+        private boolean ended;
+        private IOException error;
+        // The listener closed the stream; the rest of the body is discarded
+        private boolean closed;
+        // Runs once the listener has read enough for the loop to read more
+        private Runnable resume;
+
+        /**
+         * Called by the event loop with more of the body.
+         */
+        synchronized void append(ByteBuffer src, int count) {
+            if (closed || ended || error != null) {
+                src.position(src.position() + count);
+                return;
+            }
+            byte[] chunk = new byte[count];
+            src.get(chunk);
+            chunks.add(chunk);
+            buffered += count;
+            notifyAll();
+        }
+
+        /**
+         * The whole body has arrived.
+         */
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (ended || error != null) {
+                return;
+            }
+            error = e;
+            notifyAll();
+        }
+
+        synchronized boolean isEnded() {
+            return ended || error != null;
+        }
+
+        /**
+         * If the listener hasn't kept up, arrange for resume to run once it has, and
+         * return true. Returns false if there's still room.
+         */
+        synchronized boolean waitForSpace(Runnable resume) {
+            if (buffered < maxBufferedBodyBytes) {
+                return false;
+            }
+            this.resume = resume;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            Runnable resumeNow = null;
+            int count = 0;
+            synchronized(this) {
+                while (chunks.isEmpty() && !ended && error == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for the response body");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (chunks.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+
+                while (count < len && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int n = Math.min(len - count, chunk.length - offset);
+                    System.arraycopy(chunk, offset, b, off + count, n);
+                    count += n;
+                    offset += n;
+                    if (offset == chunk.length) {
+                        chunks.poll();
+                        offset = 0;
+                    }
+                }
+                buffered -= count;
+
+                if (resume != null && buffered <= maxBufferedBodyBytes / 2) {
+                    resumeNow = resume;
+                    resume = null;
+                }
+            }
+
+            if (resumeNow != null) {
+                resumeNow.run();
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffered;
+        }
+
+        @Override
+        public void close() {
+            Runnable resumeNow;
+            synchronized(this) {
+                closed = true;
+                chunks.clear();
+                buffered = 0;
+                resumeNow = resume;
+                resume = null;
+                notifyAll();
+            }
+
+            // Let the loop read, and discard, the rest
+            if (resumeNow != null) {
+                resumeNow.run();
+            }
+        }
+    }
+}
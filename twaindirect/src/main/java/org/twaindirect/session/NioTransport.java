@@ -0,0 +1,136 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.twaindirect.cloud.CloudBlockRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Transport that sends requests on a NioHttpClient. Methods return as soon as the request
+ * is queued, and the listener is called from one of the client's callback threads as
+ * soon as the response headers arrive. It reads the body as it streams in; whatever it
+ * leaves is discarded once it returns. Cancelling a request cancels its
+ * NioHttpClient.Call, which fails reads of a body still arriving.
+ */
+public class NioTransport implements Transport {
+    private final NioHttpClient client;
+
+    /**
+     * Use the process-wide NioHttpClient.
+     */
+    public NioTransport() {
+        this(NioHttpClient.getDefault());
+    }
+
+    public NioTransport(NioHttpClient client) {
+        this.client = client;
+    }
+
+    public NioHttpClient getClient() {
+        return client;
+    }
+
+    @Override
+    public void executeJson(HttpJsonRequest request, AsyncResult<TransportResponse> listener) {
+        execute(request.url, request.ipaddr, request.method, request.headers, request.requestBody,
+                request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    @Override
+    public void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener) {
+        execute(request.url, request.ipaddr, "POST", request.headers, request.requestBody,
+                request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    @Override
+    public void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener) {
+        execute(request.url, null, "GET", request.headers, null,
+                request.connectTimeout, request.readTimeout, request.canceller, listener);
+    }
+
+    private void execute(URI url, String ipaddr, String method, Map<String, String> headers, JSONObject requestBody,
+                         int connectTimeout, int readTimeout, final RequestCanceller canceller,
+                         final AsyncResult<TransportResponse> listener) {
+        NioHttpClient.Request request = new NioHttpClient.Request();
+        request.url = url;
+        request.ipaddr = ipaddr;
+        request.method = method;
+        request.connectTimeout = connectTimeout;
+        request.readTimeout = readTimeout;
+
+        request.headers.put("Content-Type", "application/json; charset=UTF-8");
+
+        // Set any custom headers
+        request.headers.putAll(headers);
+
+        if (requestBody != null) {
+            try {
+                request.body = requestBody.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                listener.onError(e);
+                return;
+            }
+        }
+
+        final CallAbort abort = new CallAbort();
+        if (canceller != null && !canceller.add(abort)) {
+            listener.onError(new RequestCancelledException());
+            return;
+        }
+
+        NioHttpClient.Call call = client.execute(request, new AsyncResult<NioHttpClient.Response>() {
+            @Override
+            public void onResult(NioHttpClient.Response response) {
+                InputStream body = response.getBodyStream();
+                try {
+                    listener.onResult(new TransportResponse(response.statusCode, response.getStatusLine(), body));
+                } finally {
+                    if (canceller != null) {
+                        canceller.remove(abort);
+                    }
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        // Nothing to do
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (canceller != null) {
+                    canceller.remove(abort);
+                }
+                listener.onError(e);
+            }
+        });
+        abort.setCall(call);
+    }
+
+    /**
+     * Cancels a call, once we have it. The canceller may run this before execute returns.
+     */
+    private static class CallAbort implements Runnable {
+        private NioHttpClient.Call call;
+        private boolean cancelled = false;
+
+        synchronized void setCall(NioHttpClient.Call call) {
+            this.call = call;
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            cancelled = true;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.twaindirect.session;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A PDF image passed to ImageDataListener. Small images are held in a buffer, larger
+ * ones in a file in the session's temp directory. The image is only valid until
+ * onImageReceived returns, after which the file is deleted.
+ */
+public class ReceivedImage {
+    private final ByteBuffer buffer;
+    private final File file;
+
+    ReceivedImage(ByteBuffer buffer) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.file = null;
+    }
+
+    ReceivedImage(File file) {
+        this.buffer = null;
+        this.file = file;
+    }
+
+    /**
+     * True if the image is held in memory, false if it's in a file.
+     */
+    public boolean isInMemory() {
+        return buffer != null;
+    }
+
+    /**
+     * Size of the image in bytes.
+     */
+    public long getSize() {
+        return buffer != null ? buffer.remaining() : file.length();
+    }
+
+    /**
+     * The file holding the image, or null if it's in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The image as a read-only buffer. An image in a file is memory mapped, not read.
+     */
+    public ByteBuffer getBuffer() throws IOException {
+        if (buffer != null) {
+            return buffer.duplicate();
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Open a stream to read the image. The caller must close it.
+     */
+    public InputStream openStream() throws IOException {
+        if (buffer != null) {
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Write the whole image to channel, for example a file the application keeps.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        if (buffer != null) {
+            ByteBuffer src = buffer.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            return;
+        }
+
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, channel);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Take the image, moving it to destination. An image in a file on the same filesystem
+     * is renamed rather than copied.
+     */
+    public void moveTo(File destination) throws IOException {
+        if (file != null && file.renameTo(destination)) {
+            return;
+        }
+
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            writeTo(out.getChannel());
+        } finally {
+            out.close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int len = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int len = (int)Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
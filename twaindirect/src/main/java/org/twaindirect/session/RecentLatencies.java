@@ -0,0 +1,55 @@
+package org.twaindirect.session;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent block downloads, and their percentiles.
+ *
+ * BlockDownloader uses this to decide when a download is taking unusually long, and
+ * DownloadMetrics reports the percentiles. Samples are kept in a fixed-size ring, so
+ * only the last capacity downloads count. All methods are thread safe.
+ */
+class RecentLatencies {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    // Reused for sorting, so a percentile doesn't allocate
+    private final long[] sorted;
+
+    RecentLatencies(int capacity) {
+        samples = new long[capacity];
+        sorted = new long[capacity];
+    }
+
+    synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Number of samples held, up to the capacity.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * The latency that percentile percent of the recent samples are at or below, or -1
+     * if there are none.
+     */
+    synchronized long percentile(double percent) {
+        if (count == 0) {
+            return -1;
+        }
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+
+        // Nearest rank
+        int rank = (int)Math.ceil(percent / 100 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+}
@@ -0,0 +1,15 @@
+package org.twaindirect.session;
+
+import java.io.IOException;
+
+/**
+ * A request failed because it was cancelled through its RequestCanceller, usually
+ * because the session is closing.
+ */
+public class RequestCancelledException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RequestCancelledException() {
+        super("Request cancelled");
+    }
+}
@@ -0,0 +1,98 @@
+package org.twaindirect.session;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cancels a group of requests that are in flight, such as a session's block downloads
+ * and waitForEvents long-poll.
+ *
+ * While a request is running, whatever is running it (the Transport, or HttpJsonRequest
+ * while it waits for a cloud response) adds an abort action, and removes it when the
+ * request finishes. cancel runs every abort action; the request then fails promptly with
+ * a RequestCancelledException, or whatever error the aborted connection produces, rather
+ * than waiting for its timeout. Once cancelled, a RequestCanceller stays cancelled, and
+ * requests started with it fail straight away.
+ *
+ * A RequestCanceller can have a parent, to cancel one of the parent's requests on its
+ * own: cancelling the parent cancels it too, but cancelling it leaves the parent's other
+ * requests running.
+ */
+public class RequestCanceller {
+    private final RequestCanceller parent;
+    private boolean cancelled = false;
+    private final Set<Runnable> aborts = new LinkedHashSet<Runnable>();
+
+    public RequestCanceller() {
+        this(null);
+    }
+
+    public RequestCanceller(RequestCanceller parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Run abort if the requests are cancelled. Returns false, without adding it, if
+     * they already have been.
+     */
+    public boolean add(Runnable abort) {
+        synchronized(this) {
+            if (cancelled) {
+                return false;
+            }
+            aborts.add(abort);
+        }
+
+        if (parent != null && !parent.add(abort)) {
+            remove(abort);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The request abort was added for has finished.
+     */
+    public void remove(Runnable abort) {
+        synchronized(this) {
+            aborts.remove(abort);
+        }
+        if (parent != null) {
+            parent.remove(abort);
+        }
+    }
+
+    public boolean isCancelled() {
+        synchronized(this) {
+            if (cancelled) {
+                return true;
+            }
+        }
+        return parent != null && parent.isCancelled();
+    }
+
+    /**
+     * Abort every request in flight, and fail any started later.
+     */
+    public void cancel() {
+        List<Runnable> running;
+        synchronized(this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            running = new ArrayList<Runnable>(aborts);
+            aborts.clear();
+        }
+
+        // Outside the lock, as aborting may call back into the request's listener
+        for (Runnable abort : running) {
+            if (parent != null) {
+                parent.remove(abort);
+            }
+            abort.run();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.twaindirect.session;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Process-wide cache of the SSLContexts used to talk to scanners.
+ *
+ * Building an SSLContext is expensive, and TLS sessions can only be resumed by a later
+ * connection that uses the same SSLContext, so there is one context per trust policy
+ * for the life of the process. Repeat connections to the same scanner then use an
+ * abbreviated handshake instead of the full key exchange.
+ *
+ * With TrustPolicy.pinOnFirstUse, the scanner's certificate fingerprint is recorded the
+ * first time we connect to a host. Later connections presenting the same certificate
+ * are accepted without any further trust or hostname checks, and a different
+ * certificate for a pinned host is rejected. Once a host's certificate has matched its
+ * pin, later handshakes compare the certificate with that one instead of hashing it again.
+ *
+ * Handshake and resumption counters are kept so the savings can be checked under load.
+ */
+public class SSLContextCache {
+    private static final Logger logger = Logger.getLogger(SSLContextCache.class.getName());
+
+    // Seconds a TLS session stays resumable
+    private static final int sessionTimeoutSeconds = 24 * 60 * 60;
+
+    public enum TrustPolicy {
+        // Accept the scanner's self-signed certificate (or any CA-signed certificate)
+        trustSelfSigned,
+        // As trustSelfSigned, but remember each host's certificate on first contact
+        // and only accept that certificate afterwards
+        pinOnFirstUse
+    }
+
+    private static final Map<TrustPolicy, SSLContext> contexts = new EnumMap<>(TrustPolicy.class);
+    private static final Map<TrustPolicy, SSLConnectionSocketFactory> socketFactories = new EnumMap<>(TrustPolicy.class);
+
+    // Host name to the SHA-256 fingerprint of its certificate
+    private static final Map<String, String> pins = Collections.synchronizedMap(new HashMap<String, String>());
+
+    // Host name to the certificate that last matched its pin
+    private static final Map<String, Certificate> pinnedCertificates = Collections.synchronizedMap(new HashMap<String, Certificate>());
+
+    private static final X509HostnameVerifier pinningHostnameVerifier = new PinningHostnameVerifier(SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+
+    private static final AtomicLong handshakeCount = new AtomicLong();
+    private static final AtomicLong resumedHandshakeCount = new AtomicLong();
+
+    /**
+     * Get the SSLContext for this trust policy, creating it on first use.
+     */
+    public static SSLContext getSSLContext(TrustPolicy trustPolicy) throws GeneralSecurityException {
+        synchronized(contexts) {
+            SSLContext context = contexts.get(trustPolicy);
+            if (context == null) {
+                TrustStrategy trustStrategy = trustPolicy == TrustPolicy.pinOnFirstUse ? new PinnedTrustStrategy() : new TrustSelfSignedStrategy();
+                context = new SSLContextBuilder().loadTrustMaterial(null, trustStrategy).build();
+                context.getClientSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+                contexts.put(trustPolicy, context);
+                logger.fine("Created SSLContext for " + trustPolicy);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Get the socket factory for this trust policy. The factory counts handshakes and,
+     * for pinOnFirstUse, applies the pins.
+     */
+    public static SSLConnectionSocketFactory getSocketFactory(TrustPolicy trustPolicy) throws GeneralSecurityException {
+        synchronized(contexts) {
+            SSLConnectionSocketFactory socketFactory = socketFactories.get(trustPolicy);
+            if (socketFactory == null) {
+                socketFactory = new CountingSocketFactory(getSSLContext(trustPolicy), getHostnameVerifier(trustPolicy));
+                socketFactories.put(trustPolicy, socketFactory);
+            }
+            return socketFactory;
+        }
+    }
+
+    /**
+     * Get the hostname verifier for this trust policy. For connections that don't go
+     * through getSocketFactory, such as NioHttpClient's.
+     */
+    public static X509HostnameVerifier getHostnameVerifier(TrustPolicy trustPolicy) {
+        if (trustPolicy == TrustPolicy.pinOnFirstUse) {
+            return pinningHostnameVerifier;
+        }
+        return SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+    }
+
+    /**
+     * Report the socket's handshake to the counters when it completes.
+     */
+    static void countHandshake(SSLSocket socket) {
+        final long handshakeStartTime = System.currentTimeMillis();
+        socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                SSLContextCache.handshakeCompleted(event.getSession(), handshakeStartTime);
+            }
+        });
+    }
+
+    /**
+     * Record a completed handshake in the counters. A handshake resumed an earlier TLS
+     * session if the session was created before this connection started its handshake.
+     */
+    static void handshakeCompleted(SSLSession session, long handshakeStartTime) {
+        handshakeCount.incrementAndGet();
+        if (session.getCreationTime() < handshakeStartTime) {
+            resumedHandshakeCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Total TLS handshakes completed, including resumptions.
+     */
+    public static long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /**
+     * Handshakes that resumed an earlier TLS session (an abbreviated handshake).
+     */
+    public static long getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    public static void resetCounters() {
+        handshakeCount.set(0);
+        resumedHandshakeCount.set(0);
+    }
+
+    /**
+     * Get the SHA-256 fingerprint pinned for a host, or null if we haven't connected
+     * to it with TrustPolicy.pinOnFirstUse. The application can save this and restore
+     * it with setPin in a later run.
+     */
+    public static String getPin(String host) {
+        return pins.get(host.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Pin a host to a certificate fingerprint, or remove the pin if fingerprint is null.
+     */
+    public static void setPin(String host, String fingerprint) {
+        String key = host.toLowerCase(Locale.US);
+        synchronized(pins) {
+            pinnedCertificates.remove(key);
+            if (fingerprint == null) {
+                pins.remove(key);
+            } else {
+                pins.put(key, fingerprint.toLowerCase(Locale.US));
+            }
+        }
+    }
+
+    public static void clearPins() {
+        synchronized(pins) {
+            pins.clear();
+            pinnedCertificates.clear();
+        }
+    }
+
+    /**
+     * Remember the certificate that matched a host's pin, unless the pin has changed since.
+     */
+    private static void rememberPinnedCertificate(String host, String fingerprint, Certificate certificate) {
+        String key = host.toLowerCase(Locale.US);
+        synchronized(pins) {
+            if (fingerprint.equals(pins.get(key))) {
+                pinnedCertificates.put(key, certificate);
+            }
+        }
+    }
+
+    static String fingerprint(Certificate certificate) throws CertificateEncodingException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Accept a certificate we've already pinned without further checks, otherwise
+     * fall back to the self-signed rules. Pins are bound to hosts by PinningHostnameVerifier.
+     *
+     * A certificate that has already matched a pin is accepted without hashing it, and
+     * nothing is hashed while there are no pins.
+     */
+    private static class PinnedTrustStrategy extends TrustSelfSignedStrategy {
+        @Override
+        public boolean isTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            if (chain.length == 0 || pins.isEmpty()) {
+                return super.isTrusted(chain, authType);
+            }
+            if (pinnedCertificates.containsValue(chain[0])) {
+                return true;
+            }
+            if (pins.containsValue(fingerprint(chain[0]))) {
+                return true;
+            }
+            return super.isTrusted(chain, authType);
+        }
+    }
+
+    /**
+     * Checks the peer certificate against the host's pin, learning the pin on first contact.
+     */
+    private static class PinningHostnameVerifier implements X509HostnameVerifier {
+        private final X509HostnameVerifier firstContactVerifier;
+
+        PinningHostnameVerifier(X509HostnameVerifier firstContactVerifier) {
+            this.firstContactVerifier = firstContactVerifier;
+        }
+
+        @Override
+        public void verify(String host, SSLSocket ssl) throws IOException {
+            Certificate certificate = ssl.getSession().getPeerCertificates()[0];
+            if (!checkPin(host, certificate)) {
+                firstContactVerifier.verify(host, ssl);
+                learnPin(host, certificate);
+            }
+        }
+
+        @Override
+        public void verify(String host, X509Certificate cert) throws SSLException {
+            if (!checkPin(host, cert)) {
+                firstContactVerifier.verify(host, cert);
+                learnPin(host, cert);
+            }
+        }
+
+        @Override
+        public void verify(String host, String[] cns, String[] subjectAlts) throws SSLException {
+            firstContactVerifier.verify(host, cns, subjectAlts);
+        }
+
+        @Override
+        public boolean verify(String host, SSLSession session) {
+            try {
+                Certificate certificate = session.getPeerCertificates()[0];
+                if (!checkPin(host, certificate)) {
+                    if (!firstContactVerifier.verify(host, session)) {
+                        return false;
+                    }
+                    learnPin(host, certificate);
+                }
+                return true;
+            } catch (SSLException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Returns true if the certificate matches the host's pin, false if the host
+         * isn't pinned yet, and throws if it's pinned to a different certificate.
+         * The certificate is only hashed if it isn't the one that matched last time.
+         */
+        private boolean checkPin(String host, Certificate certificate) throws SSLException {
+            String key = host.toLowerCase(Locale.US);
+            if (certificate.equals(pinnedCertificates.get(key))) {
+                return true;
+            }
+
+            String pin = pins.get(key);
+            if (pin == null) {
+                return false;
+            }
+
+            if (!pin.equals(fingerprintOf(certificate))) {
+                throw new SSLPeerUnverifiedException("Certificate for " + host + " doesn't match the pinned certificate");
+            }
+            rememberPinnedCertificate(host, pin, certificate);
+            return true;
+        }
+
+        private void learnPin(String host, Certificate certificate) throws SSLException {
+            String fingerprint = fingerprintOf(certificate);
+            setPin(host, fingerprint);
+            rememberPinnedCertificate(host, fingerprint, certificate);
+            logger.info("Pinned certificate for " + host);
+        }
+
+        private String fingerprintOf(Certificate certificate) throws SSLException {
+            try {
+                return fingerprint(certificate);
+            } catch (CertificateEncodingException e) {
+                throw new SSLPeerUnverifiedException(e.toString());
+            }
+        }
+    }
+
+    /**
+     * Socket factory that reports completed handshakes to the counters.
+     */
+    private static class CountingSocketFactory extends SSLConnectionSocketFactory {
+        CountingSocketFactory(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+            super(sslContext, hostnameVerifier);
+        }
+
+        @Override
+        protected void prepareSocket(SSLSocket socket) throws IOException {
+            countHandshake(socket);
+        }
+    }
+}
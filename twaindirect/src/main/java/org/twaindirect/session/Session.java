@@ -10,14 +10,15 @@ import org.twaindirect.cloud.CloudEventBroker;
 import java.io.File;
 import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,8 +36,8 @@ import java.util.logging.Logger;
  * Your callback will be called, possibly repeatedly, with scanned images. When the
  * process is complete, the listener's onDoneCapturing will be called.
  *
- * Downloaded blocks are stored in tempdir and once all the parts of an image
- * are readyToDownload, they are combined into a final file and delivered to
+ * Downloaded blocks are written into the image's file in tempdir, and once all
+ * the parts of an image have arrived, the file is delivered to
  * sessionListener.onImageReceived.
  *
  * Many functions accept an AsyncResult or AsyncResponse. The success or failure
@@ -50,8 +51,15 @@ public class Session {
 
     private static final Logger logger = Logger.getLogger(Session.class.getName());
 
-    // Thread that manages the waitForEvents long-poll
-    private Thread eventListenerThread;
+    // Sends the waitForEvents long-polls, shared with other sessions
+    private EventPoller eventPoller = EventPoller.getDefault();
+
+    // Counts cancelRequests calls, so polls scheduled before one aren't sent
+    private int pollGeneration;
+
+    // Cancels the block downloads and waitForEvents long-poll in flight when the session
+    // closes. Replaced each time it's used.
+    private RequestCanceller requestCanceller = new RequestCanceller();
 
     private boolean stopping;
     private File tempDir;
@@ -60,9 +68,8 @@ public class Session {
     // session open even when the scanner stops capturing.
     private boolean paused;
 
-    // Map of block number to the associated ImageBlockInfo for files we've received.
-    // The file data is in tempDir at the filename generated by ImageBlockInfo.partFileName()
-    private Map<Integer, ImageBlockInfo> files = new HashMap<>();
+    // Block numbers from the latest session update, reused between updates
+    private int[] imageBlocksScratch = new int[64];
 
     private static final String TAG = "Session";
 
@@ -94,8 +101,29 @@ public class Session {
      */
     private static final int numWaitForEventsRetriesAllowed = 3;
 
+    /**
+     * After a waitForEvents failure, we wait a random time between half and all of this
+     * backoff before polling again, doubling it with each successive failure up to the
+     * maximum. After a response we poll again straight away.
+     */
+    private static final int waitForEventsRetryBaseDelayMillis = 500;
+    private static final int waitForEventsRetryMaxDelayMillis = 8000;
+    private final Random waitForEventsJitter = new Random();
+
+    // Time from each recent waitForEvents response to sending the next waitForEvents
+    private final RecentLatencies waitForEventsGaps = new RecentLatencies(64);
+    private long lastEventsResponseNanos;
+
+    // Handles command and waitForEvents responses, so the session's state is only
+    // changed on this one thread, whichever transport the responses arrive through
     private ExecutorService executor = Executors.newFixedThreadPool(1);
 
+    // Commands waiting to be sent. Commands go to the scanner one at a time: the next is
+    // sent once the response to the one before has been handled, whether or not the
+    // transport held the executor's thread while it waited.
+    private final Queue<HttpJsonRequest> commands = new ArrayDeque<>();
+    private boolean commandInProgress;
+
     public enum State {
         noSession,
         ready,
@@ -137,6 +165,46 @@ public class Session {
     private final CloudEventBroker cloudEventBroker;
     private final CloudConnection cloudConnection;
 
+    // Sends this session's requests
+    private Transport transport = ApacheTransport.getDefault();
+
+    // Range for the number of simultaneous block downloads
+    private int minDownloadWindow = BlockDownloader.DEFAULT_MIN_WINDOW_SIZE;
+    private int maxDownloadWindow = BlockDownloader.DEFAULT_MAX_WINDOW_SIZE;
+
+    // Runs image block downloads, if the application supplied one
+    private Executor downloadExecutor;
+
+    // Assembles images and calls onImageReceived, if the application supplied one
+    private Executor deliveryExecutor;
+
+    // Deliver images as soon as they're complete, rather than in order
+    private boolean outOfOrderDelivery;
+
+    // Receives images in memory instead of sessionListener, if set
+    private ImageDataListener imageDataListener;
+    private int inMemoryImageThreshold = BlockDownloader.DEFAULT_IN_MEMORY_IMAGE_THRESHOLD;
+    private boolean directImageBuffers;
+
+    // Chooses where images are written, if the application supplied one
+    private ImageDestination imageDestination;
+
+    // Receives each part of an image as it arrives, if the application supplied one
+    private ImagePartListener imagePartListener;
+
+    // How finished blocks are collected before releasing them to the scanner
+    private int releaseBlocks = BlockDownloader.DEFAULT_RELEASE_BLOCKS;
+    private int releaseDelayMillis = BlockDownloader.DEFAULT_RELEASE_DELAY_MILLIS;
+
+    // How failed block downloads are retried, passed to the BlockDownloader
+    private int maxBlockAttempts = BlockDownloader.DEFAULT_MAX_BLOCK_ATTEMPTS;
+    private int retryBaseDelayMillis = BlockDownloader.DEFAULT_RETRY_BASE_DELAY_MILLIS;
+    private int retryMaxDelayMillis = BlockDownloader.DEFAULT_RETRY_MAX_DELAY_MILLIS;
+
+    // When slow block downloads get a second request, passed to the BlockDownloader
+    private double hedgePercentile = BlockDownloader.DEFAULT_HEDGE_PERCENTILE;
+    private int minHedgeDelayMillis = BlockDownloader.DEFAULT_MIN_HEDGE_DELAY_MILLIS;
+
     /**
      * Prepare a TWAIN Local session
      * @param url For example, https://myscanner.local:34034
@@ -159,6 +227,7 @@ public class Session {
         this.url = scannerUrl;
         this.cloudEventBroker = cloudEventBroker;
         this.cloudConnection = cloudConnection;
+        this.transport = cloudConnection.getTransport();
         reset();
 
         logger.info("Cloud session startup");
@@ -195,6 +264,209 @@ public class Session {
         this.tempDir = tempDir;
     }
 
+    /**
+     * Set the transport used for this session's requests, including image block downloads.
+     * Defaults to ApacheTransport, or for a cloud session, the CloudConnection's transport.
+     * Use NioTransport so requests don't hold a thread while waiting for the scanner.
+     * Set this before opening the session.
+     * @param transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set the poller that sends this session's waitForEvents long-polls. Defaults to
+     * EventPoller.getDefault(), shared by all sessions. Set this before opening the session.
+     * @param eventPoller
+     */
+    public void setEventPoller(EventPoller eventPoller) {
+        this.eventPoller = eventPoller;
+    }
+
+    /**
+     * Set the range for the number of image blocks downloaded at once. The number adapts
+     * to the measured throughput and block latency within this range. If you raise the
+     * maximum above the default, raise HttpClientBuilder.setMaxConnectionsPerRoute to
+     * match (the maximum plus two), before the first request: the default NioHttpClient
+     * sizes its callback threads from it.
+     * @param minWindowSize At least 1
+     * @param maxWindowSize At least minWindowSize
+     */
+    public void setDownloadWindowLimits(int minWindowSize, int maxWindowSize) {
+        if (minWindowSize < 1 || maxWindowSize < minWindowSize) {
+            throw new IllegalArgumentException("Invalid download window limits " + minWindowSize + ".." + maxWindowSize);
+        }
+        this.minDownloadWindow = minWindowSize;
+        this.maxDownloadWindow = maxWindowSize;
+        BlockDownloader downloader = blockDownloader;
+        if (downloader != null) {
+            downloader.setWindowLimits(minWindowSize, maxWindowSize);
+        }
+    }
+
+    /**
+     * Set the executor that runs image block downloads, for example to share one thread
+     * pool between sessions. The application owns the executor and must shut it down.
+     * By default each session uses its own small pool. Set this before startCapturing.
+     * @param executor
+     */
+    public void setDownloadExecutor(Executor executor) {
+        this.downloadExecutor = executor;
+    }
+
+    /**
+     * Set the executor that assembles received images and calls
+     * SessionListener.onImageReceived. Images are still delivered one at a time, in order.
+     * The application owns the executor. By default each session uses its own thread.
+     * Set this before startCapturing.
+     * @param executor
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        this.deliveryExecutor = executor;
+    }
+
+    /**
+     * Images are normally delivered to onImageReceived in the order the scanner produced
+     * them, so a large image delays the smaller ones behind it. Set outOfOrder to true to
+     * have each image delivered as soon as all of its blocks have downloaded; use the
+     * sheet and image numbers in the metadata to put them in order.
+     * Set this before startCapturing.
+     * @param outOfOrder
+     */
+    public void setOutOfOrderDelivery(boolean outOfOrder) {
+        this.outOfOrderDelivery = outOfOrder;
+    }
+
+    /**
+     * Deliver images to listener instead of SessionListener.onImageReceived. Images no
+     * larger than the in-memory threshold are assembled in memory and never touch the
+     * disk; larger ones are spilled to a file in tempDir.
+     * Set this before startCapturing.
+     * @param listener
+     */
+    public void setImageDataListener(ImageDataListener listener) {
+        this.imageDataListener = listener;
+    }
+
+    /**
+     * Set the largest image, in bytes, that's delivered to the ImageDataListener in memory.
+     * Default 1 MB. Set this before startCapturing.
+     * @param bytes
+     */
+    public void setInMemoryImageThreshold(int bytes) {
+        this.inMemoryImageThreshold = bytes;
+    }
+
+    /**
+     * Hold in-memory images in direct (off-heap) buffers rather than on the Java heap.
+     * Set this before startCapturing.
+     * @param direct
+     */
+    public void setDirectImageBuffers(boolean direct) {
+        this.directImageBuffers = direct;
+    }
+
+    /**
+     * Have each image written straight to a file the application chooses, instead of a
+     * file in tempDir that the listener has to copy. The file is passed to
+     * onImageReceived as usual, and isn't deleted afterwards.
+     * Set this before startCapturing.
+     * @param destination
+     */
+    public void setImageDestination(ImageDestination destination) {
+        this.imageDestination = destination;
+    }
+
+    /**
+     * Have each part of an image passed to listener, in order, as soon as it arrives,
+     * so work on large images can start before they're complete. The complete image is
+     * still delivered to onImageReceived afterwards.
+     * Set this before startCapturing.
+     * @param listener
+     */
+    public void setImagePartListener(ImagePartListener listener) {
+        this.imagePartListener = listener;
+    }
+
+    /**
+     * Downloaded blocks are released to the scanner in contiguous ranges, so that one
+     * releaseImageBlocks command frees several blocks. Blocks are released as soon as no
+     * other downloads are running, or once maxBlocks have been collected, or after
+     * delayMillis, whichever is first. The defaults are 8 blocks and 20 ms.
+     * setBlockRelease(1, 0) releases every block on its own.
+     * Set this before startCapturing.
+     * @param maxBlocks
+     * @param delayMillis
+     */
+    public void setBlockRelease(int maxBlocks, int delayMillis) {
+        if (maxBlocks < 1 || delayMillis < 0) {
+            throw new IllegalArgumentException("Invalid block release limits " + maxBlocks + ", " + delayMillis);
+        }
+        this.releaseBlocks = maxBlocks;
+        this.releaseDelayMillis = delayMillis;
+    }
+
+    /**
+     * A block download that fails, for instance because the connection dropped part way
+     * through, is tried again up to maxAttempts attempts in all. Before each retry the
+     * downloader waits a random time between half and all of a delay that starts at
+     * baseDelayMillis and doubles with each failure, up to maxDelayMillis. A TWAIN Cloud
+     * block is resumed from where it stopped, if the server supports Range requests.
+     * SessionListener.onConnectionError is called only when a block has no attempts left.
+     * The defaults are 5 attempts, 250 ms and 8 seconds.
+     * Set this before startCapturing.
+     * @param maxAttempts
+     * @param baseDelayMillis
+     * @param maxDelayMillis
+     */
+    public void setBlockRetry(int maxAttempts, int baseDelayMillis, int maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid block retry limits " + maxAttempts + ", " + baseDelayMillis + ", " + maxDelayMillis);
+        }
+        this.maxBlockAttempts = maxAttempts;
+        this.retryBaseDelayMillis = baseDelayMillis;
+        this.retryMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * One slow block holds up delivery of every image after it. To cut that tail, once a
+     * block download has taken longer than percentile percent of recent blocks, and at
+     * least minDelayMillis, a second request for the block is sent on another connection
+     * if one is free. Whichever request finishes first is used, and the other is
+     * cancelled. DownloadMetrics reports how often this happens and how often the second
+     * request wins. The defaults are the 95th percentile and 250 ms; a percentile of 0
+     * turns hedging off.
+     * Set this before startCapturing.
+     * @param percentile
+     * @param minDelayMillis
+     */
+    public void setHedging(double percentile, int minDelayMillis) {
+        if (percentile < 0 || percentile > 100 || minDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid hedging settings " + percentile + ", " + minDelayMillis);
+        }
+        this.hedgePercentile = percentile;
+        this.minHedgeDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Get a snapshot of image block download progress, including the current download
+     * window, or null if capturing hasn't started.
+     */
+    public DownloadMetrics getDownloadMetrics() {
+        BlockDownloader downloader = blockDownloader;
+        if (downloader == null) {
+            return null;
+        }
+        DownloadMetrics metrics = downloader.getMetrics();
+        metrics.waitForEventsGapP99Millis = Math.max(0, waitForEventsGaps.percentile(99) / 1000000);
+        return metrics;
+    }
+
     /**
      * Get the scanner's state, as reported by the scanner when we last heard from it,
      * either asynchronously or in the response to a request.
@@ -240,6 +512,7 @@ public class Session {
         HttpJsonRequest request =  new HttpJsonRequest();
         request.url = infoUrl;
         request.ipaddr = scannerIp;
+        request.transport = transport;
         request.listener = listener;
         request.cloudEventBroker = cloudEventBroker;
         request.cloudConnection = cloudConnection;
@@ -247,7 +520,7 @@ public class Session {
         // Must be included, but empty
         request.headers.put("X-Privet-Token", "");
 
-        executor.submit(request);
+        sendCommand(request);
     }
 
     /**
@@ -313,6 +586,7 @@ public class Session {
                 request.requestBody = body;
                 request.headers.put("X-Privet-Token", privetToken);
                 request.ipaddr = scannerIp;
+                request.transport = transport;
                 request.cloudConnection = cloudConnection;
                 request.cloudEventBroker = cloudEventBroker;
 
@@ -352,7 +626,7 @@ public class Session {
                     }
                 };
 
-                executor.submit(request);
+                sendCommand(request);
             } catch (JSONException e) {
                 listener.onError(e);
             }
@@ -397,7 +671,7 @@ public class Session {
                 }
             };
 
-            executor.submit(request);
+            sendCommand(request);
         } catch (JSONException e) {
             listener.onError(e);
         }
@@ -405,13 +679,15 @@ public class Session {
 
 
     /**
-     * Close the sesssion.
+     * Close the sesssion. Block downloads and the waitForEvents long-poll in flight are
+     * cancelled right away, and partly downloaded images are deleted.
      *
      * @param listener
      */
     public void close(final AsyncResponse listener) {
         try {
             stopping = true;
+            cancelRequests();
 
             // Create and send the createSession request
             JSONObject params = new JSONObject();
@@ -450,7 +726,7 @@ public class Session {
                 }
             };
 
-            executor.submit(request);
+            sendCommand(request);
         } catch (JSONException e) {
             listener.onError(e);
         }
@@ -505,7 +781,7 @@ public class Session {
             }
         };
 
-        executor.submit(request);
+        sendCommand(request);
     }
 
     /**
@@ -524,9 +800,26 @@ public class Session {
             return;
         }
 
+        if (blockDownloader != null) {
+            blockDownloader.shutdown();
+        }
         blockDownloader = new BlockDownloader(this, tempDir, sessionListener, cloudEventBroker);
-
-        files.clear();
+        blockDownloader.setWindowLimits(minDownloadWindow, maxDownloadWindow);
+        if (downloadExecutor != null) {
+            blockDownloader.setDownloadExecutor(downloadExecutor);
+        }
+        if (deliveryExecutor != null) {
+            blockDownloader.setDeliveryExecutor(deliveryExecutor);
+        }
+        blockDownloader.setOutOfOrderDelivery(outOfOrderDelivery);
+        if (imageDataListener != null) {
+            blockDownloader.setImageDataListener(imageDataListener, inMemoryImageThreshold, directImageBuffers);
+        }
+        blockDownloader.setImageDestination(imageDestination);
+        blockDownloader.setImagePartListener(imagePartListener);
+        blockDownloader.setBlockRelease(releaseBlocks, releaseDelayMillis);
+        blockDownloader.setBlockRetry(maxBlockAttempts, retryBaseDelayMillis, retryMaxDelayMillis);
+        blockDownloader.setHedging(hedgePercentile, minHedgeDelayMillis);
 
         HttpJsonRequest request = createJsonRequest("startCapturing", params);
 
@@ -557,91 +850,231 @@ public class Session {
         };
 
         paused = false;
-        executor.submit(request);
+        sendCommand(request);
     }
 
     /**
-     * Listen for events, synchronously. Intended to be called from the event listener thread,
-     * and called again on timeout or error as long as we are supposed to be listening.
-     * Returns false if the listener should not be called again for this session.
+     * Send a command once the commands before it have completed. Its listener is called
+     * on the executor.
      */
-    private boolean syncListen() throws JSONException {
-        JSONObject params = new JSONObject();
-        params.put("sessionId", sessionId);
-        params.put("sessionRevision", sessionRevision);
-        HttpJsonRequest request = createJsonRequest("waitForEvents", params);
-
-        if (waitForEventsRetryCount >= numWaitForEventsRetriesAllowed) {
-            // Don't schedule another wait
-            return false;
-        }
-
-        // 30 seconds is the recommended poll timeout
-        request.readTimeout = 30000;
-
-        final boolean shouldContinue[] = new boolean[1];
-        shouldContinue[0] = true;
-
+    private void sendCommand(HttpJsonRequest request) {
+        final AsyncResult<JSONObject> listener = request.listener;
+        final AtomicBoolean completed = new AtomicBoolean();
+        request.listenerExecutor = executor;
         request.listener = new AsyncResult<JSONObject>() {
             @Override
             public void onResult(JSONObject result) {
-                logger.log(Level.FINE, "Event received: " + result.toString());
+                try {
+                    listener.onResult(result);
+                } finally {
+                    if (completed.compareAndSet(false, true)) {
+                        sendNextCommand();
+                    }
+                }
+            }
 
+            @Override
+            public void onError(Exception e) {
                 try {
-                    JSONObject results = result.getJSONObject("results");
-                    if (!results.getBoolean("success")) {
-                        logger.log(Level.SEVERE, "waitForEvents reported error");
-                        shouldContinue[0] = false;
-                        return;
+                    listener.onError(e);
+                } finally {
+                    if (completed.compareAndSet(false, true)) {
+                        sendNextCommand();
                     }
+                }
+            }
+        };
 
-                    // We received a successful response, so reset the retry count.
-                    waitForEventsRetryCount = 0;
-
-                    // Process the events we just received
-                    JSONArray events = results.getJSONArray("events");
-                    for (int i=0; i<events.length(); i++) {
-                        JSONObject event = events.getJSONObject(i);
-                        JSONObject session = event.getJSONObject("session");
-                        int revision = session.getInt("revision");
-                        if (revision < sessionRevision) {
-                            // Ignore as we've already seen this revision
-                            continue;
-                        }
+        synchronized(commands) {
+            commands.add(request);
+            if (commandInProgress) {
+                return;
+            }
+            commandInProgress = true;
+        }
+        sendNextCommand();
+    }
 
-                        updateSession(session);
-                    }
+    /**
+     * Send the next command waiting, if there is one, from the executor.
+     */
+    private void sendNextCommand() {
+        final HttpJsonRequest request;
+        synchronized(commands) {
+            request = commands.poll();
+            if (request == null) {
+                commandInProgress = false;
+                return;
+            }
+        }
 
-                } catch (SessionException e) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.run();
+                } catch (RuntimeException e) {
                     logger.severe(e.toString());
-                    waitForEventsRetryCount++;
+                    request.listener.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the next waitForEvents long-poll from the event poller, after delayMillis,
+     * unless the session has stopped or its requests have been cancelled since.
+     */
+    private void schedulePoll(final int generation, long delayMillis) {
+        eventPoller.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (stopping || generation != getPollGeneration()) {
+                    return;
+                }
+                try {
+                    listenForEvents(generation);
                 } catch (JSONException e) {
+                    // JSON exceptions are unexpected - should not happen at runtime
                     logger.severe(e.toString());
-                    waitForEventsRetryCount++;
                 }
             }
+        }, delayMillis);
+    }
+
+    /**
+     * Send a waitForEvents long-poll. Called on an event poller thread, and with a
+     * non-blocking transport, or in cloud mode, returns before the response arrives.
+     * The response is handled on the session's executor, which then schedules the next poll.
+     */
+    private void listenForEvents(final int generation) throws JSONException {
+        JSONObject params = new JSONObject();
+        params.put("sessionId", sessionId);
+        params.put("sessionRevision", sessionRevision);
+        HttpJsonRequest request = createJsonRequest("waitForEvents", params);
+
+        // 30 seconds is the recommended poll timeout
+        request.readTimeout = 30000;
+        request.canceller = getRequestCanceller();
+        request.transport = eventPoller.getPollTransport(transport);
+        request.listenerExecutor = executor;
+
+        if (lastEventsResponseNanos != 0) {
+            waitForEventsGaps.record(System.nanoTime() - lastEventsResponseNanos);
+        }
+
+        request.listener = new AsyncResult<JSONObject>() {
+            @Override
+            public void onResult(JSONObject result) {
+                eventsReceived(generation, result);
+            }
 
             @Override
             public void onError(Exception e) {
-                if (e instanceof SocketTimeoutException || e instanceof TimeoutException) {
-                    // This is expected to fail, timeout, etc., and our
-                    // response is to retry.  Don't up the retry count.
-                } else {
-                    // Unexpected error
-                    waitForEventsRetryCount++;
-                    logger.warning(e.getLocalizedMessage());
-                }
+                eventsFailed(generation, e);
             }
         };
 
         request.run();
+    }
+
+    /**
+     * Process a waitForEvents response, and poll again.
+     */
+    private void eventsReceived(int generation, JSONObject result) {
+        logger.log(Level.FINE, "Event received: " + result.toString());
+        lastEventsResponseNanos = System.nanoTime();
+
+        try {
+            JSONObject results = result.getJSONObject("results");
+            if (!results.getBoolean("success")) {
+                logger.log(Level.SEVERE, "waitForEvents reported error");
+                return;
+            }
+
+            // We received a successful response, so reset the retry count.
+            waitForEventsRetryCount = 0;
+
+            // Process the events we just received
+            JSONArray events = results.getJSONArray("events");
+            for (int i=0; i<events.length(); i++) {
+                JSONObject event = events.getJSONObject(i);
+                JSONObject session = event.getJSONObject("session");
+                int revision = session.getInt("revision");
+                if (revision < sessionRevision) {
+                    // Ignore as we've already seen this revision
+                    continue;
+                }
 
-        if (waitForEventsRetryCount == numWaitForEventsRetriesAllowed) {
-            // Call this when the retryCount goes over the limit
+                updateSession(session);
+            }
+
+        } catch (SessionException e) {
+            logger.severe(e.toString());
+            waitForEventsRetryCount++;
+        } catch (JSONException e) {
+            logger.severe(e.toString());
+            waitForEventsRetryCount++;
+        }
+
+        pollAgain(generation);
+    }
+
+    /**
+     * Handle a waitForEvents failure, and poll again unless the session is closing.
+     */
+    private void eventsFailed(int generation, Exception e) {
+        if (e instanceof SocketTimeoutException || e instanceof TimeoutException) {
+            // This is expected to fail, timeout, etc., and our
+            // response is to retry.  Don't up the retry count.
+        } else if (e instanceof RequestCancelledException || stopping) {
+            // The session is closing
+            return;
+        } else {
+            // Unexpected error
+            waitForEventsRetryCount++;
+            logger.warning(e.getLocalizedMessage());
+        }
+
+        lastEventsResponseNanos = System.nanoTime();
+        pollAgain(generation);
+    }
+
+    /**
+     * Schedule the next poll: straight away, unless waitForEvents is failing.
+     */
+    private void pollAgain(int generation) {
+        if (waitForEventsRetryCount >= numWaitForEventsRetriesAllowed) {
+            // Don't schedule another wait
             sessionListener.onConnectionError(this, new SessionException("waitForSession retries exceeded"));
+            return;
         }
 
-        return shouldContinue[0];
+        long delayMillis = waitForEventsRetryDelayMillis(waitForEventsRetryCount);
+        if (delayMillis > 0) {
+            // The gap after a backoff isn't the poller's doing
+            lastEventsResponseNanos = 0;
+        }
+        schedulePoll(generation, delayMillis);
+    }
+
+    /**
+     * Tell the listener we're done capturing, once any images still being assembled
+     * have been delivered.
+     */
+    private void notifyDoneCapturing() {
+        BlockDownloader downloader = blockDownloader;
+        Runnable notify = new Runnable() {
+            @Override
+            public void run() {
+                sessionListener.onDoneCapturing(Session.this);
+            }
+        };
+        if (downloader == null) {
+            notify.run();
+        } else {
+            downloader.runAfterDeliveries(notify);
+        }
     }
 
     /**
@@ -650,6 +1083,14 @@ public class Session {
      * @param toBlock
      */
     void releaseBlock(final int fromBlock, final int toBlock) {
+        releaseBlock(fromBlock, toBlock, null);
+    }
+
+    /**
+     * As releaseBlock(fromBlock, toBlock), running done, if it isn't null, once the
+     * scanner has responded or the request has failed.
+     */
+    void releaseBlock(final int fromBlock, final int toBlock, final Runnable done) {
         // Create and send the sendTask request
         JSONObject params = new JSONObject();
         try {
@@ -659,6 +1100,9 @@ public class Session {
         } catch (JSONException e) {
             // Unexpected error
             logger.severe(e.toString());
+            if (done != null) {
+                done.run();
+            }
             return;
         }
 
@@ -693,7 +1137,7 @@ public class Session {
                                 // Error occurred closing the session - either way
                                 // we're done capturing
                                 logger.severe(e.toString());
-                                sessionListener.onDoneCapturing(Session.this);
+                                notifyDoneCapturing();
                             }
                         });
                     }
@@ -701,16 +1145,23 @@ public class Session {
                     logger.severe(e.toString());
                 } catch (JSONException e) {
                     logger.severe(e.toString());
+                } finally {
+                    if (done != null) {
+                        done.run();
+                    }
                 }
             }
 
             @Override
             public void onError(Exception e) {
                 logger.severe(e.toString());
+                if (done != null) {
+                    done.run();
+                }
             }
         };
 
-        executor.submit(request);
+        sendCommand(request);
     }
 
 
@@ -742,6 +1193,7 @@ public class Session {
         request.url = endpoint;
         request.commandId = commandId;
         request.ipaddr = scannerIp;
+        request.transport = transport;
         request.method = "POST";
         request.requestBody = body;
         request.headers.put("X-Privet-Token", privetToken);
@@ -773,6 +1225,8 @@ public class Session {
         request.url = endpoint;
         request.commandId = commandId;
         request.ipaddr = scannerIp;
+        request.transport = transport;
+        request.canceller = getRequestCanceller();
         request.requestBody = body;
         request.headers.put("X-Privet-Token", privetToken);
         return request;
@@ -787,10 +1241,41 @@ public class Session {
         // Create and send the createSession request
         CloudBlockRequest request = new CloudBlockRequest(cloudConnection);
         request.url = URIUtils.appendPathToURI(url, "/blocks/" + blockId);
+        request.transport = transport;
+        request.canceller = getRequestCanceller();
         request.headers.put("X-Privet-Token", privetToken);
         return request;
     }
 
+    private synchronized RequestCanceller getRequestCanceller() {
+        return requestCanceller;
+    }
+
+    private synchronized int getPollGeneration() {
+        return pollGeneration;
+    }
+
+    /**
+     * Abort the block downloads and waitForEvents long-poll in flight, drop blocks that
+     * haven't started downloading, and keep polls already scheduled from being sent,
+     * rather than leaving them all to run until they time out.
+     */
+    private void cancelRequests() {
+        RequestCanceller cancelled;
+        synchronized(this) {
+            cancelled = requestCanceller;
+            requestCanceller = new RequestCanceller();
+            pollGeneration++;
+        }
+        cancelled.cancel();
+
+        BlockDownloader downloader = blockDownloader;
+        if (downloader != null) {
+            downloader.cancelDownloads();
+        }
+
+    }
+
     /**
      * Reset internal state
      */
@@ -798,11 +1283,14 @@ public class Session {
         doneCapturing = false;
         imageBlocksDrained = false;
         state = State.noSession;
-        files.clear();
         sessionStatusSuccess = true;
         sessionStatusDetected = null;
         waitForEventsRetryCount = 0;
         paused = false;
+        cancelRequests();
+        if (blockDownloader != null) {
+            blockDownloader.shutdown();
+        }
         blockDownloader = null;
     }
 
@@ -855,13 +1343,15 @@ public class Session {
             synchronized(this) {
                 JSONArray ibready = session.getJSONArray("imageBlocks");
                 if (ibready != null && ibready.length() > 0) {
-                    List<Integer> imageBlocks = new ArrayList<Integer>();
-                    for (int ibidx = 0; ibidx < ibready.length(); ibidx++) {
-                        int blockNum = ibready.getInt(ibidx);
-                        imageBlocks.add(blockNum);
+                    int count = ibready.length();
+                    if (count > imageBlocksScratch.length) {
+                        imageBlocksScratch = new int[Math.max(count, imageBlocksScratch.length * 2)];
+                    }
+                    for (int ibidx = 0; ibidx < count; ibidx++) {
+                        imageBlocksScratch[ibidx] = ibready.getInt(ibidx);
                     }
 
-                    blockDownloader.enqueueBlocks(imageBlocks);
+                    blockDownloader.enqueueBlocks(imageBlocksScratch, count);
                 }
             }
         }
@@ -872,7 +1362,7 @@ public class Session {
             sessionListener.onStateChanged(this, oldState, newState);
 
             if (newState == State.noSession) {
-                sessionListener.onDoneCapturing(this);
+                notifyDoneCapturing();
             }
         }
 
@@ -908,32 +1398,27 @@ public class Session {
     }
 
     private void startEventListener() {
-        Runnable listener = new Runnable() {
-            @Override
-            public void run() {
-                logger.info("Starting event listener");
-                while (!stopping) {
-                    try {
-                        if (!syncListen()) {
-                            break;
-                        }
-                    } catch (JSONException e) {
-                        // JSON exceptions are unexpected - should not happen at runtime
-                        logger.severe(e.toString());
-                    }
-
-                    // Wait one second before retrying
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
-            }
-        };
+        logger.info("Starting event listener");
+        lastEventsResponseNanos = 0;
+        schedulePoll(getPollGeneration(), 0);
+    }
 
-        eventListenerThread = new Thread(listener);
-        eventListenerThread.start();
+    /**
+     * The delay before polling again after this many successive waitForEvents failures:
+     * none if there weren't any, otherwise a random time between half and all of the
+     * backoff, so sessions that lost the scanner together don't all come back at once.
+     */
+    private long waitForEventsRetryDelayMillis(int failures) {
+        if (failures <= 0) {
+            return 0;
+        }
+        long backoff = waitForEventsRetryBaseDelayMillis;
+        for (int i = 1; i < failures && backoff < waitForEventsRetryMaxDelayMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, waitForEventsRetryMaxDelayMillis);
+        long half = backoff / 2;
+        return half + (long)(waitForEventsJitter.nextDouble() * (backoff - half + 1));
     }
 }
 
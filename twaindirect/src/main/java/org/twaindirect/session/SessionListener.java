@@ -12,7 +12,10 @@ public interface SessionListener {
     /**
      * Sent when an image has been completely received. The file
      * at pdfPath is a PDF file, and must be moved or copied out of this location,
-     * as the file will be deleted upon return.
+     * as the file will be deleted upon return. Moving it with File.renameTo avoids a
+     * copy if the destination is on the same filesystem as the temp directory.
+     * If the session has an ImageDestination, pdfPath is the file it chose, and
+     * belongs to the application.
      *
      * @param pdfPath
      * @param metadata
@@ -38,7 +41,8 @@ public interface SessionListener {
 
     /**
      * Unable to establish or re-establish a waitForEvents listener,
-     * so consider the session unusable.
+     * so consider the session unusable. Also called when a block can't be
+     * downloaded after all its attempts (see Session.setBlockRetry).
      */
     void onConnectionError(Session session, Exception reason);
 }
@@ -0,0 +1,44 @@
+package org.twaindirect.session;
+
+import org.twaindirect.cloud.CloudBlockRequest;
+
+/**
+ * The HTTP engine used to send requests to a scanner or to the TWAIN Cloud service.
+ *
+ * The request classes (HttpJsonRequest, HttpBlockRequest and CloudBlockRequest) deal with
+ * the protocol - cloud responses arriving through MQTT, refreshing expired access tokens,
+ * parsing the response - and hand the HTTP exchange itself to a Transport. Session and
+ * CloudConnection choose the transport for the requests they create.
+ *
+ * Implementations:
+ *  - ApacheTransport, the default, uses the shared pooled HttpClient and blocks the calling thread
+ *  - NioTransport uses NioHttpClient, and doesn't hold a thread while waiting for the response
+ *  - LoopbackTransport passes requests to an in-memory handler, for tests and benchmarks
+ *
+ * The listener is called exactly once. It may be called on the calling thread before the
+ * method returns, or later on a thread belonging to the transport. The response body
+ * belongs to the transport and is only valid until the listener's onResult returns.
+ *
+ * If the request has a RequestCanceller, the transport adds an abort action to it while
+ * the request is in flight, including while the listener reads the response body.
+ * Cancelling fails the request promptly, with a RequestCancelledException if it hasn't
+ * started, or with the error from the aborted connection if the body is being read.
+ */
+public interface Transport {
+    /**
+     * Send a JSON command or privet request: request.method to request.url, with
+     * request.headers and request.requestBody (if set).
+     */
+    void executeJson(HttpJsonRequest request, AsyncResult<TransportResponse> listener);
+
+    /**
+     * POST a readImageBlock command. The response body is the multipart/mixed image block.
+     */
+    void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener);
+
+    /**
+     * GET an image block from the cloud blocks endpoint. The response body is the
+     * quoted, Base64 encoded image data.
+     */
+    void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener);
+}
@@ -0,0 +1,49 @@
+package org.twaindirect.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The HTTP response to a request sent through a Transport.
+ */
+public class TransportResponse {
+    // HTTP status code
+    public int statusCode;
+
+    // Status line, for example "HTTP/1.1 401 Unauthorized"
+    public String statusLine;
+
+    // Response body. Only valid until the listener's onResult returns.
+    public InputStream body;
+
+    public TransportResponse() {
+    }
+
+    public TransportResponse(int statusCode, String statusLine, InputStream body) {
+        this.statusCode = statusCode;
+        this.statusLine = statusLine;
+        this.body = body;
+    }
+
+    /**
+     * A 200 response with this body.
+     */
+    public static TransportResponse ok(byte[] body) {
+        return new TransportResponse(200, "HTTP/1.1 200 OK", new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Read the whole body as a UTF-8 string.
+     */
+    public String getBodyAsString() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = body.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toString("UTF-8");
+    }
+}
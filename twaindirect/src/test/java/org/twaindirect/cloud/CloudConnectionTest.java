@@ -0,0 +1,150 @@
+package org.twaindirect.cloud;
+
+import org.junit.Test;
+import org.twaindirect.session.AsyncResult;
+import org.twaindirect.session.LoopbackTransport;
+import org.twaindirect.session.TransportResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refreshing an expired access token doesn't hold the caller's thread while it waits,
+ * and requests that fail while a refresh is in progress share it.
+ */
+public class CloudConnectionTest {
+    private static final URI apiUrl = URI.create("https://cloud.local/api");
+
+    /**
+     * Answers token refreshes once refreshAllowed is counted down, and serves an image
+     * block to requests with the refreshed token.
+     */
+    private static class CloudService implements LoopbackTransport.Handler {
+        final CountDownLatch refreshAllowed = new CountDownLatch(1);
+        final AtomicInteger refreshCount = new AtomicInteger();
+        final AtomicInteger blockRequestCount = new AtomicInteger();
+
+        @Override
+        public TransportResponse handle(String method, URI url, Map<String, String> headers, byte[] body) throws Exception {
+            String path = url.getPath();
+            if (path.startsWith("/api/authentication/refresh/")) {
+                refreshCount.incrementAndGet();
+                assertEquals("/api/authentication/refresh/old-refresh", path);
+                assertTrue(refreshAllowed.await(10, TimeUnit.SECONDS));
+                return TransportResponse.ok("{\"authorizationToken\":\"new-access\",\"refreshToken\":\"new-refresh\"}".getBytes("UTF-8"));
+            }
+
+            blockRequestCount.incrementAndGet();
+            if (!"new-access".equals(headers.get("Authorization"))) {
+                return new TransportResponse(401, "HTTP/1.1 401 Unauthorized", new ByteArrayInputStream(new byte[0]));
+            }
+            return TransportResponse.ok("\"aW1hZ2U=\"".getBytes("UTF-8"));
+        }
+    }
+
+    private static class RefreshResult implements AsyncResult<Boolean> {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Boolean refreshed;
+
+        @Override
+        public void onResult(Boolean result) {
+            refreshed = result;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void refreshesShareOneRequest() throws Exception {
+        CloudService service = new CloudService();
+        final CloudConnection connection = new CloudConnection(apiUrl, "old-access", "old-refresh");
+        connection.setTransport(new LoopbackTransport(service));
+
+        // The loopback transport answers on the calling thread, so the first refresh
+        // holds this one until it's allowed to finish
+        final RefreshResult first = new RefreshResult();
+        Thread refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connection.refreshToken(first);
+            }
+        });
+        refresher.start();
+        while (service.refreshCount.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        // Later refreshes wait for it without blocking
+        RefreshResult[] others = new RefreshResult[3];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = new RefreshResult();
+            connection.refreshToken(others[i]);
+            assertEquals(1, others[i].done.getCount());
+        }
+
+        service.refreshAllowed.countDown();
+        refresher.join();
+
+        assertEquals(Boolean.TRUE, first.refreshed);
+        for (RefreshResult other : others) {
+            assertTrue(other.done.await(5, TimeUnit.SECONDS));
+            assertEquals(Boolean.TRUE, other.refreshed);
+        }
+        assertEquals(1, service.refreshCount.get());
+        assertEquals("new-access", connection.getAccessToken());
+        assertEquals("new-refresh", connection.getRefreshToken());
+    }
+
+    @Test
+    public void blockRequestRetriedWithRefreshedToken() throws Exception {
+        CloudService service = new CloudService();
+        service.refreshAllowed.countDown();
+        CloudConnection connection = new CloudConnection(apiUrl, "old-access", "old-refresh");
+        connection.setTransport(new LoopbackTransport(service));
+
+        final AtomicReference<Object> outcome = new AtomicReference<>();
+        CloudBlockRequest request = new CloudBlockRequest(connection);
+        request.url = URI.create("https://cloud.local/api/blocks/1");
+        request.transport = connection.getTransport();
+        request.listener = new AsyncResult<InputStream>() {
+            @Override
+            public void onResult(InputStream result) {
+                try {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = result.read()) >= 0) {
+                        data.write(b);
+                    }
+                    outcome.set(data.toString("UTF-8"));
+                } catch (IOException e) {
+                    outcome.set(e);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                outcome.set(e);
+            }
+        };
+        request.run();
+
+        assertEquals("\"aW1hZ2U=\"", outcome.get());
+        assertEquals(2, service.blockRequestCount.get());
+        assertEquals(1, service.refreshCount.get());
+    }
+}
@@ -0,0 +1,100 @@
+package org.twaindirect.cloud;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Responses from the MQTT topic reach the command waiting for them, with many
+ * commands waiting at once.
+ */
+public class CloudEventBrokerTest {
+    private CloudEventBroker broker;
+
+    private static class Command implements CloudEventBrokerListener {
+        final String commandId;
+        String response;
+
+        Command(String commandId) {
+            this.commandId = commandId;
+        }
+
+        @Override
+        public String getCommandId() {
+            return commandId;
+        }
+
+        @Override
+        public void deliverJSONResponse(String body) {
+            response = body;
+        }
+    }
+
+    @Before
+    public void createBroker() throws Exception {
+        CloudEventBrokerInfo info = new CloudEventBrokerInfo();
+        info.type = "mqtt";
+        info.url = "tcp://127.0.0.1:1883";
+        info.topic = "responses";
+        broker = new CloudEventBroker("token", info);
+    }
+
+    private static String message(String commandId) throws Exception {
+        JSONObject body = new JSONObject();
+        body.put("commandId", commandId);
+        body.put("results", new JSONObject().put("success", true));
+
+        JSONObject payload = new JSONObject();
+        payload.put("statusCode", 200);
+        payload.put("body", body.toString());
+        return payload.toString();
+    }
+
+    @Test
+    public void responsesReachTheirCommands() throws Exception {
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Command command = new Command("command-" + i);
+            commands.add(command);
+            broker.addListener(command);
+        }
+
+        // Responses arrive in any order
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            broker.deliver(message(commands.get(i).commandId));
+        }
+
+        for (Command command : commands) {
+            assertEquals(command.commandId, new JSONObject(command.response).getString("commandId"));
+        }
+        assertEquals(0, broker.listeners.size());
+    }
+
+    @Test
+    public void responseWithoutCommandIgnored() throws Exception {
+        Command command = new Command("waiting");
+        broker.addListener(command);
+
+        broker.deliver(message("unknown"));
+
+        assertNull(command.response);
+        assertEquals(1, broker.listeners.size());
+    }
+
+    @Test
+    public void removedCommandGetsNoResponse() throws Exception {
+        Command command = new Command("timed-out");
+        broker.addListener(command);
+        broker.removeListener(command);
+
+        broker.deliver(message("timed-out"));
+
+        assertNull(command.response);
+    }
+}
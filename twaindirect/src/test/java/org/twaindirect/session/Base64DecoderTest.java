@@ -0,0 +1,164 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for Base64Decoder. Base64DecoderBenchmark compares its throughput with
+ * Base64.decode.
+ */
+public class Base64DecoderTest {
+    @Test
+    public void decodesEveryLength() throws IOException {
+        Random random = new Random(1);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] encoded = Base64.encodeBytesToBytes(data);
+
+            assertArrayEquals(data, decode(new Base64Decoder(true), encoded, false));
+            assertArrayEquals(data, decode(new Base64Decoder(false), encoded, true));
+        }
+    }
+
+    @Test
+    public void decodesInPieces() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(2).nextBytes(data);
+        byte[] encoded = Base64.encodeBytesToBytes(data);
+
+        // Feed the input in pieces of every size from 1 to 9, into a small output buffer
+        for (int piece = 1; piece < 10; piece++) {
+            Base64Decoder decoder = new Base64Decoder(true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer dst = ByteBuffer.allocate(5);
+            for (int offset = 0; offset < encoded.length; offset += piece) {
+                ByteBuffer src = ByteBuffer.wrap(encoded, offset, Math.min(piece, encoded.length - offset));
+                while (src.hasRemaining()) {
+                    decoder.decode(src, dst);
+                    drain(dst, out);
+                }
+            }
+            decoder.finish(dst);
+            drain(dst, out);
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void strictRejectsWhitespaceAndMissingPadding() throws IOException {
+        expectFailure(new Base64Decoder(true), "QUJD\nREVG");
+        expectFailure(new Base64Decoder(true), "QUJDRA");
+        expectFailure(new Base64Decoder(true), "\"QUJD\"");
+    }
+
+    @Test
+    public void lenientSkipsJsonQuotingAndAcceptsMissingPadding() throws IOException {
+        Base64Decoder decoder = new Base64Decoder(false);
+        assertEquals("ABCDEF", new String(decode(decoder, "QUJD\r\nREVG".getBytes(), true), "US-ASCII"));
+        assertEquals("ABCD", new String(decode(decoder, "QUJDRA".getBytes(), true), "US-ASCII"));
+        assertEquals("ABCD", new String(decode(decoder, "\"QUJ\\nDRA==\"".getBytes(), true), "US-ASCII"));
+
+        byte[] data = { (byte)0xfb, (byte)0xff, (byte)0xbf };
+        assertArrayEquals(data, decode(decoder, "\"+\\/+\\/\"".getBytes(), true));
+    }
+
+    @Test
+    public void rejectsBadInput() throws IOException {
+        expectFailure(new Base64Decoder(false), "QUJD!");
+        expectFailure(new Base64Decoder(false), "QQ==QUJD");
+        expectFailure(new Base64Decoder(false), "Q===");
+        expectFailure(new Base64Decoder(false), "Q");
+        expectFailure(new Base64Decoder(true), "QUJ=D");
+    }
+
+    @Test
+    public void decodesDirectBuffers() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        byte[] encoded = Base64.encodeBytesToBytes(data);
+
+        ByteBuffer src = ByteBuffer.allocateDirect(encoded.length);
+        src.put(encoded).flip();
+        ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+
+        Base64Decoder decoder = new Base64Decoder(true);
+        decoder.decode(src, dst);
+        decoder.finish(dst);
+        dst.flip();
+
+        byte[] decoded = new byte[dst.remaining()];
+        dst.get(decoded);
+        assertArrayEquals(data, decoded);
+    }
+
+    @Test
+    public void decodeDoesNotAllocate() throws IOException {
+        byte[] data = new byte[48 * 1024];
+        new Random(4).nextBytes(data);
+        byte[] encoded = Base64.encodeBytesToBytes(data);
+        ByteBuffer src = ByteBuffer.wrap(encoded);
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+        Base64Decoder decoder = new Base64Decoder(true);
+
+        // Warm up
+        for (int i = 0; i < 100; i++) {
+            src.clear();
+            dst.clear();
+            decoder.decode(src, dst);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            src.clear();
+            dst.clear();
+            decoder.decode(src, dst);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // Allow for the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private static byte[] decode(Base64Decoder decoder, byte[] encoded, boolean toChannel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (toChannel) {
+            decoder.decode(ByteBuffer.wrap(encoded), Channels.newChannel(out));
+            decoder.finish(Channels.newChannel(out));
+        } else {
+            ByteBuffer dst = ByteBuffer.allocate(encoded.length);
+            decoder.decode(ByteBuffer.wrap(encoded), dst);
+            decoder.finish(dst);
+            drain(dst, out);
+        }
+        return out.toByteArray();
+    }
+
+    private static void drain(ByteBuffer dst, ByteArrayOutputStream out) {
+        dst.flip();
+        out.write(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        dst.clear();
+    }
+
+    private static void expectFailure(Base64Decoder decoder, String encoded) {
+        try {
+            decode(decoder, encoded.getBytes(), false);
+            fail("Expected IOException for " + encoded);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.twaindirect.session;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Timing comparisons and soak runs only report numbers and take a while, so they're
+ * skipped unless the twaindirect.benchmarks system property is true:
+ *
+ *     gradle test -Dtwaindirect.benchmarks=true
+ */
+final class Benchmarks {
+    static final String property = "twaindirect.benchmarks";
+
+    // Outside org.twaindirect, so tests that quieten the library's logging still report
+    private static final Logger logger = Logger.getLogger(property);
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks are enabled.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue(property + " is not set", Boolean.getBoolean(property));
+    }
+
+    static void report(String format, Object... args) {
+        logger.info(String.format(Locale.US, format, args));
+    }
+}
@@ -0,0 +1,192 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for BlockReleaser, which releases finished blocks to the scanner in ranges.
+ */
+public class BlockReleaserTest {
+    private File tempDir;
+
+    @Before
+    public void createTempDir() throws IOException {
+        tempDir = File.createTempFile("release", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void deleteTempDir() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void contiguousBlocksReleasedAsRanges() {
+        RecordingSession session = new RecordingSession();
+        BlockReleaser releaser = new BlockReleaser(session, 100, 10000);
+
+        for (int blockNum : new int[] { 3, 1, 2, 7, 5, 6, 10 }) {
+            releaser.blockDone(blockNum, true);
+        }
+        assertTrue(session.ranges.isEmpty());
+
+        // The last download finishing releases everything
+        releaser.blockDone(9, false);
+        assertEquals(Arrays.asList("1-3", "5-7", "9-10"), session.ranges);
+    }
+
+    @Test
+    public void releasedAtThreshold() {
+        RecordingSession session = new RecordingSession();
+        BlockReleaser releaser = new BlockReleaser(session, 3, 10000);
+
+        releaser.blockDone(1, true);
+        releaser.blockDone(2, true);
+        assertTrue(session.ranges.isEmpty());
+        releaser.blockDone(3, true);
+        assertEquals(Collections.singletonList("1-3"), session.ranges);
+    }
+
+    @Test
+    public void releasedAfterDelay() throws InterruptedException {
+        RecordingSession session = new RecordingSession();
+        BlockReleaser releaser = new BlockReleaser(session, 100, 20);
+
+        releaser.blockDone(4, true);
+        releaser.blockDone(5, true);
+        for (int i = 0; i < 100 && session.ranges.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList("4-5"), session.ranges);
+    }
+
+    /**
+     * Blocks that finish while a release is in progress wait for it, then go together.
+     */
+    @Test
+    public void blocksCollectedWhileReleaseInProgress() {
+        RecordingSession session = new RecordingSession();
+        session.completeReleases = false;
+        BlockReleaser releaser = new BlockReleaser(session, 100, 10000);
+
+        releaser.blockDone(1, false);
+        assertEquals(Collections.singletonList("1-1"), session.ranges);
+
+        releaser.blockDone(2, false);
+        releaser.blockDone(3, false);
+        assertEquals(1, session.ranges.size());
+
+        session.completeRelease();
+        assertEquals(Arrays.asList("1-1", "2-3"), session.ranges);
+    }
+
+    /**
+     * Against a scanner with a small buffer and a slow releaseImageBlocks, coalescing
+     * releases means fewer commands.
+     */
+    @Test
+    public void coalescingSendsFewerReleases() throws Exception {
+        int sheets = 200;
+        SimulatedScanner coalesced = capture(sheets, BlockDownloader.DEFAULT_RELEASE_BLOCKS, BlockDownloader.DEFAULT_RELEASE_DELAY_MILLIS);
+        SimulatedScanner perBlock = capture(sheets, 1, 0);
+
+        int coalescedReleases = coalesced.releaseImageBlocksCount.get();
+        int perBlockReleases = perBlock.releaseImageBlocksCount.get();
+        assertTrue("Coalesced " + coalescedReleases + ", per block " + perBlockReleases,
+                coalescedReleases < perBlockReleases * 3 / 4);
+    }
+
+    /**
+     * Time the captures in coalescingSendsFewerReleases: fewer commands to a slow
+     * scanner means more pages per minute.
+     */
+    @Test
+    public void coalescingImprovesThroughput() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        // Warm up, so neither run pays for it
+        captureMillis(1, 0, "warm up");
+
+        long coalescedMillis = captureMillis(BlockDownloader.DEFAULT_RELEASE_BLOCKS, BlockDownloader.DEFAULT_RELEASE_DELAY_MILLIS, "coalesced");
+        long perBlockMillis = captureMillis(1, 0, "per block");
+        assertTrue("Coalesced " + coalescedMillis + " ms, per block " + perBlockMillis + " ms", coalescedMillis < perBlockMillis);
+    }
+
+    private long captureMillis(int releaseBlocks, int releaseDelayMillis, String label) throws Exception {
+        int sheets = 200;
+        long start = System.nanoTime();
+        SimulatedScanner scanner = capture(sheets, releaseBlocks, releaseDelayMillis);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Benchmarks.report("Release %s: %d pages in %d ms, %d pages per minute, %d releaseImageBlocks",
+                label, sheets, elapsedMillis, sheets * 60000L / elapsedMillis, scanner.releaseImageBlocksCount.get());
+        return elapsedMillis;
+    }
+
+    private SimulatedScanner capture(int sheets, final int releaseBlocks, final int releaseDelayMillis) throws Exception {
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 1, 16 * 1024);
+        scanner.bufferBlocks = 4;
+        scanner.readImageBlockDelayMillis = 5;
+        scanner.releaseImageBlocksDelayMillis = 10;
+
+        LoopbackTransportTest.captureWith(scanner, tempDir, new LoopbackTransportTest.SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                session.setBlockRelease(releaseBlocks, releaseDelayMillis);
+            }
+        }, new LoopbackTransportTest.ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+            }
+        });
+        return scanner;
+    }
+
+    /**
+     * Records releaseBlock calls rather than sending them.
+     */
+    private static class RecordingSession extends Session {
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+        // If false, releases stay in progress until completeRelease
+        boolean completeReleases = true;
+        private final List<Runnable> inProgress = new ArrayList<>();
+
+        RecordingSession() {
+            super(URI.create("https://scanner.local:34034"), "127.0.0.1");
+        }
+
+        @Override
+        void releaseBlock(int fromBlock, int toBlock, Runnable done) {
+            ranges.add(fromBlock + "-" + toBlock);
+            if (completeReleases) {
+                done.run();
+            } else {
+                inProgress.add(done);
+            }
+        }
+
+        void completeRelease() {
+            inProgress.remove(0).run();
+        }
+    }
+}
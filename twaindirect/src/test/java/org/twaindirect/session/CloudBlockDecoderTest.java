@@ -0,0 +1,271 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twaindirect.cloud.CloudBlockRequest;
+import org.twaindirect.cloud.CloudConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for CloudBlockDecoder.
+ */
+public class CloudBlockDecoderTest {
+    private File tempFile;
+
+    @Before
+    public void createTempFile() throws IOException {
+        tempFile = File.createTempFile("cloudblock", ".pdf");
+    }
+
+    @After
+    public void deleteTempFile() {
+        tempFile.delete();
+    }
+
+    @Test
+    public void decodesQuotedBase64() throws IOException {
+        // Sizes that end on each padding case, and span several buffers
+        int[] sizes = { 0, 1, 2, 3, 1000, 200001 };
+        for (int size : sizes) {
+            byte[] image = data(size);
+            byte[] block = ("\"" + Base64.encodeBytes(image) + "\"").getBytes("US-ASCII");
+
+            CloudBlockDecoder.decodeToFile(new ByteArrayInputStream(block), tempFile);
+            assertArrayEquals(image, readFile(tempFile));
+        }
+    }
+
+    @Test
+    public void ignoresJsonEscapesAndLineBreaks() throws IOException {
+        byte[] image = data(5000);
+        String encoded = Base64.encodeBytes(image, Base64.DO_BREAK_LINES).replace("/", "\\/");
+        byte[] block = ("\"" + encoded + "\"").getBytes("US-ASCII");
+
+        CloudBlockDecoder.decodeToFile(new ByteArrayInputStream(block), tempFile);
+        assertArrayEquals(image, readFile(tempFile));
+    }
+
+    @Test
+    public void deletesFileOnBadInput() throws IOException {
+        byte[] block = "\"QUJD!\"".getBytes("US-ASCII");
+        try {
+            CloudBlockDecoder.decodeToFile(new ByteArrayInputStream(block), tempFile);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(tempFile.exists());
+    }
+
+    /**
+     * A block cut off at any point, including part way through a quantum, can be finished
+     * from a second stream that starts at getBytesRead.
+     */
+    @Test
+    public void resumesFromWhereStreamFailed() throws IOException {
+        byte[] image = data(100000);
+        byte[] block = ("\"" + Base64.encodeBytes(image) + "\"").getBytes("US-ASCII");
+
+        int[] dropPoints = { 1, 2, 3, 4, 5, 1001, 64 * 1024, 64 * 1024 + 1, block.length - 1 };
+        for (int dropPoint : dropPoints) {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                CloudBlockDecoder decoder = new CloudBlockDecoder(out.getChannel());
+                try {
+                    decoder.decodeFrom(SimulatedScanner.droppedAfter(block, dropPoint));
+                    fail("Expected IOException");
+                } catch (IOException e) {
+                    // Expected
+                }
+                assertTrue(decoder.canResume());
+                assertEquals(dropPoint, decoder.getBytesRead());
+
+                decoder.decodeFrom(new ByteArrayInputStream(block, dropPoint, block.length - dropPoint));
+                decoder.finish();
+            } finally {
+                out.close();
+            }
+            assertArrayEquals(image, readFile(tempFile));
+        }
+    }
+
+    /**
+     * A CloudBlockRequest with rangeStart set asks for the rest of the block, and its
+     * stream starts at rangeStart whether the server honours the Range header or sends
+     * the whole block.
+     */
+    @Test
+    public void resumesOverCloudBlockRequest() throws IOException {
+        byte[] image = data(30000);
+        final byte[] block = ("\"" + Base64.encodeBytes(image) + "\"").getBytes("US-ASCII");
+        final int dropPoint = 12345;
+
+        for (final boolean serverSupportsRange : new boolean[] { true, false }) {
+            final AtomicReference<String> range = new AtomicReference<>();
+            LoopbackTransport transport = new LoopbackTransport(new LoopbackTransport.Handler() {
+                @Override
+                public TransportResponse handle(String method, URI url, Map<String, String> headers, byte[] body) {
+                    range.set(headers.get("Range"));
+                    if (range.get() == null) {
+                        return new TransportResponse(200, "HTTP/1.1 200 OK", SimulatedScanner.droppedAfter(block, dropPoint));
+                    }
+                    if (serverSupportsRange) {
+                        return new TransportResponse(206, "HTTP/1.1 206 Partial Content", new ByteArrayInputStream(block, dropPoint, block.length - dropPoint));
+                    }
+                    return TransportResponse.ok(block);
+                }
+            });
+
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                CloudBlockDecoder decoder = new CloudBlockDecoder(out.getChannel());
+
+                assertNotNull(fetch(transport, 0, decoder));
+                assertNull(range.get());
+
+                assertNull(fetch(transport, decoder.getBytesRead(), decoder));
+                assertEquals("bytes=" + dropPoint + "-", range.get());
+                decoder.finish();
+            } finally {
+                out.close();
+            }
+            assertArrayEquals(image, readFile(tempFile));
+        }
+    }
+
+    /**
+     * Fetch a block from transport starting at rangeStart, decoding it with decoder.
+     * Returns the error, if any.
+     */
+    private static Exception fetch(Transport transport, long rangeStart, final CloudBlockDecoder decoder) {
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        CloudBlockRequest request = new CloudBlockRequest(new CloudConnection(URI.create("https://cloud.example.com"), "token", "refresh"));
+        request.url = URI.create("https://cloud.example.com/blocks/1");
+        request.transport = transport;
+        request.rangeStart = rangeStart;
+        request.listener = new AsyncResult<InputStream>() {
+            @Override
+            public void onResult(InputStream result) {
+                try {
+                    decoder.decodeFrom(result);
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+            }
+        };
+        request.run();
+        return error.get();
+    }
+
+    /**
+     * Decode a 64 MB image and check that the heap allocated doesn't grow with it.
+     */
+    @Test
+    public void constantMemory() throws IOException {
+        // A chunk whose length is a multiple of 3, so its encoding can be repeated
+        final byte[] chunk = data(48 * 1024);
+        final byte[] encodedChunk = Base64.encodeBytesToBytes(chunk);
+        final int repeats = 64 * 1024 * 1024 / chunk.length;
+
+        // The quoted encoding, generated as it's read: a quote, encodedChunk repeated, a quote
+        InputStream block = new InputStream() {
+            private final long total = (long)encodedChunk.length * repeats + 2;
+            private long position = 0;
+
+            @Override
+            public int read() {
+                if (position >= total) {
+                    return -1;
+                }
+                long p = position++;
+                if (p == 0 || p == total - 1) {
+                    return '"';
+                }
+                return encodedChunk[(int)((p - 1) % encodedChunk.length)];
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= total) {
+                    return -1;
+                }
+                if (position == 0 || position == total - 1) {
+                    b[off] = (byte)read();
+                    return 1;
+                }
+                int chunkOffset = (int)((position - 1) % encodedChunk.length);
+                int count = (int)Math.min(len, Math.min(encodedChunk.length - chunkOffset, total - 1 - position));
+                System.arraycopy(encodedChunk, chunkOffset, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+
+        CloudBlockDecoder.decodeToFile(block, tempFile);
+
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertEquals((long)chunk.length * repeats, tempFile.length());
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024 * 1024);
+
+        // Check the contents
+        InputStream in = new FileInputStream(tempFile);
+        byte[] readChunk = new byte[chunk.length];
+        for (int i = 0; i < repeats; i++) {
+            int offset = 0;
+            while (offset < readChunk.length) {
+                offset += in.read(readChunk, offset, readChunk.length - offset);
+            }
+            assertTrue(Arrays.equals(chunk, readChunk));
+        }
+        in.close();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(i * 13 + (i >> 9));
+        }
+        return data;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        int offset = 0;
+        while (offset < data.length) {
+            offset += in.read(data, offset, data.length - offset);
+        }
+        in.close();
+        return data;
+    }
+}
@@ -0,0 +1,128 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for DownloadWindow, driven with simulated links.
+ */
+public class DownloadWindowTest {
+    private static final long blockSize = 1024 * 1024;
+    private static final long millis = 1000000;
+
+    // Simulated clock
+    private long now;
+
+    /**
+     * A fast LAN scanner: each block takes the same time however many are in flight,
+     * so throughput scales with the window. It should grow to the maximum.
+     */
+    @Test
+    public void growsWhenParallelDownloadsPayOff() {
+        DownloadWindow window = createWindow(1, 12, 3);
+        for (int round = 0; round < 30; round++) {
+            runRound(window, 50 * millis, 50 * millis);
+        }
+
+        assertEquals(12, window.getWindowSize());
+        DownloadMetrics metrics = new DownloadMetrics();
+        window.getMetrics(metrics);
+        assertEquals(9, metrics.windowIncreases);
+        assertEquals(0, metrics.windowDecreases);
+    }
+
+    /**
+     * A slow link with fixed bandwidth: parallel downloads share it, so each extra one
+     * only adds latency. The window should stay small.
+     */
+    @Test
+    public void staysSmallOnBandwidthLimitedLink() {
+        DownloadWindow window = createWindow(1, 12, 1);
+        long blockMillis = 200;
+        for (int round = 0; round < 50; round++) {
+            int windowSize = window.getWindowSize();
+            runRound(window, windowSize * blockMillis * millis, windowSize * blockMillis * millis);
+            assertTrue("Window grew to " + window.getWindowSize(), window.getWindowSize() <= 3);
+        }
+
+        DownloadMetrics metrics = new DownloadMetrics();
+        window.getMetrics(metrics);
+        assertEquals(blockSize * 1000 / blockMillis, metrics.bytesPerSecond);
+        assertTrue(metrics.windowDecreases > 0);
+    }
+
+    /**
+     * Start with a large window on a bandwidth-limited link: it should come down.
+     */
+    @Test
+    public void shrinksWhenLatencyInflates() {
+        DownloadWindow window = createWindow(1, 12, 2);
+        long blockMillis = 200;
+
+        // Establish the baseline at a small window, then jump
+        runRound(window, 2 * blockMillis * millis, 2 * blockMillis * millis);
+        window.setLimits(10, 12);
+        window.setLimits(1, 12);
+        assertEquals(10, window.getWindowSize());
+
+        for (int round = 0; round < 10; round++) {
+            int windowSize = window.getWindowSize();
+            runRound(window, windowSize * blockMillis * millis, windowSize * blockMillis * millis);
+        }
+        assertTrue("Window is " + window.getWindowSize(), window.getWindowSize() <= 4);
+    }
+
+    @Test
+    public void failureHalvesWindow() {
+        DownloadWindow window = createWindow(2, 12, 9);
+        window.blockFailed(now);
+        assertEquals(4, window.getWindowSize());
+        window.blockFailed(now);
+        assertEquals(2, window.getWindowSize());
+
+        // Not below the minimum
+        window.blockFailed(now);
+        assertEquals(2, window.getWindowSize());
+
+        DownloadMetrics metrics = new DownloadMetrics();
+        window.getMetrics(metrics);
+        assertEquals(3, metrics.blocksFailed);
+        assertEquals(2, metrics.windowDecreases);
+    }
+
+    @Test
+    public void respectsLimits() {
+        DownloadWindow window = createWindow(2, 4, 10);
+        assertEquals(4, window.getWindowSize());
+
+        window.setLimits(5, 6);
+        assertEquals(5, window.getWindowSize());
+
+        try {
+            window.setLimits(0, 4);
+            assertTrue("Expected IllegalArgumentException", false);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private DownloadWindow createWindow(int min, int max, int initial) {
+        DownloadWindow window = new DownloadWindow(min, max, initial);
+        now = System.nanoTime();
+        return window;
+    }
+
+    /**
+     * Complete one window's worth of blocks, each taking latencyNanos, the whole round
+     * taking elapsedNanos.
+     */
+    private void runRound(DownloadWindow window, long latencyNanos, long elapsedNanos) {
+        int windowSize = window.getWindowSize();
+        now += elapsedNanos;
+        for (int i = 0; i < windowSize; i++) {
+            window.blockCompleted(blockSize, latencyNanos, now);
+        }
+    }
+}
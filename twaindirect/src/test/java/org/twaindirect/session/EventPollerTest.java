@@ -0,0 +1,193 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twaindirect.cloud.CloudBlockRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many sessions capturing at once share one EventPoller, rather than each holding a
+ * thread in its waitForEvents long-poll.
+ */
+public class EventPollerTest {
+    private File tempDir;
+
+    @Before
+    public void createTempDir() throws IOException {
+        tempDir = File.createTempFile("eventpoller", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void deleteTempDir() {
+        deleteRecursively(tempDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * LoopbackTransport, except that waitForEvents is answered on the scanner's threads,
+     * the way a scanner holds a long-poll open while the client's threads get on with
+     * something else.
+     */
+    private static class LongPollTransport implements Transport {
+        private final LoopbackTransport loopback;
+        private final ExecutorService scannerThreads;
+
+        LongPollTransport(SimulatedScanner scanner, ExecutorService scannerThreads) {
+            this.loopback = new LoopbackTransport(scanner);
+            this.scannerThreads = scannerThreads;
+        }
+
+        @Override
+        public void executeJson(final HttpJsonRequest request, final AsyncResult<TransportResponse> listener) {
+            if (request.requestBody == null || !"waitForEvents".equals(request.requestBody.optString("method"))) {
+                loopback.executeJson(request, listener);
+                return;
+            }
+
+            scannerThreads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loopback.executeJson(request, listener);
+                }
+            });
+        }
+
+        @Override
+        public void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener) {
+            loopback.streamBlock(request, listener);
+        }
+
+        @Override
+        public void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener) {
+            loopback.fetchCloudBlock(request, listener);
+        }
+    }
+
+    @Test
+    public void sessionsShareEventPoller() throws Exception {
+        int sessions = 50;
+        int sheets = 4;
+        EventPoller poller = new EventPoller(2);
+        ExecutorService scannerThreads = Executors.newCachedThreadPool();
+
+        final CountDownLatch done = new CountDownLatch(sessions);
+        final AtomicInteger images = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        List<SimulatedScanner> scanners = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < sessions; i++) {
+                SimulatedScanner scanner = new SimulatedScanner(sheets, 1, 4 * 1024);
+                scanner.captureIntervalMillis = 200;
+                scanners.add(scanner);
+
+                File sessionDir = new File(tempDir, Integer.toString(i));
+                sessionDir.mkdir();
+
+                final Session session = new Session(URI.create("https://scanner.local:34034"), "127.0.0.1");
+                session.setTransport(new LongPollTransport(scanner, scannerThreads));
+                session.setEventPoller(poller);
+                session.setTempDir(sessionDir);
+                session.setSessionListener(new SessionListener() {
+                    @Override
+                    public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                        images.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+                    }
+
+                    @Override
+                    public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+                    }
+
+                    @Override
+                    public void onDoneCapturing(Session session) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onConnectionError(Session session, Exception reason) {
+                        error.set(reason);
+                    }
+                });
+
+                session.open(new AsyncResponse() {
+                    @Override
+                    public void onSuccess() {
+                        session.startCapturing(new AsyncResponse() {
+                            @Override
+                            public void onSuccess() {
+                            }
+
+                            @Override
+                            public void onError(Exception e) {
+                                error.set(e);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                    }
+                });
+            }
+
+            int maxPollsOpen = 0;
+            int maxPollerThreads = 0;
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!done.await(5, TimeUnit.MILLISECONDS)) {
+                assertNull(error.get());
+                assertTrue(System.currentTimeMillis() < deadline);
+
+                int pollsOpen = 0;
+                for (SimulatedScanner scanner : scanners) {
+                    pollsOpen += scanner.requestsInProgress.get();
+                }
+                maxPollsOpen = Math.max(maxPollsOpen, pollsOpen);
+                maxPollerThreads = Math.max(maxPollerThreads, poller.getThreadCount());
+            }
+
+            assertNull(error.get());
+            assertEquals(sessions * sheets, images.get());
+
+            // Between captures, most sessions are waiting on the scanner, but the waits
+            // don't hold poller threads
+            assertTrue(maxPollsOpen >= sessions / 4);
+            assertTrue(maxPollerThreads < sessions / 10);
+        } finally {
+            poller.shutdown();
+            scannerThreads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.twaindirect.session;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPostHC4;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtilsHC4;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Count the connections (and so TCP/TLS handshakes) made per scanned page, comparing a
+ * new client per request with the shared pooled client.
+ *
+ * Each simulated page is a readImageBlock followed by a releaseImageBlocks.
+ */
+public class HttpClientBuilderTest {
+    private static final int pages = 50;
+    private static final int requestsPerPage = 2;
+
+    private HttpServer server;
+    private URI url;
+
+    // Remote ports seen by the server - one per client connection
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                connections.add(exchange.getRemoteAddress().getPort());
+                byte[] body = "{\"results\":{\"success\":true}}".getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        url = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/privet/twaindirect/session");
+    }
+
+    @After
+    public void stopServer() {
+        HttpClientBuilder.closeSharedClients();
+        server.stop(0);
+    }
+
+    @Test
+    public void sharedClientReusesConnections() throws Exception {
+        // Baseline: a new client for every request
+        connections.clear();
+        for (int i = 0; i < pages * requestsPerPage; i++) {
+            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), null);
+            CloseableHttpResponse response = httpClient.execute(new HttpPostHC4(url.toString()));
+            EntityUtilsHC4.consume(response.getEntity());
+            response.close();
+            httpClient.close();
+        }
+        int unpooledConnections = connections.size();
+
+        // The shared client, through HttpJsonRequest
+        connections.clear();
+        final int[] results = new int[1];
+        for (int i = 0; i < pages * requestsPerPage; i++) {
+            HttpJsonRequest request = new HttpJsonRequest();
+            request.url = url;
+            request.method = "POST";
+            request.requestBody = new JSONObject();
+            request.listener = new AsyncResult<JSONObject>() {
+                @Override
+                public void onResult(JSONObject result) {
+                    results[0]++;
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    throw new AssertionError(e);
+                }
+            };
+            request.run();
+        }
+        int pooledConnections = connections.size();
+
+        assertEquals(pages * requestsPerPage, results[0]);
+        assertEquals(pages * requestsPerPage, unpooledConnections);
+        assertTrue(pooledConnections <= HttpClientBuilder.getMaxConnectionsPerRoute());
+    }
+}
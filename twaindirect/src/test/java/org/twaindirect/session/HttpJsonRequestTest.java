@@ -0,0 +1,121 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twaindirect.cloud.CloudEventBroker;
+import org.twaindirect.cloud.CloudEventBrokerInfo;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cloud responses and timeouts reach the listener on its listenerExecutor, not on the
+ * thread they arrive on.
+ */
+public class HttpJsonRequestTest {
+    private ExecutorService listenerExecutor;
+
+    // Set to the listener executor's thread
+    private final AtomicReference<Thread> listenerThread = new AtomicReference<>();
+
+    private final AtomicReference<Thread> calledOn = new AtomicReference<>();
+    private final AtomicReference<Object> outcome = new AtomicReference<>();
+    private final CountDownLatch called = new CountDownLatch(1);
+
+    @Before
+    public void createExecutor() {
+        listenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "listener");
+                listenerThread.set(thread);
+                return thread;
+            }
+        });
+    }
+
+    @After
+    public void shutdownExecutor() {
+        listenerExecutor.shutdownNow();
+    }
+
+    /**
+     * A cloud command the service accepts, whose response comes later through MQTT.
+     */
+    private HttpJsonRequest createCloudRequest(int readTimeout) throws Exception {
+        CloudEventBrokerInfo info = new CloudEventBrokerInfo();
+        info.type = "mqtt";
+        info.url = "tcp://127.0.0.1:1883";
+        info.topic = "responses";
+
+        final HttpJsonRequest request = new HttpJsonRequest();
+        request.url = URI.create("https://cloud.local/scanners/1/twaindirect/session");
+        request.method = "POST";
+        request.commandId = "command";
+        request.readTimeout = readTimeout;
+        request.cloudEventBroker = new CloudEventBroker("token", info);
+        request.transport = new LoopbackTransport(new LoopbackTransport.Handler() {
+            @Override
+            public TransportResponse handle(String method, URI url, Map<String, String> headers, byte[] body) {
+                return TransportResponse.ok("{}".getBytes());
+            }
+        });
+        request.listenerExecutor = listenerExecutor;
+        request.listener = new AsyncResult<JSONObject>() {
+            @Override
+            public void onResult(JSONObject result) {
+                calledOn.set(Thread.currentThread());
+                outcome.set(result);
+                called.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                calledOn.set(Thread.currentThread());
+                outcome.set(e);
+                called.countDown();
+            }
+        };
+        return request;
+    }
+
+    @Test
+    public void cloudResponseHandledOnListenerExecutor() throws Exception {
+        final HttpJsonRequest request = createCloudRequest(30000);
+        request.run();
+
+        Thread mqtt = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                request.deliverJSONResponse("{\"commandId\":\"command\",\"results\":{\"success\":true}}");
+            }
+        }, "MQTT");
+        mqtt.start();
+        mqtt.join();
+
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertEquals(listenerThread.get(), calledOn.get());
+        assertEquals("command", ((JSONObject) outcome.get()).getString("commandId"));
+    }
+
+    @Test
+    public void cloudTimeoutHandledOnListenerExecutor() throws Exception {
+        createCloudRequest(10).run();
+
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertEquals(listenerThread.get(), calledOn.get());
+        assertTrue(outcome.get() instanceof TimeoutException);
+    }
+}
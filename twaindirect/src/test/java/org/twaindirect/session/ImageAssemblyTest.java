@@ -0,0 +1,269 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for ImageAssembly, which writes an image's parts at their offsets in one file.
+ */
+public class ImageAssemblyTest {
+    private File tempDir;
+
+    @Before
+    public void createTempDir() throws IOException {
+        tempDir = File.createTempFile("assembly", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void deleteTempDir() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void partsInOrderAreWrittenInPlace() throws IOException {
+        byte[][] parts = parts(4, 10000, 1);
+        ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image.pdf"));
+
+        for (int part = 1; part <= parts.length; part++) {
+            ImageAssembly.PartChannel channel = assembly.openPart(part, stagingFile(part));
+            assertEquals(null, channel.stagingFile);
+            write(channel, parts[part - 1]);
+            assertEquals(part == parts.length, assembly.partDownloaded(channel, part == parts.length));
+        }
+
+        assertArrayEquals(concat(parts), readFile(assembly.getFile()));
+        assertEquals(1, tempDir.listFiles().length);
+    }
+
+    /**
+     * Parts that arrive before the parts ahead of them are staged, then copied into place.
+     */
+    @Test
+    public void partsInAnyOrder() throws IOException {
+        Random random = new Random(2);
+        for (int round = 0; round < 20; round++) {
+            byte[][] parts = parts(1 + random.nextInt(8), 5000, round);
+            ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image" + round + ".pdf"));
+
+            // Open every part before any finishes, as concurrent downloads would
+            List<ImageAssembly.PartChannel> channels = new ArrayList<>();
+            for (int part = 1; part <= parts.length; part++) {
+                ImageAssembly.PartChannel channel = assembly.openPart(part, stagingFile(part));
+                write(channel, parts[part - 1]);
+                channels.add(channel);
+            }
+            Collections.shuffle(channels, random);
+
+            for (int i = 0; i < channels.size(); i++) {
+                ImageAssembly.PartChannel channel = channels.get(i);
+                assertFalse(assembly.isComplete());
+                assembly.partDownloaded(channel, channel.imagePart == parts.length);
+            }
+
+            assertTrue(assembly.isComplete());
+            assertArrayEquals(concat(parts), readFile(assembly.getFile()));
+            assembly.getFile().delete();
+
+            // Staged parts are gone
+            assertEquals(0, tempDir.listFiles().length);
+        }
+    }
+
+    @Test
+    public void smallImageStaysInMemory() throws IOException {
+        byte[][] parts = parts(3, 1000, 4);
+        ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image.pdf"), 4096, true);
+        assemble(assembly, parts);
+
+        ReceivedImage image = assembly.getImage();
+        assertTrue(image.isInMemory());
+        assertEquals(0, tempDir.listFiles().length);
+        assertArrayEquals(concat(parts), readStream(image.openStream()));
+
+        ByteBuffer buffer = image.getBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertTrue(buffer.isDirect());
+    }
+
+    /**
+     * Once the image passes the threshold, it's moved to the file.
+     */
+    @Test
+    public void largeImageSpillsToFile() throws IOException {
+        byte[][] parts = parts(6, 3000, 5);
+        ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image.pdf"), 4096, false);
+        assemble(assembly, parts);
+
+        ReceivedImage image = assembly.getImage();
+        assertFalse(image.isInMemory());
+        assertArrayEquals(concat(parts), readFile(image.getFile()));
+
+        ByteBuffer buffer = image.getBuffer();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        assertArrayEquals(concat(parts), data);
+
+        // Claiming it is a rename
+        File claimed = new File(tempDir, "claimed.pdf");
+        image.moveTo(claimed);
+        assertFalse(assembly.getFile().exists());
+        assertArrayEquals(concat(parts), readFile(claimed));
+        claimed.delete();
+
+        assembly.delivered();
+        assertEquals(0, tempDir.listFiles().length);
+    }
+
+    /**
+     * Parts are streamed in order, each as soon as it and the parts before it are in place.
+     */
+    @Test
+    public void streamPartsInOrder() throws IOException {
+        byte[][] parts = parts(5, 2000, 6);
+        ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image.pdf"));
+
+        List<ImageAssembly.PartChannel> channels = new ArrayList<>();
+        for (int part = 1; part <= parts.length; part++) {
+            ImageAssembly.PartChannel channel = assembly.openPart(part, stagingFile(part));
+            write(channel, parts[part - 1]);
+            channels.add(channel);
+        }
+
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final List<Integer> order = new ArrayList<>();
+        ImageAssembly.PartHandler handler = new ImageAssembly.PartHandler() {
+            @Override
+            public void onPart(int imagePart, long offset, ByteBuffer data, boolean lastPart, JSONObject metadata) {
+                assertEquals(streamed.size(), offset);
+                assertEquals(imagePart == 5, lastPart);
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                streamed.write(bytes, 0, bytes.length);
+                order.add(imagePart);
+            }
+        };
+
+        // Parts 2 and 4 wait for the parts before them
+        int[] arrival = { 2, 4, 1, 5, 3 };
+        int[] streamedAfter = { 0, 0, 2, 2, 5 };
+        for (int i = 0; i < arrival.length; i++) {
+            int part = arrival[i];
+            assembly.partDownloaded(channels.get(part - 1), part == 5);
+            assembly.streamParts(handler);
+            assertEquals(streamedAfter[i], order.size());
+        }
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), order);
+        assertTrue(assembly.allPartsStreamed());
+        assertArrayEquals(concat(parts), streamed.toByteArray());
+    }
+
+    /**
+     * Part 1 arrives last, so the others are staged and then copied into place.
+     */
+    private void assemble(ImageAssembly assembly, byte[][] parts) throws IOException {
+        List<ImageAssembly.PartChannel> channels = new ArrayList<>();
+        for (int part = 1; part <= parts.length; part++) {
+            ImageAssembly.PartChannel channel = assembly.openPart(part, stagingFile(part));
+            write(channel, parts[part - 1]);
+            channels.add(channel);
+        }
+        for (int i = channels.size() - 1; i >= 0; i--) {
+            assembly.partDownloaded(channels.get(i), i == channels.size() - 1);
+        }
+        assertTrue(assembly.isComplete());
+    }
+
+    @Test
+    public void abandonDeletesEverything() throws IOException {
+        byte[][] parts = parts(3, 1000, 3);
+        ImageAssembly assembly = new ImageAssembly(new File(tempDir, "image.pdf"));
+        ImageAssembly.PartChannel first = assembly.openPart(1, stagingFile(1));
+        ImageAssembly.PartChannel third = assembly.openPart(3, stagingFile(3));
+        write(first, parts[0]);
+        write(third, parts[2]);
+        assembly.partDownloaded(third, true);
+
+        assembly.abandon();
+        first.abort();
+        assertEquals(0, tempDir.listFiles().length);
+    }
+
+    private File stagingFile(int part) {
+        return new File(tempDir, part + ".part");
+    }
+
+    private static byte[][] parts(int count, int maxSize, long seed) {
+        Random random = new Random(seed);
+        byte[][] parts = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            parts[i] = new byte[1 + random.nextInt(maxSize)];
+            random.nextBytes(parts[i]);
+        }
+        return parts;
+    }
+
+    private static void write(ImageAssembly.PartChannel channel, byte[] data) throws IOException {
+        // In a few writes, as a download would
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(Math.min(chunk.remaining(), 1024));
+            buffer.position(buffer.position() + channel.write(chunk));
+        }
+        assertEquals(data.length, channel.size());
+    }
+
+    private static byte[] concat(byte[][] parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readStream(new FileInputStream(file));
+    }
+
+    private static byte[] readStream(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
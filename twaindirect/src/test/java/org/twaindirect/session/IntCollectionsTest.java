@@ -0,0 +1,162 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the primitive collections BlockDownloader uses for block bookkeeping:
+ * IntObjectMap, IntRingBuffer and BlockStateTable.
+ */
+public class IntCollectionsTest {
+    @Test
+    public void intObjectMapMatchesHashMap() {
+        Random random = new Random(1);
+        IntObjectMap<String> map = new IntObjectMap<>();
+        Map<Integer, String> expected = new HashMap<>();
+
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(2000) - 100;
+            switch (random.nextInt(3)) {
+                case 0:
+                    String value = "v" + i;
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void intRingBufferMatchesArrayDeque() {
+        Random random = new Random(2);
+        IntRingBuffer ring = new IntRingBuffer(2);
+        ArrayDeque<Integer> expected = new ArrayDeque<>();
+
+        for (int i = 0; i < 100000; i++) {
+            if (expected.isEmpty() || random.nextInt(5) < 3) {
+                ring.add(i);
+                expected.add(i);
+                assertEquals(i, ring.peekLast());
+            } else {
+                assertEquals((int)expected.peek(), ring.peek());
+                assertEquals((int)expected.poll(), ring.poll());
+            }
+            assertEquals(expected.size(), ring.size());
+        }
+
+        while (!expected.isEmpty()) {
+            assertEquals((int)expected.poll(), ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void blockStateTable() {
+        BlockStateTable table = new BlockStateTable();
+        assertNull(table.get(1));
+        assertFalse(table.contains(100000));
+
+        table.put(1, BlockDownloader.BlockState.readyToDownload);
+        table.put(100000, BlockDownloader.BlockState.completed);
+        assertEquals(BlockDownloader.BlockState.readyToDownload, table.get(1));
+        assertEquals(BlockDownloader.BlockState.completed, table.get(100000));
+        assertNull(table.get(99999));
+
+        table.put(1, BlockDownloader.BlockState.downloading);
+        assertEquals(BlockDownloader.BlockState.downloading, table.get(1));
+    }
+
+    @Test
+    public void blockStateTableCompactsBelowWatermark() {
+        BlockStateTable table = new BlockStateTable();
+
+        // Keep a few blocks outstanding as the watermark moves through 100,000 blocks
+        for (int blockNum = 1; blockNum <= 100000; blockNum++) {
+            table.put(blockNum, BlockDownloader.BlockState.readyToDownload);
+            if (blockNum > 10) {
+                table.setCompletedBelow(blockNum - 10);
+            }
+        }
+
+        assertTrue("Table holds " + table.capacity() + " entries", table.capacity() <= 64);
+        assertEquals(BlockDownloader.BlockState.completed, table.get(1));
+        assertEquals(BlockDownloader.BlockState.completed, table.get(99989));
+        assertEquals(BlockDownloader.BlockState.readyToDownload, table.get(99990));
+        assertEquals(BlockDownloader.BlockState.readyToDownload, table.get(100000));
+        assertNull(table.get(100001));
+
+        // Completed blocks can't be reopened
+        table.put(5, BlockDownloader.BlockState.readyToDownload);
+        assertEquals(BlockDownloader.BlockState.completed, table.get(5));
+    }
+
+    /**
+     * Once the structures have grown to the batch size, tracking a block through its
+     * states allocates nothing.
+     */
+    @Test
+    public void bookkeepingDoesNotAllocate() {
+        int blocks = 10000;
+        BlockStateTable states = new BlockStateTable();
+        IntRingBuffer ready = new IntRingBuffer(blocks);
+        IntObjectMap<Object> downloaded = new IntObjectMap<>();
+        Object info = new Object();
+
+        // Grow everything, and warm up
+        for (int round = 0; round < 20; round++) {
+            trackBlocks(blocks, states, ready, downloaded, info);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        trackBlocks(blocks, states, ready, downloaded, info);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static void trackBlocks(int blocks, BlockStateTable states, IntRingBuffer ready, IntObjectMap<Object> downloaded, Object info) {
+        for (int blockNum = 1; blockNum <= blocks; blockNum++) {
+            if (!states.contains(blockNum) || states.get(blockNum) == BlockDownloader.BlockState.completed) {
+                states.put(blockNum, BlockDownloader.BlockState.readyToDownload);
+                ready.add(blockNum);
+            }
+        }
+        while (!ready.isEmpty()) {
+            int blockNum = ready.poll();
+            states.put(blockNum, BlockDownloader.BlockState.downloading);
+            states.put(blockNum, BlockDownloader.BlockState.waitingForMoreParts);
+            downloaded.put(blockNum, info);
+        }
+        for (int blockNum = 1; blockNum <= blocks; blockNum++) {
+            downloaded.remove(blockNum);
+            states.put(blockNum, BlockDownloader.BlockState.completed);
+        }
+    }
+}
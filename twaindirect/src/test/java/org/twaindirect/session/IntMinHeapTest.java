@@ -0,0 +1,178 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for IntMinHeap, and a comparison of ways to pick the next block to download.
+ */
+public class IntMinHeapTest {
+    @Test
+    public void matchesPriorityQueue() {
+        Random random = new Random(1);
+        IntMinHeap heap = new IntMinHeap(1);
+        PriorityQueue<Integer> queue = new PriorityQueue<>();
+
+        for (int i = 0; i < 100000; i++) {
+            if (queue.isEmpty() || random.nextInt(3) > 0) {
+                int value = random.nextInt(1000);
+                heap.add(value);
+                queue.add(value);
+            } else {
+                assertEquals((int)queue.peek(), heap.peek());
+                assertEquals((int)queue.poll(), heap.poll());
+            }
+            assertEquals(queue.size(), heap.size());
+        }
+
+        while (!queue.isEmpty()) {
+            assertEquals((int)queue.poll(), heap.poll());
+        }
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void emptyHeap() {
+        IntMinHeap heap = new IntMinHeap();
+        heap.add(5);
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        try {
+            heap.poll();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * The three ways of picking blocks compared below pick them in the same order.
+     */
+    @Test
+    public void blockSelectionOrderMatches() {
+        int sheets = 1000;
+        int updateSize = 50;
+        long sortedSum = selectBySorting(sheets, updateSize);
+        assertEquals(sortedSum, selectWithPriorityQueue(sheets, updateSize));
+        assertEquals(sortedSum, selectWithIntMinHeap(sheets, updateSize));
+    }
+
+    /**
+     * Pick blocks for a 10,000 sheet batch, reported in session updates of 50 blocks,
+     * three ways: sorting the block state map's keys each time (as BlockDownloader used
+     * to), a PriorityQueue of Integers, and IntMinHeap.
+     */
+    @Test
+    public void compareBlockSelection() {
+        Benchmarks.assumeEnabled();
+
+        int sheets = 10000;
+        int updateSize = 50;
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            selectBySorting(sheets / 10, updateSize);
+        }
+
+        long start = System.nanoTime();
+        long sortedSum = selectBySorting(sheets, updateSize);
+        long sortingMillis = (System.nanoTime() - start) / 1000000;
+
+        // The queues are quick, so take the best of several runs
+        long queueSum = 0;
+        long heapSum = 0;
+        long queueMicros = Long.MAX_VALUE;
+        long heapMicros = Long.MAX_VALUE;
+        for (int i = 0; i < 50; i++) {
+            start = System.nanoTime();
+            queueSum = selectWithPriorityQueue(sheets, updateSize);
+            queueMicros = Math.min(queueMicros, (System.nanoTime() - start) / 1000);
+
+            start = System.nanoTime();
+            heapSum = selectWithIntMinHeap(sheets, updateSize);
+            heapMicros = Math.min(heapMicros, (System.nanoTime() - start) / 1000);
+        }
+
+        assertEquals(sortedSum, queueSum);
+        assertEquals(sortedSum, heapSum);
+
+        Benchmarks.report("Selecting %d blocks: sort keyset %d ms, PriorityQueue %d us, IntMinHeap %d us",
+                sheets, sortingMillis, queueMicros, heapMicros);
+    }
+
+    /**
+     * The old selection: every block stays in the map, and each pick sorts all the keys
+     * and scans for the first ready one. Returns a checksum of the order picked.
+     */
+    private static long selectBySorting(int blocks, int updateSize) {
+        Map<Integer, BlockDownloader.BlockState> blockState = new HashMap<>();
+        long checksum = 0;
+        int picked = 0;
+        for (int next = 1; next <= blocks; next += updateSize) {
+            for (int blockNum = next; blockNum < next + updateSize && blockNum <= blocks; blockNum++) {
+                blockState.put(blockNum, BlockDownloader.BlockState.readyToDownload);
+            }
+
+            while (true) {
+                Object[] keys = blockState.keySet().toArray();
+                Arrays.sort(keys);
+                int blockReady = -1;
+                for (Object key : keys) {
+                    if (blockState.get(key) == BlockDownloader.BlockState.readyToDownload) {
+                        blockReady = (int)key;
+                        break;
+                    }
+                }
+                if (blockReady == -1) {
+                    break;
+                }
+                blockState.put(blockReady, BlockDownloader.BlockState.completed);
+                checksum = checksum * 31 + blockReady * ++picked;
+            }
+        }
+        return checksum;
+    }
+
+    private static long selectWithPriorityQueue(int blocks, int updateSize) {
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        long checksum = 0;
+        int picked = 0;
+        for (int next = 1; next <= blocks; next += updateSize) {
+            // Add each update in reverse, so the queue has to order them
+            for (int blockNum = Math.min(next + updateSize - 1, blocks); blockNum >= next; blockNum--) {
+                ready.add(blockNum);
+            }
+            while (!ready.isEmpty()) {
+                int blockReady = ready.poll();
+                checksum = checksum * 31 + blockReady * ++picked;
+            }
+        }
+        return checksum;
+    }
+
+    private static long selectWithIntMinHeap(int blocks, int updateSize) {
+        IntMinHeap ready = new IntMinHeap();
+        long checksum = 0;
+        int picked = 0;
+        for (int next = 1; next <= blocks; next += updateSize) {
+            for (int blockNum = Math.min(next + updateSize - 1, blocks); blockNum >= next; blockNum--) {
+                ready.add(blockNum);
+            }
+            while (!ready.isEmpty()) {
+                int blockReady = ready.poll();
+                checksum = checksum * 31 + blockReady * ++picked;
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,110 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run a 50,000 block session against SimulatedScanner and check that the heap doesn't
+ * grow with the number of blocks delivered. This takes the best part of a minute, so it
+ * only runs with the benchmarks.
+ */
+public class LongSessionSoakTest {
+    private static final int blocks = 50000;
+    private static final int sampleInterval = 10000;
+
+    private final Logger libraryLogger = Logger.getLogger("org.twaindirect");
+    private Level savedLevel;
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        Benchmarks.assumeEnabled();
+
+        // Per-block logging would dominate the run
+        savedLevel = libraryLogger.getLevel();
+        libraryLogger.setLevel(Level.WARNING);
+
+        tempDir = File.createTempFile("soak", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        // Skipped without benchmarks
+        if (tempDir == null) {
+            return;
+        }
+
+        libraryLogger.setLevel(savedLevel);
+
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void heapStaysFlat() throws Exception {
+        // Small blocks, so the bookkeeping is what's measured
+        SimulatedScanner scanner = new SimulatedScanner(blocks, 1, 16);
+        scanner.bufferBlocks = 1;
+
+        final AtomicInteger delivered = new AtomicInteger();
+        final List<Long> samples = new ArrayList<>();
+
+        long start = System.nanoTime();
+        LoopbackTransportTest.capture(scanner, tempDir, null, new LoopbackTransportTest.ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+                if (delivered.incrementAndGet() % sampleInterval == 0) {
+                    samples.add(usedHeapAfterGc());
+                }
+            }
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        Benchmarks.report("Soak: %d blocks in %d ms, heap used every %d blocks (KB): %s",
+                blocks, elapsedMillis, sampleInterval, kilobytes(samples));
+
+        assertEquals(blocks, delivered.get());
+        assertEquals(blocks / sampleInterval, samples.size());
+
+        // Retaining even 100 bytes per block would add ~4 MB between the first and last samples
+        long growth = samples.get(samples.size() - 1) - samples.get(0);
+        assertTrue("Heap grew by " + growth + " bytes", growth < 2 * 1024 * 1024);
+    }
+
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static List<Long> kilobytes(List<Long> bytes) {
+        List<Long> result = new ArrayList<>();
+        for (long value : bytes) {
+            result.add(value / 1024);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,928 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twaindirect.cloud.CloudBlockRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run a complete capture against SimulatedScanner through LoopbackTransport - the whole
+ * session protocol and block download path, with no sockets.
+ */
+public class LoopbackTransportTest {
+    private File tempDir;
+
+    @Before
+    public void createTempDir() throws IOException {
+        tempDir = File.createTempFile("loopback", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void deleteTempDir() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Test
+    public void captureWithoutSockets() throws Exception {
+        int sheets = 20;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 3, 64 * 1024);
+
+        // One block at a time, so blocks complete in order
+        scanner.bufferBlocks = 1;
+
+        Map<Integer, byte[]> images = capture(scanner);
+
+        assertEquals(sheets, images.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertArrayEquals(scanner.imageData(sheet), images.get(sheet));
+        }
+        assertEquals(scanner.getBlockCount(), scanner.readImageBlockCount.get());
+    }
+
+    /**
+     * Block downloads run on the application's executor, one task per block.
+     */
+    @Test
+    public void downloadsOnSuppliedExecutor() throws Exception {
+        int sheets = 10;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 2, 16 * 1024);
+        scanner.bufferBlocks = 1;
+
+        final AtomicInteger tasks = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                pool.execute(command);
+            }
+        };
+
+        try {
+            Map<Integer, byte[]> images = capture(scanner, tempDir, executor);
+            assertEquals(sheets, images.size());
+        } finally {
+            pool.shutdown();
+        }
+
+        // No tasks that found nothing to do
+        assertEquals(scanner.getBlockCount(), tasks.get());
+    }
+
+    /**
+     * Images are assembled and delivered off the download threads, in order, and a slow
+     * consumer doesn't stop the next blocks downloading.
+     */
+    @Test
+    public void slowConsumerDoesNotStallDownloads() throws Exception {
+        int sheets = 8;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 2, 16 * 1024);
+        scanner.bufferBlocks = 1;
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger blocksReadDuringFirstImage = new AtomicInteger();
+        final AtomicReference<String> deliveryThread = new AtomicReference<>();
+
+        capture(scanner, tempDir, null, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+                deliveryThread.compareAndSet(null, Thread.currentThread().getName());
+                if (order.isEmpty()) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    blocksReadDuringFirstImage.set(scanner.readImageBlockCount.get());
+                }
+                order.add(sheetNumber);
+            }
+        });
+
+        assertEquals(sheets, order.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertEquals(sheet, (int)order.get(sheet - 1));
+        }
+        assertTrue(deliveryThread.get(), deliveryThread.get().startsWith("twaindirect-delivery"));
+
+        // While the first image was with the consumer, downloads carried on until the
+        // undelivered image limit was reached
+        assertTrue("Read " + blocksReadDuringFirstImage.get() + " blocks",
+                blocksReadDuringFirstImage.get() >= BlockDownloader.DEFAULT_MAX_UNDELIVERED_IMAGES * 2);
+    }
+
+    /**
+     * When blocks complete out of order, every image that becomes deliverable is
+     * delivered, in order.
+     */
+    @Test
+    public void outOfOrderBlocksDeliveredInOrder() throws Exception {
+        int sheets = 12;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 2, 16 * 1024);
+        scanner.slowBlockNum = 1;
+        scanner.slowBlockDelayMillis = 500;
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        capture(scanner, tempDir, null, false, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                order.add(sheetNumber);
+            }
+        });
+
+        assertEquals(sheets, order.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertEquals(sheet, (int)order.get(sheet - 1));
+        }
+    }
+
+    /**
+     * In out-of-order mode, images don't wait for a slow image ahead of them.
+     */
+    @Test
+    public void outOfOrderDelivery() throws Exception {
+        int sheets = 12;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 2, 16 * 1024);
+        scanner.slowBlockNum = 1;
+        scanner.slowBlockDelayMillis = 500;
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+        capture(scanner, tempDir, null, true, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                order.add(sheetNumber);
+                images.put(sheetNumber, readFile(pdfPath));
+            }
+        });
+
+        assertEquals(sheets, order.size());
+        assertTrue("Sheet 1 was delivered at position " + order.indexOf(1), order.indexOf(1) > 0);
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertArrayEquals(scanner.imageData(sheet), images.get(sheet));
+        }
+    }
+
+    /**
+     * With an ImageDataListener, small images are delivered in memory without touching
+     * the disk, and larger ones are spilled to a file.
+     */
+    @Test
+    public void inMemoryDelivery() throws Exception {
+        int sheets = 10;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 3, 16 * 1024);
+        scanner.bufferBlocks = 1;
+
+        final File tempDir = this.tempDir;
+        final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+        final AtomicInteger inMemory = new AtomicInteger();
+        final AtomicInteger filesSeen = new AtomicInteger();
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                // Sheets are three 16 KB parts, so they all fit
+                session.setInMemoryImageThreshold(48 * 1024);
+                session.setImageDataListener(new ImageDataListener() {
+                    @Override
+                    public void onImageReceived(Session session, ReceivedImage image, JSONObject metadata) {
+                        try {
+                            int sheet = metadata.getJSONObject("address").getInt("sheetNumber");
+                            if (image.isInMemory()) {
+                                inMemory.incrementAndGet();
+                            }
+                            filesSeen.addAndGet(tempDir.listFiles().length);
+
+                            byte[] data = new byte[(int)image.getSize()];
+                            image.getBuffer().get(data);
+                            images.put(sheet, data);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        }, null);
+
+        assertEquals(sheets, images.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertArrayEquals(scanner.imageData(sheet), images.get(sheet));
+        }
+        assertEquals(sheets, inMemory.get());
+        assertEquals(0, filesSeen.get());
+    }
+
+    /**
+     * An ImagePartListener gets every part of each image, in order, before the image.
+     */
+    @Test
+    public void imagePartsStreamedBeforeImage() throws Exception {
+        int sheets = 6;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 4, 16 * 1024);
+
+        final Map<Integer, ByteArrayOutputStream> streamed = new ConcurrentHashMap<>();
+        final AtomicReference<String> problem = new AtomicReference<>();
+        final AtomicInteger images = new AtomicInteger();
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                session.setImagePartListener(new ImagePartListener() {
+                    @Override
+                    public void onImagePartReceived(Session session, int imagePart, long offset, ByteBuffer data, boolean lastPart, JSONObject metadata) {
+                        int sheet = metadata.getJSONObject("address").getInt("sheetNumber");
+                        if (metadata.getJSONObject("address").getInt("imagePart") != imagePart) {
+                            problem.set("Metadata for the wrong part");
+                        }
+                        ByteArrayOutputStream out = streamed.get(sheet);
+                        if (out == null) {
+                            out = new ByteArrayOutputStream();
+                            streamed.put(sheet, out);
+                        }
+                        if (offset != out.size()) {
+                            problem.set("Part " + imagePart + " of sheet " + sheet + " at " + offset + ", expected " + out.size());
+                        }
+                        byte[] bytes = new byte[data.remaining()];
+                        data.get(bytes);
+                        out.write(bytes, 0, bytes.length);
+                    }
+                });
+            }
+        }, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+                ByteArrayOutputStream out = streamed.get(sheetNumber);
+                if (out == null || !Arrays.equals(scanner.imageData(sheetNumber), out.toByteArray())) {
+                    problem.set("Sheet " + sheetNumber + " delivered before all its parts");
+                }
+                images.incrementAndGet();
+            }
+        });
+
+        assertNull(problem.get());
+        assertEquals(sheets, images.get());
+    }
+
+    /**
+     * With an ImageDestination, images are written straight to the application's files,
+     * which are left in place after delivery.
+     */
+    @Test
+    public void imagesWrittenToDestination() throws Exception {
+        int sheets = 6;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 3, 16 * 1024);
+        scanner.bufferBlocks = 1;
+
+        final File destinationDir = new File(tempDir, "destination");
+        destinationDir.mkdir();
+        final List<File> delivered = Collections.synchronizedList(new ArrayList<File>());
+        try {
+            captureWith(scanner, tempDir, new SessionSetup() {
+                @Override
+                public void setUp(Session session) {
+                    session.setImageDestination(new ImageDestination() {
+                        @Override
+                        public File getImageDestination(Session session, String suggestedName, JSONObject metadata) {
+                            return new File(destinationDir, "scan-" + suggestedName);
+                        }
+                    });
+                }
+            }, new ImageReceiver() {
+                @Override
+                public void onImage(int sheetNumber, File pdfPath) {
+                    delivered.add(pdfPath);
+                }
+            });
+
+            assertEquals(sheets, delivered.size());
+            for (int sheet = 1; sheet <= sheets; sheet++) {
+                File file = delivered.get(sheet - 1);
+                assertEquals(new File(destinationDir, "scan-" + sheet + "-" + sheet + "-1.pdf"), file);
+                assertArrayEquals(scanner.imageData(sheet), readFile(file));
+            }
+
+            // Nothing left in the temp directory but the destination
+            assertEquals(1, tempDir.listFiles().length);
+        } finally {
+            for (File file : destinationDir.listFiles()) {
+                file.delete();
+            }
+            destinationDir.delete();
+        }
+    }
+
+    /**
+     * A block whose connection drops part way through is downloaded again after a backoff,
+     * and the application only sees the finished images.
+     */
+    @Test
+    public void droppedBlockIsRetried() throws Exception {
+        int sheets = 6;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 2, 16 * 1024);
+        scanner.droppedBlockNum = 3;
+        scanner.droppedBlockCount.set(2);
+
+        final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                session.setBlockRetry(3, 10, 40);
+            }
+        }, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                images.put(sheetNumber, readFile(pdfPath));
+            }
+        });
+
+        assertEquals(sheets, images.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertArrayEquals(scanner.imageData(sheet), images.get(sheet));
+        }
+        assertEquals(scanner.getBlockCount() + 2, scanner.readImageBlockCount.get());
+    }
+
+    /**
+     * When a hedged block's second request finishes first, the first request is aborted
+     * rather than left to run until the scanner answers it.
+     */
+    @Test
+    public void hedgeLoserIsAborted() throws Exception {
+        int sheets = 200;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 1, 4 * 1024);
+        scanner.readImageBlockDelayMillis = 20;
+        scanner.slowBlockNum = 25;
+        scanner.slowBlockCount.set(1);
+        scanner.slowBlockDelayMillis = 60000;
+
+        // A window full at its maximum leaves no connection for the hedge, so keep the
+        // downloads in flight below it
+        scanner.bufferBlocks = BlockDownloader.DEFAULT_MAX_WINDOW_SIZE - 2;
+
+        final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+        AtomicReference<DownloadMetrics> metrics = new AtomicReference<>();
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                session.setHedging(95, 50);
+            }
+        }, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                images.put(sheetNumber, readFile(pdfPath));
+            }
+        }, metrics);
+
+        assertEquals(sheets, images.size());
+        for (int sheet = 1; sheet <= sheets; sheet++) {
+            assertArrayEquals(scanner.imageData(sheet), images.get(sheet));
+        }
+        assertTrue(metrics.get().blocksHedged >= 1);
+
+        // Aborted as soon as the hedge won, not when the session closed at the end
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scanner.slowBlockAbortedAfterReads < 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertTrue(scanner.slowBlockAbortedAfterReads < sheets);
+    }
+
+    /**
+     * Once a block has used up its attempts, the application hears about it through
+     * onConnectionError.
+     */
+    @Test
+    public void connectionErrorAfterLastAttempt() throws Exception {
+        SimulatedScanner scanner = new SimulatedScanner(4, 1, 1024);
+        scanner.droppedBlockNum = 2;
+        scanner.droppedBlockCount.set(Integer.MAX_VALUE);
+
+        Exception error = captureUntilDone(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                session.setBlockRetry(3, 10, 40);
+            }
+        }, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+            }
+        });
+
+        assertTrue(error instanceof IOException);
+        assertEquals(Integer.MAX_VALUE - 3, scanner.droppedBlockCount.get());
+    }
+
+    /**
+     * Open a session on the simulated scanner, capture everything, and return the
+     * delivered images by sheet number.
+     */
+    static Map<Integer, byte[]> capture(SimulatedScanner scanner, File tempDir) throws Exception {
+        return capture(scanner, tempDir, null);
+    }
+
+    /**
+     * As capture(scanner, tempDir), running block downloads on downloadExecutor if it isn't null.
+     */
+    static Map<Integer, byte[]> capture(SimulatedScanner scanner, File tempDir, Executor downloadExecutor) throws Exception {
+        final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+        capture(scanner, tempDir, downloadExecutor, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                images.put(sheetNumber, readFile(pdfPath));
+            }
+        });
+        return images;
+    }
+
+    /**
+     * Called with each image delivered by capture.
+     */
+    interface ImageReceiver {
+        void onImage(int sheetNumber, File pdfPath) throws IOException;
+    }
+
+    /**
+     * Open a session on the simulated scanner and capture everything, passing each image
+     * to receiver as it's delivered.
+     */
+    static void capture(SimulatedScanner scanner, File tempDir, Executor downloadExecutor, final ImageReceiver receiver) throws Exception {
+        capture(scanner, tempDir, downloadExecutor, false, receiver);
+    }
+
+    /**
+     * As capture(scanner, tempDir, downloadExecutor, receiver), optionally delivering
+     * images out of order.
+     */
+    static void capture(SimulatedScanner scanner, File tempDir, final Executor downloadExecutor, final boolean outOfOrder, final ImageReceiver receiver) throws Exception {
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+                if (downloadExecutor != null) {
+                    session.setDownloadExecutor(downloadExecutor);
+                }
+                session.setOutOfOrderDelivery(outOfOrder);
+            }
+        }, receiver);
+    }
+
+    /**
+     * Configures the session before capture starts.
+     */
+    interface SessionSetup {
+        void setUp(Session session);
+    }
+
+    /**
+     * Open a session on the simulated scanner, configured by setup, and capture everything,
+     * passing each image delivered to the SessionListener to receiver.
+     */
+    static void captureWith(SimulatedScanner scanner, File tempDir, SessionSetup setup, ImageReceiver receiver) throws Exception {
+        captureWith(scanner, tempDir, setup, receiver, null);
+    }
+
+    /**
+     * As captureWith(scanner, tempDir, setup, receiver), setting metrics, if it isn't
+     * null, to the session's download metrics once capturing is done.
+     */
+    static void captureWith(SimulatedScanner scanner, File tempDir, SessionSetup setup, ImageReceiver receiver,
+                            AtomicReference<DownloadMetrics> metrics) throws Exception {
+        assertNull(captureUntilDone(scanner, tempDir, setup, receiver, metrics));
+    }
+
+    /**
+     * As captureWith, returning the first error reported rather than failing on it. Returns
+     * when capturing is done, or after the first error.
+     */
+    static Exception captureUntilDone(SimulatedScanner scanner, File tempDir, SessionSetup setup, final ImageReceiver receiver) throws Exception {
+        return captureUntilDone(scanner, tempDir, setup, receiver, null);
+    }
+
+    static Exception captureUntilDone(SimulatedScanner scanner, File tempDir, SessionSetup setup, final ImageReceiver receiver,
+                                      final AtomicReference<DownloadMetrics> metrics) throws Exception {
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final Session session = new Session(URI.create("https://scanner.local:34034"), "127.0.0.1");
+        session.setTransport(new LoopbackTransport(scanner));
+        session.setTempDir(tempDir);
+        setup.setUp(session);
+        session.setSessionListener(new SessionListener() {
+            @Override
+            public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                try {
+                    receiver.onImage(metadata.getJSONObject("address").getInt("sheetNumber"), pdfPath);
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }
+
+            @Override
+            public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+            }
+
+            @Override
+            public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+            }
+
+            @Override
+            public void onDoneCapturing(Session session) {
+                if (metrics != null) {
+                    metrics.set(session.getDownloadMetrics());
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onConnectionError(Session session, Exception reason) {
+                error.set(reason);
+                done.countDown();
+            }
+        });
+
+        session.open(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                session.startCapturing(new AsyncResponse() {
+                    @Override
+                    public void onSuccess() {
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(60 + scanner.getBlockCount() / 1000, TimeUnit.SECONDS));
+        return error.get();
+    }
+
+    /**
+     * Blocks the scanner captures while capture is under way are only announced through
+     * waitForEvents. The session polls again straight away after each response, so each
+     * block is asked for soon after it's captured.
+     */
+    @Test
+    public void eventsPolledWithoutDelay() throws Exception {
+        int sheets = 10;
+        SimulatedScanner scanner = new SimulatedScanner(sheets, 1, 16 * 1024);
+        scanner.captureIntervalMillis = 100;
+
+        final AtomicReference<DownloadMetrics> metrics = new AtomicReference<>();
+        captureWith(scanner, tempDir, new SessionSetup() {
+            @Override
+            public void setUp(Session session) {
+            }
+        }, new ImageReceiver() {
+            @Override
+            public void onImage(int sheetNumber, File pdfPath) {
+            }
+        }, metrics);
+
+        long maxCaptureToReadMillis = scanner.maxCaptureToReadNanos.get() / 1000000;
+
+        // Sleeping a second between polls would leave blocks waiting for most of that
+        assertTrue(scanner.waitForEventsCount.get() >= sheets);
+        assertTrue(maxCaptureToReadMillis < 500);
+        assertTrue(metrics.get().waitForEventsGapP99Millis < 100);
+    }
+
+    /**
+     * Closing a busy session aborts the block downloads and waitForEvents long-poll in
+     * flight, rather than leaving them until the scanner responds or they time out.
+     */
+    @Test
+    public void closeCancelsRequestsInFlight() throws Exception {
+        SimulatedScanner scanner = new SimulatedScanner(4, 1, 16 * 1024);
+        scanner.readImageBlockDelayMillis = 60000;
+        scanner.waitForEventsDelayMillis = 60000;
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final Session session = new Session(URI.create("https://scanner.local:34034"), "127.0.0.1");
+        session.setTransport(new LoopbackTransport(scanner));
+        session.setTempDir(tempDir);
+        session.setSessionListener(new SessionListener() {
+            @Override
+            public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+            }
+
+            @Override
+            public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+            }
+
+            @Override
+            public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+            }
+
+            @Override
+            public void onDoneCapturing(Session session) {
+            }
+
+            @Override
+            public void onConnectionError(Session session, Exception reason) {
+                error.set(reason);
+            }
+        });
+
+        session.open(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                session.startCapturing(new AsyncResponse() {
+                    @Override
+                    public void onSuccess() {
+                        started.countDown();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Wait for a window's worth of downloads and the long-poll to be stuck in the scanner
+        int window = BlockDownloader.DEFAULT_WINDOW_SIZE;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scanner.readImageBlockCount.get() < window || scanner.waitForEventsCount.get() < 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(window + 1, scanner.requestsInProgress.get());
+
+        long start = System.nanoTime();
+        session.close(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+            }
+        });
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (scanner.requestsInProgress.get() > 0 || session.getDownloadMetrics().activeDownloads > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("Closed busy session in " + elapsedMillis + " ms", elapsedMillis < 1000);
+        assertNull(error.get());
+
+        // The blocks that hadn't started were dropped
+        assertEquals(window, scanner.readImageBlockCount.get());
+    }
+
+    /**
+     * Closing while the first block is still downloading leaves the blocks after it with
+     * nothing to be delivered behind. They're dropped, with their files, and the
+     * application still hears that capturing is done.
+     */
+    @Test
+    public void doneCapturingAfterCloseMidDownload() throws Exception {
+        SimulatedScanner scanner = new SimulatedScanner(4, 1, 16 * 1024);
+        scanner.slowBlockNum = 1;
+        scanner.slowBlockDelayMillis = 60000;
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch doneCapturing = new CountDownLatch(1);
+        final AtomicInteger imagesReceived = new AtomicInteger();
+
+        final Session session = new Session(URI.create("https://scanner.local:34034"), "127.0.0.1");
+        session.setTransport(new LoopbackTransport(scanner));
+        session.setTempDir(tempDir);
+        session.setSessionListener(new SessionListener() {
+            @Override
+            public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                imagesReceived.incrementAndGet();
+            }
+
+            @Override
+            public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+            }
+
+            @Override
+            public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+            }
+
+            @Override
+            public void onDoneCapturing(Session session) {
+                doneCapturing.countDown();
+            }
+
+            @Override
+            public void onConnectionError(Session session, Exception reason) {
+                error.set(reason);
+            }
+        });
+
+        session.open(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                session.startCapturing(new AsyncResponse() {
+                    @Override
+                    public void onSuccess() {
+                        started.countDown();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Blocks 2 to 4 download, and wait for block 1
+        long deadline = System.currentTimeMillis() + 10000;
+        while (session.getDownloadMetrics().blocksDownloaded < 3) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        session.close(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+            }
+        });
+
+        assertTrue(doneCapturing.await(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(0, imagesReceived.get());
+        assertEquals(0, session.getDownloadMetrics().undeliveredImages);
+        assertArrayEquals(new String[0], tempDir.list());
+    }
+
+    /**
+     * A transport that answers on several threads, the way NioTransport does, doesn't
+     * let commands overlap: the session sends each one once the last one's response
+     * has been handled.
+     */
+    @Test
+    public void commandsSentOneAtATime() throws Exception {
+        int sheets = 20;
+        final SimulatedScanner scanner = new SimulatedScanner(sheets, 1, 16 * 1024);
+        final LoopbackTransport loopback = new LoopbackTransport(scanner);
+        final ExecutorService callbackThreads = Executors.newFixedThreadPool(4);
+        final AtomicInteger commandsInProgress = new AtomicInteger();
+        final AtomicInteger maxCommandsInProgress = new AtomicInteger();
+
+        try {
+            final Map<Integer, byte[]> images = new ConcurrentHashMap<>();
+            captureWith(scanner, tempDir, new SessionSetup() {
+                @Override
+                public void setUp(Session session) {
+                    session.setTransport(new Transport() {
+                        @Override
+                        public void executeJson(final HttpJsonRequest request, final AsyncResult<TransportResponse> listener) {
+                            final boolean command = request.requestBody != null
+                                    && !"waitForEvents".equals(request.requestBody.optString("method"));
+                            if (command) {
+                                int inProgress = commandsInProgress.incrementAndGet();
+                                while (true) {
+                                    int max = maxCommandsInProgress.get();
+                                    if (inProgress <= max || maxCommandsInProgress.compareAndSet(max, inProgress)) {
+                                        break;
+                                    }
+                                }
+                            }
+                            callbackThreads.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    loopback.executeJson(request, new AsyncResult<TransportResponse>() {
+                                        @Override
+                                        public void onResult(TransportResponse result) {
+                                            if (command) {
+                                                commandsInProgress.decrementAndGet();
+                                            }
+                                            listener.onResult(result);
+                                        }
+
+                                        @Override
+                                        public void onError(Exception e) {
+                                            if (command) {
+                                                commandsInProgress.decrementAndGet();
+                                            }
+                                            listener.onError(e);
+                                        }
+                                    });
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void streamBlock(HttpBlockRequest request, AsyncResult<TransportResponse> listener) {
+                            loopback.streamBlock(request, listener);
+                        }
+
+                        @Override
+                        public void fetchCloudBlock(CloudBlockRequest request, AsyncResult<TransportResponse> listener) {
+                            loopback.fetchCloudBlock(request, listener);
+                        }
+                    });
+                }
+            }, new ImageReceiver() {
+                @Override
+                public void onImage(int sheetNumber, File pdfPath) throws IOException {
+                    images.put(sheetNumber, readFile(pdfPath));
+                }
+            });
+
+            assertEquals(sheets, images.size());
+            assertTrue(scanner.releaseImageBlocksCount.get() > 0);
+            assertEquals(1, maxCommandsInProgress.get());
+        } finally {
+            callbackThreads.shutdown();
+        }
+    }
+
+    private Map<Integer, byte[]> capture(SimulatedScanner scanner) throws Exception {
+        return capture(scanner, tempDir);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int len = in.read(data, offset, data.length - offset);
+                if (len < 0) {
+                    break;
+                }
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,133 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for MultipartParser. MultipartParserBenchmark compares it with the javax.mail
+ * path it replaced.
+ */
+public class MultipartParserTest {
+    private static final byte[] json = "{\"results\":{\"success\":true}}".getBytes();
+
+    private File tempFile;
+
+    @Before
+    public void createTempFile() throws IOException {
+        tempFile = File.createTempFile("multipart", ".pdf");
+    }
+
+    @After
+    public void deleteTempFile() {
+        tempFile.delete();
+    }
+
+    @Test
+    public void readsMetadataAndImage() throws IOException {
+        byte[] pdf = data(200000);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(SimulatedScanner.multipart(json, pdf)));
+
+        assertTrue(parser.nextPart());
+        assertTrue(parser.getContentType().startsWith("application/json"));
+        assertArrayEquals(json, parser.readBody());
+
+        assertTrue(parser.nextPart());
+        assertEquals("application/pdf", parser.getContentType());
+        assertEquals(pdf.length, parser.getContentLength());
+        assertArrayEquals(pdf, transferToFile(parser));
+
+        assertFalse(parser.nextPart());
+    }
+
+    @Test
+    public void partsWithoutContentLength() throws IOException {
+        // The image contains CRLF and "--" sequences that mustn't be mistaken for the delimiter
+        byte[] pdf = ("%PDF\r\n--\r\n-- boundary\r\n" + new String(data(100000), "ISO-8859-1")).getBytes("ISO-8859-1");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("preamble\r\n--boundary\r\nContent-Type: application/json\r\n\r\n".getBytes());
+        body.write(json);
+        body.write("\r\n--boundary\r\nContent-Type: application/pdf\r\n\r\n".getBytes());
+        body.write(pdf);
+        body.write("\r\n--boundary--\r\n".getBytes());
+
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body.toByteArray()));
+        assertTrue(parser.nextPart());
+        assertArrayEquals(json, parser.readBody());
+        assertTrue(parser.nextPart());
+        assertEquals(-1, parser.getContentLength());
+        assertArrayEquals(pdf, transferToFile(parser));
+        assertFalse(parser.nextPart());
+    }
+
+    @Test
+    public void skipsUnreadParts() throws IOException {
+        byte[] pdf = data(1000);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(SimulatedScanner.multipart(json, pdf)));
+        assertTrue(parser.nextPart());
+        assertTrue(parser.nextPart());
+        assertArrayEquals(pdf, parser.readBody());
+        assertFalse(parser.nextPart());
+    }
+
+    @Test
+    public void truncatedImage() throws IOException {
+        byte[] body = SimulatedScanner.multipart(json, data(100000));
+        byte[] truncated = new byte[body.length / 2];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(truncated));
+        assertTrue(parser.nextPart());
+        assertTrue(parser.nextPart());
+        try {
+            transferToFile(parser);
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    private byte[] transferToFile(MultipartParser parser) throws IOException {
+        FileChannel chan = new FileOutputStream(tempFile).getChannel();
+        try {
+            parser.transferBody(chan);
+        } finally {
+            chan.close();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = Channels.newInputStream(new FileInputStream(tempFile).getChannel());
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(i * 7 + (i >> 8));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,567 @@
+package org.twaindirect.session;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for NioHttpClient against an in-process HTTP server, and a comparison of the
+ * blocking and non-blocking transports with many image block requests in flight.
+ */
+public class NioHttpClientTest {
+    // Simulated scanner latency for each image block
+    private static final int blockDelayMillis = 50;
+    private static final int blockSize = 256 * 1024;
+    private static final int blocks = 64;
+
+    private HttpServer server;
+    private URI baseUrl;
+    private NioHttpClient client;
+
+    // Remote ports seen by the server - one per client connection
+    private final Set<Integer> connections = Collections.synchronizedSet(new HashSet<Integer>());
+
+    // /stream sends streamHalf bytes, then waits for this before sending the rest
+    private static final int streamHalf = 64 * 1024;
+    private final CountDownLatch streamReleased = new CountDownLatch(1);
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        // Echo the request body back, with a fixed length
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                connections.add(exchange.getRemoteAddress().getPort());
+                byte[] body = readFully(exchange.getRequestBody());
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+
+        // A chunked response (no length given)
+        server.createContext("/chunked", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                for (int i = 0; i < 100; i++) {
+                    out.write(("line " + i + "\n").getBytes("UTF-8"));
+                    out.flush();
+                }
+                out.close();
+            }
+        });
+
+        // Never responds in time
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+
+        // Half a body, then the rest once streamReleased is counted down
+        server.createContext("/stream", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 2 * streamHalf);
+                OutputStream out = exchange.getResponseBody();
+                out.write(new byte[streamHalf]);
+                out.flush();
+                try {
+                    streamReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                out.write(new byte[streamHalf]);
+                out.close();
+            }
+        });
+
+        // A simulated image block: waits, then returns blockSize bytes
+        server.createContext("/block", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readFully(exchange.getRequestBody());
+                try {
+                    Thread.sleep(blockDelayMillis);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                exchange.sendResponseHeaders(200, blockSize);
+                OutputStream out = exchange.getResponseBody();
+                out.write(new byte[blockSize]);
+                out.close();
+            }
+        });
+
+        server.start();
+        baseUrl = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        client = new NioHttpClient(1, 2);
+    }
+
+    @After
+    public void stopServer() {
+        client.shutdown();
+        HttpClientBuilder.closeSharedClients();
+        server.stop(0);
+    }
+
+    @Test
+    public void postEchoesBody() throws Exception {
+        NioHttpClient.Request request = new NioHttpClient.Request();
+        request.url = baseUrl.resolve("/echo");
+        request.method = "POST";
+        request.body = "{\"hello\":\"world\"}".getBytes("UTF-8");
+
+        NioHttpClient.Response response = execute(request);
+        assertEquals(200, response.statusCode);
+        assertEquals("application/json", response.headers.get("content-type"));
+        assertEquals("{\"hello\":\"world\"}", response.getBodyAsString());
+    }
+
+    @Test
+    public void readsChunkedResponse() throws Exception {
+        NioHttpClient.Request request = new NioHttpClient.Request();
+        request.url = baseUrl.resolve("/chunked");
+
+        NioHttpClient.Response response = execute(request);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            expected.append("line ").append(i).append("\n");
+        }
+        assertEquals(expected.toString(), response.getBodyAsString());
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            NioHttpClient.Request request = new NioHttpClient.Request();
+            request.url = baseUrl.resolve("/echo");
+            request.method = "POST";
+            request.body = new byte[] { (byte)i };
+            assertArrayEquals(new byte[] { (byte)i }, readFully(execute(request).getBodyStream()));
+        }
+        assertEquals(1, connections.size());
+    }
+
+    /**
+     * The listener gets the response as soon as the headers arrive, and reads the body
+     * as it comes in.
+     */
+    @Test
+    public void streamsBody() throws Exception {
+        NioHttpClient.Request request = new NioHttpClient.Request();
+        request.url = baseUrl.resolve("/stream");
+
+        try {
+            NioHttpClient.Response response = execute(request);
+            InputStream body = response.getBodyStream();
+            byte[] buffer = new byte[streamHalf];
+            int read = 0;
+            while (read < streamHalf) {
+                int len = body.read(buffer, read, streamHalf - read);
+                assertTrue(len > 0);
+                read += len;
+            }
+            assertEquals(0, body.available());
+
+            streamReleased.countDown();
+            assertEquals(streamHalf, readFully(body).length);
+        } finally {
+            streamReleased.countDown();
+        }
+    }
+
+    /**
+     * If a kept-alive connection turns out to be closed, a GET is sent again on a new
+     * connection, but a POST isn't, as the server may have acted on it.
+     */
+    /**
+     * Each listener holds a callback thread while it reads its body, so the default
+     * client has enough of them for a full download window and its hedges to be read
+     * at once.
+     */
+    @Test
+    public void windowOfBodiesReadAtOnce() throws Exception {
+        int bodies = HttpClientBuilder.getMaxConnectionsPerRoute();
+        NioHttpClient windowClient = new NioHttpClient(1, NioHttpClient.defaultCallbackThreads());
+        try {
+            final CountDownLatch halfRead = new CountDownLatch(bodies);
+            final CountDownLatch done = new CountDownLatch(bodies);
+            final AtomicReference<Exception> error = new AtomicReference<>();
+
+            for (int i = 0; i < bodies; i++) {
+                NioHttpClient.Request request = new NioHttpClient.Request();
+                request.url = baseUrl.resolve("/stream");
+                windowClient.execute(request, new AsyncResult<NioHttpClient.Response>() {
+                    @Override
+                    public void onResult(NioHttpClient.Response response) {
+                        try {
+                            InputStream body = response.getBodyStream();
+                            byte[] buffer = new byte[streamHalf];
+                            int offset = 0;
+                            while (offset < streamHalf) {
+                                int len = body.read(buffer, offset, streamHalf - offset);
+                                if (len < 0) {
+                                    throw new EOFException();
+                                }
+                                offset += len;
+                            }
+                            halfRead.countDown();
+                            assertEquals(streamHalf, readFully(body).length);
+                        } catch (IOException e) {
+                            error.set(e);
+                        }
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+            }
+
+            // Every listener is part way through its body before any body can finish
+            boolean allReading = halfRead.await(3, TimeUnit.SECONDS);
+            streamReleased.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertNull(error.get());
+            assertTrue(allReading);
+        } finally {
+            windowClient.shutdown();
+        }
+    }
+
+    @Test
+    public void onlyIdempotentRequestsRetried() throws Exception {
+        StaleConnectionServer stale = new StaleConnectionServer();
+        try {
+            NioHttpClient.Request get = new NioHttpClient.Request();
+            get.url = stale.url;
+            assertEquals("ok", execute(get).getBodyAsString());
+            assertEquals("ok", execute(get).getBodyAsString());
+            assertEquals(3, stale.requests.get());
+        } finally {
+            stale.close();
+        }
+
+        stale = new StaleConnectionServer();
+        try {
+            NioHttpClient.Request post = new NioHttpClient.Request();
+            post.url = stale.url;
+            post.method = "POST";
+            post.body = new byte[] { 1 };
+            assertEquals("ok", execute(post).getBodyAsString());
+            try {
+                execute(post);
+                fail("POST was retried");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals(2, stale.requests.get());
+        } finally {
+            stale.close();
+        }
+    }
+
+    /**
+     * Answers the first request on each connection and keeps the connection open, then
+     * closes it without answering when the next request arrives, like a server that
+     * dropped an idle connection just as the client reused it.
+     */
+    private static class StaleConnectionServer implements Runnable {
+        final ServerSocket serverSocket;
+        final URI url;
+        final AtomicInteger requests = new AtomicInteger();
+
+        StaleConnectionServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            url = URI.create("http://127.0.0.1:" + serverSocket.getLocalPort() + "/stale");
+            Thread thread = new Thread(this, "stale-connection-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    InputStream in = socket.getInputStream();
+                    readRequest(in);
+                    requests.incrementAndGet();
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("US-ASCII"));
+                    out.flush();
+
+                    readRequest(in);
+                    requests.incrementAndGet();
+                    socket.close();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Read a request's head and body.
+         */
+        private static void readRequest(InputStream in) throws IOException {
+            StringBuilder head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                int c = in.read();
+                if (c == -1) {
+                    throw new EOFException();
+                }
+                head.append((char)c);
+            }
+            Matcher contentLength = Pattern.compile("(?i)content-length: *(\\d+)").matcher(head);
+            if (contentLength.find()) {
+                for (int i = Integer.parseInt(contentLength.group(1)); i > 0; i--) {
+                    in.read();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        NioHttpClient.Request request = new NioHttpClient.Request();
+        request.url = baseUrl.resolve("/slow");
+        request.readTimeout = 200;
+
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        client.execute(request, new AsyncResult<NioHttpClient.Response>() {
+            @Override
+            public void onResult(NioHttpClient.Response result) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1500, TimeUnit.MILLISECONDS));
+        assertTrue(error.get() instanceof SocketTimeoutException);
+    }
+
+    @Test
+    public void jsonRequestOnNonBlockingClient() throws Exception {
+        final AtomicReference<JSONObject> result = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        HttpJsonRequest request = new HttpJsonRequest();
+        request.url = baseUrl.resolve("/echo");
+        request.method = "POST";
+        request.requestBody = new JSONObject("{\"results\":{\"success\":true}}");
+        request.transport = new NioTransport(client);
+        request.listener = new AsyncResult<JSONObject>() {
+            @Override
+            public void onResult(JSONObject json) {
+                result.set(json);
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                done.countDown();
+            }
+        };
+
+        // Returns before the response arrives
+        request.run();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(result.get().getJSONObject("results").getBoolean("success"));
+    }
+
+    /**
+     * Download the same set of blocks with every request in flight at once: on the
+     * blocking transport that takes a thread per request, on the non-blocking transport
+     * a single event loop thread.
+     */
+    @Test
+    public void blockingVersusNonBlocking() throws Exception {
+        HttpClientBuilder.setMaxConnectionsPerRoute(blocks);
+        try {
+            assertEquals(blocks, downloadBlocks(false));
+            assertEquals(1, downloadBlocks(true));
+        } finally {
+            HttpClientBuilder.setMaxConnectionsPerRoute(BlockDownloader.DEFAULT_WINDOW_SIZE + 2);
+        }
+    }
+
+    /**
+     * Time the downloads in blockingVersusNonBlocking.
+     */
+    @Test
+    public void compareBlockingWithNonBlocking() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        HttpClientBuilder.setMaxConnectionsPerRoute(blocks);
+        try {
+            // Warm up both paths
+            downloadBlocks(false);
+            downloadBlocks(true);
+
+            long start = System.nanoTime();
+            int blockingThreads = downloadBlocks(false);
+            long blockingMillis = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            int nonBlockingThreads = downloadBlocks(true);
+            long nonBlockingMillis = (System.nanoTime() - start) / 1000000;
+
+            Benchmarks.report("%d blocks in flight: blocking %d ms on %d threads, non-blocking %d ms on %d threads",
+                    blocks, blockingMillis, blockingThreads, nonBlockingMillis, nonBlockingThreads);
+        } finally {
+            HttpClientBuilder.setMaxConnectionsPerRoute(BlockDownloader.DEFAULT_WINDOW_SIZE + 2);
+        }
+    }
+
+    /**
+     * Request every block at once and wait for them all.
+     * Returns the number of threads that were tied up waiting on the network.
+     */
+    private int downloadBlocks(boolean nonBlocking) throws Exception {
+        final CountDownLatch done = new CountDownLatch(blocks);
+        final AtomicInteger bytes = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+
+        ExecutorService executor = null;
+        if (!nonBlocking) {
+            executor = Executors.newFixedThreadPool(blocks);
+        }
+
+        for (int i = 0; i < blocks; i++) {
+            HttpBlockRequest request = new HttpBlockRequest();
+            request.url = baseUrl.resolve("/block");
+            request.requestBody = new JSONObject();
+            request.transport = nonBlocking ? new NioTransport(client) : ApacheTransport.getDefault();
+            request.listener = new AsyncResult<InputStream>() {
+                @Override
+                public void onResult(InputStream result) {
+                    try {
+                        bytes.addAndGet(readFully(result).length);
+                    } catch (IOException e) {
+                        error.set(e);
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    error.set(e);
+                    done.countDown();
+                }
+            };
+
+            if (nonBlocking) {
+                request.run();
+            } else {
+                executor.submit(request);
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        if (executor != null) {
+            executor.shutdown();
+        }
+        assertNull(error.get());
+        assertEquals(blocks * blockSize, bytes.get());
+
+        return nonBlocking ? 1 : blocks;
+    }
+
+    private NioHttpClient.Response execute(NioHttpClient.Request request) throws Exception {
+        final AtomicReference<NioHttpClient.Response> response = new AtomicReference<>();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        client.execute(request, new AsyncResult<NioHttpClient.Response>() {
+            @Override
+            public void onResult(NioHttpClient.Response result) {
+                response.set(result);
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return response.get();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
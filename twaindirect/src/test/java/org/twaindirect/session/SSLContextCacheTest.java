@@ -0,0 +1,240 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pinning and the handshake counters, against a local TLS server with a self-signed
+ * certificate for localhost.
+ */
+public class SSLContextCacheTest {
+    private static final String password = "changeit";
+
+    private static File keyStoreFile;
+    private static KeyStore keyStore;
+
+    @BeforeClass
+    public static void createKeyStore() throws Exception {
+        keyStoreFile = File.createTempFile("sslcontextcache", ".jks");
+        keyStoreFile.delete();
+
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "scanner",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "JKS", "-keystore", keyStoreFile.getPath(),
+                "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true)
+                .start();
+        drain(process.getInputStream());
+        assertEquals(0, process.waitFor());
+
+        keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, password.toCharArray());
+        }
+    }
+
+    @AfterClass
+    public static void deleteKeyStore() {
+        keyStoreFile.delete();
+    }
+
+    @After
+    public void reset() {
+        SSLContextCache.clearPins();
+        SSLContextCache.resetCounters();
+    }
+
+    /**
+     * Accepts connections, and on each one completes the handshake, reads a byte and
+     * writes one back. The exchange gives a TLS 1.3 client time to receive the session
+     * ticket it resumes with.
+     */
+    private static class TlsServer extends Thread {
+        private final SSLServerSocket serverSocket;
+
+        TlsServer(String protocol) throws Exception {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+            serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            serverSocket.setEnabledProtocols(new String[] { protocol });
+            setDaemon(true);
+            start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                    socket.startHandshake();
+                    int b = socket.getInputStream().read();
+                    socket.getOutputStream().write(b);
+                    socket.getOutputStream().flush();
+                } catch (IOException e) {
+                    // The client rejected us, or the server is closing
+                }
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+        }
+    }
+
+    /**
+     * Connect the way getSocketFactory's factory does (which needs Android to run),
+     * and exchange a byte with the server.
+     */
+    private static Certificate connect(SSLContextCache.TrustPolicy trustPolicy, int port) throws Exception {
+        Socket plain = new Socket();
+        plain.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+        plain.setSoTimeout(5000);
+        SSLContext context = SSLContextCache.getSSLContext(trustPolicy);
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, "localhost", port, true)) {
+            SSLContextCache.countHandshake(socket);
+            socket.startHandshake();
+            SSLContextCache.getHostnameVerifier(trustPolicy).verify("localhost", socket);
+
+            socket.getOutputStream().write(1);
+            socket.getOutputStream().flush();
+            assertEquals(1, socket.getInputStream().read());
+            return socket.getSession().getPeerCertificates()[0];
+        }
+    }
+
+    /**
+     * The handshake listener runs on its own thread, so wait for the counter to catch up.
+     */
+    private static void awaitHandshakes(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SSLContextCache.getHandshakeCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, SSLContextCache.getHandshakeCount());
+    }
+
+    @Test
+    public void pinLearnedOnFirstUse() throws Exception {
+        TlsServer server = new TlsServer("TLSv1.2");
+        try {
+            assertNull(SSLContextCache.getPin("localhost"));
+
+            Certificate certificate = connect(SSLContextCache.TrustPolicy.pinOnFirstUse, server.getPort());
+            assertEquals(SSLContextCache.fingerprint(certificate), SSLContextCache.getPin("localhost"));
+            assertEquals(SSLContextCache.fingerprint(keyStore.getCertificate("scanner")), SSLContextCache.getPin("LOCALHOST"));
+
+            // Accepted again, now against the pin
+            connect(SSLContextCache.TrustPolicy.pinOnFirstUse, server.getPort());
+            assertEquals(SSLContextCache.fingerprint(certificate), SSLContextCache.getPin("localhost"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void restoredPinAccepted() throws Exception {
+        TlsServer server = new TlsServer("TLSv1.2");
+        try {
+            String fingerprint = SSLContextCache.fingerprint(keyStore.getCertificate("scanner"));
+            SSLContextCache.setPin("localhost", fingerprint.toUpperCase());
+
+            connect(SSLContextCache.TrustPolicy.pinOnFirstUse, server.getPort());
+            assertEquals(fingerprint, SSLContextCache.getPin("localhost"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void differentCertificateRejected() throws Exception {
+        TlsServer server = new TlsServer("TLSv1.2");
+        try {
+            // Accepted and remembered first, so the rejection has to get past that too
+            connect(SSLContextCache.TrustPolicy.pinOnFirstUse, server.getPort());
+
+            String otherPin = "0000000000000000000000000000000000000000000000000000000000000000";
+            SSLContextCache.setPin("localhost", otherPin);
+            try {
+                connect(SSLContextCache.TrustPolicy.pinOnFirstUse, server.getPort());
+                fail("Connected to a host pinned to a different certificate");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals(otherPin, SSLContextCache.getPin("localhost"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void resumedHandshakesCountedForTls12() throws Exception {
+        checkResumedHandshakesCounted("TLSv1.2");
+    }
+
+    @Test
+    public void resumedHandshakesCountedForTls13() throws Exception {
+        checkResumedHandshakesCounted("TLSv1.3");
+    }
+
+    /**
+     * The first connection to a server makes a full handshake, and the ones after it
+     * resume its session.
+     */
+    private void checkResumedHandshakesCounted(String protocol) throws Exception {
+        TlsServer server = new TlsServer(protocol);
+        try {
+            connect(SSLContextCache.TrustPolicy.trustSelfSigned, server.getPort());
+            awaitHandshakes(1);
+            assertEquals(0, SSLContextCache.getResumedHandshakeCount());
+
+            int connections = 4;
+            for (int i = 1; i < connections; i++) {
+                // The counters tell a resumption by the session's creation time, in milliseconds
+                Thread.sleep(2);
+                assertNotNull(connect(SSLContextCache.TrustPolicy.trustSelfSigned, server.getPort()));
+            }
+            awaitHandshakes(connections);
+            assertEquals(connections - 1, SSLContextCache.getResumedHandshakeCount());
+            assertTrue(SSLContextCache.getResumedHandshakeCount() < SSLContextCache.getHandshakeCount());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory TWAIN Direct scanner, for use with LoopbackTransport.
+ *
+ * startCapturing makes image blocks available, up to bufferBlocks at a time, and more
+ * are made available as blocks are released. Each image is split into partsPerImage
+ * blocks of partSize bytes, and block contents are predictable (see blockData) so
+ * tests can check what was delivered.
+ *
+ * waitForEvents is a long-poll, like a real scanner's: it answers once the session
+ * revision is past the one the client has seen, or after longPollMillis.
+ */
+public class SimulatedScanner implements LoopbackTransport.Handler {
+    public static final String privetToken = "simulated-privet-token";
+    public static final String apiPath = "/privet/twaindirect/session";
+
+    private final int sheets;
+    private final int partsPerImage;
+    private final int partSize;
+
+    // Optional delay before responding to readImageBlock, to simulate the scanner
+    public int readImageBlockDelayMillis;
+
+    // Optional delay before responding to releaseImageBlocks, to simulate a round trip
+    public int releaseImageBlocksDelayMillis;
+
+    // Optional delay before responding to waitForEvents, to simulate a long-poll with no events
+    public int waitForEventsDelayMillis;
+
+    // Longest time waitForEvents waits for the session to change
+    public int longPollMillis = 25000;
+
+    // If set, startCapturing doesn't make blocks available straight away. Instead one
+    // block is captured every captureIntervalMillis, and the client only hears of it
+    // through waitForEvents.
+    public int captureIntervalMillis;
+
+    // Longest time from capturing a block to the client asking for it, in nanoseconds
+    public final AtomicLong maxCaptureToReadNanos = new AtomicLong();
+
+    // When each block was captured
+    private final Map<Integer, Long> capturedNanos = new ConcurrentHashMap<>();
+
+    // Optional extra delay for one block, so that blocks complete out of order, for the
+    // first slowBlockCount requests for it; and if one of those delays was aborted, how
+    // many readImageBlock requests there had been by then
+    public int slowBlockNum;
+    public int slowBlockDelayMillis;
+    public final AtomicInteger slowBlockCount = new AtomicInteger(Integer.MAX_VALUE);
+    public volatile int slowBlockAbortedAfterReads = -1;
+
+    // Optionally drop the connection part way through sending one block, this many times
+    public int droppedBlockNum;
+    public final AtomicInteger droppedBlockCount = new AtomicInteger();
+
+    // How many blocks the scanner can hold before the application releases some
+    public int bufferBlocks = Integer.MAX_VALUE;
+
+    // Next block the scanner will capture
+    private int nextBlock = 1;
+
+    private final String sessionId = "simulated-session";
+    private String state = "noSession";
+    private int revision = 0;
+    private boolean doneCapturing;
+    private boolean imageBlocksDrained;
+
+    // Blocks that are available and haven't been released
+    private final TreeSet<Integer> imageBlocks = new TreeSet<>();
+
+    public final AtomicInteger readImageBlockCount = new AtomicInteger();
+    public final AtomicInteger releaseImageBlocksCount = new AtomicInteger();
+    public final AtomicInteger waitForEventsCount = new AtomicInteger();
+
+    // Requests the scanner is working on (or sleeping in) right now
+    public final AtomicInteger requestsInProgress = new AtomicInteger();
+
+    public SimulatedScanner(int sheets, int partsPerImage, int partSize) {
+        this.sheets = sheets;
+        this.partsPerImage = partsPerImage;
+        this.partSize = partSize;
+    }
+
+    public int getBlockCount() {
+        return sheets * partsPerImage;
+    }
+
+    /**
+     * The contents of a block: partSize bytes derived from the block number.
+     */
+    public byte[] blockData(int blockNum) {
+        byte[] data = new byte[partSize];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(blockNum * 31 + i);
+        }
+        return data;
+    }
+
+    /**
+     * The complete image for a sheet, as it should be delivered.
+     */
+    public byte[] imageData(int sheetNumber) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int firstBlock = (sheetNumber - 1) * partsPerImage + 1;
+        for (int part = 0; part < partsPerImage; part++) {
+            byte[] data = blockData(firstBlock + part);
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public TransportResponse handle(String method, URI url, Map<String, String> headers, byte[] body) throws Exception {
+        requestsInProgress.incrementAndGet();
+        try {
+            return respond(url, headers, body);
+        } finally {
+            requestsInProgress.decrementAndGet();
+        }
+    }
+
+    private TransportResponse respond(URI url, Map<String, String> headers, byte[] body) throws Exception {
+        if (url.getPath().equals("/privet/infoex")) {
+            JSONObject infoEx = new JSONObject();
+            infoEx.put("x-privet-token", privetToken);
+            infoEx.put("api", new JSONArray().put(apiPath));
+            return json(infoEx);
+        }
+
+        if (!url.getPath().equals(apiPath)) {
+            return new TransportResponse(404, "HTTP/1.1 404 Not Found", null);
+        }
+
+        if (!privetToken.equals(headers.get("X-Privet-Token"))) {
+            throw new IOException("Missing privet token");
+        }
+
+        JSONObject command = new JSONObject(new String(body, "UTF-8"));
+        String commandMethod = command.getString("method");
+        JSONObject params = command.optJSONObject("params");
+
+        switch (commandMethod) {
+            case "createSession":
+                synchronized(this) {
+                    setState("ready");
+                }
+                return success(new JSONObject());
+            case "sendTask": {
+                JSONObject results = new JSONObject();
+                synchronized(this) {
+                    changed();
+                }
+                return success(results);
+            }
+            case "startCapturing":
+                synchronized(this) {
+                    setState("capturing");
+                    capture();
+                }
+                if (captureIntervalMillis > 0) {
+                    startCaptureTimer();
+                }
+                return success(new JSONObject());
+            case "waitForEvents": {
+                waitForEventsCount.incrementAndGet();
+                if (waitForEventsDelayMillis > 0) {
+                    Thread.sleep(waitForEventsDelayMillis);
+                }
+                JSONObject event = new JSONObject();
+                synchronized(this) {
+                    long deadline = System.currentTimeMillis() + longPollMillis;
+                    long remaining = longPollMillis;
+                    while (revision <= params.getInt("sessionRevision") && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    event.put("session", session());
+                }
+                JSONObject results = new JSONObject();
+                results.put("events", new JSONArray().put(event));
+                return success(results);
+            }
+            case "readImageBlock":
+                readImageBlockCount.incrementAndGet();
+                Long captured = capturedNanos.remove(params.getInt("imageBlockNum"));
+                if (captured != null) {
+                    long latency = System.nanoTime() - captured;
+                    long max;
+                    do {
+                        max = maxCaptureToReadNanos.get();
+                    } while (latency > max && !maxCaptureToReadNanos.compareAndSet(max, latency));
+                }
+                if (readImageBlockDelayMillis > 0) {
+                    Thread.sleep(readImageBlockDelayMillis);
+                }
+                if (params.getInt("imageBlockNum") == slowBlockNum && slowBlockCount.getAndDecrement() > 0) {
+                    try {
+                        Thread.sleep(slowBlockDelayMillis);
+                    } catch (InterruptedException e) {
+                        slowBlockAbortedAfterReads = readImageBlockCount.get();
+                        throw e;
+                    }
+                }
+                if (params.getInt("imageBlockNum") == droppedBlockNum && droppedBlockCount.getAndDecrement() > 0) {
+                    byte[] response = imageBlock(params.getInt("imageBlockNum"));
+                    return new TransportResponse(200, "HTTP/1.1 200 OK", droppedAfter(response, response.length * 3 / 4));
+                }
+                return TransportResponse.ok(imageBlock(params.getInt("imageBlockNum")));
+            case "releaseImageBlocks":
+                releaseImageBlocksCount.incrementAndGet();
+                if (releaseImageBlocksDelayMillis > 0) {
+                    Thread.sleep(releaseImageBlocksDelayMillis);
+                }
+                synchronized(this) {
+                    int from = params.getInt("imageBlockNum");
+                    int to = params.getInt("lastImageBlockNum");
+                    imageBlocks.subSet(from, true, to, true).clear();
+                    capture();
+                    if (doneCapturing && imageBlocks.isEmpty()) {
+                        imageBlocksDrained = true;
+                    }
+                    changed();
+                }
+                return success(new JSONObject());
+            case "closeSession":
+                synchronized(this) {
+                    setState(imageBlocks.isEmpty() ? "noSession" : "closed");
+                }
+                return success(new JSONObject());
+            default:
+                throw new IOException("Unexpected command " + commandMethod);
+        }
+    }
+
+    /**
+     * Fill the buffer with newly captured blocks, unless they're captured on a timer.
+     */
+    private void capture() {
+        while (captureIntervalMillis == 0 && nextBlock <= getBlockCount() && imageBlocks.size() < bufferBlocks) {
+            captureBlock();
+        }
+        doneCapturing = nextBlock > getBlockCount();
+    }
+
+    private void captureBlock() {
+        capturedNanos.put(nextBlock, System.nanoTime());
+        imageBlocks.add(nextBlock++);
+    }
+
+    /**
+     * Capture a block every captureIntervalMillis, as long as there's room for it.
+     */
+    private void startCaptureTimer() {
+        Thread capturer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(captureIntervalMillis);
+                        synchronized(SimulatedScanner.this) {
+                            if (nextBlock > getBlockCount()) {
+                                return;
+                            }
+                            if (imageBlocks.size() < bufferBlocks) {
+                                captureBlock();
+                                doneCapturing = nextBlock > getBlockCount();
+                                changed();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stop capturing
+                }
+            }
+        }, "SimulatedScanner capture");
+        capturer.setDaemon(true);
+        capturer.start();
+    }
+
+    private void setState(String newState) {
+        state = newState;
+        changed();
+    }
+
+    /**
+     * The session has changed. Answer any waitForEvents long-polls.
+     */
+    private void changed() {
+        revision++;
+        notifyAll();
+    }
+
+    private JSONObject session() {
+        JSONObject session = new JSONObject();
+        session.put("sessionId", sessionId);
+        session.put("revision", revision);
+        session.put("state", state);
+        session.put("doneCapturing", doneCapturing);
+        session.put("imageBlocksDrained", imageBlocksDrained);
+        session.put("imageBlocks", new JSONArray(imageBlocks));
+        JSONObject status = new JSONObject();
+        status.put("success", true);
+        status.put("detected", "nominal");
+        session.put("status", status);
+        return session;
+    }
+
+    private TransportResponse success(JSONObject results) throws IOException {
+        results.put("success", true);
+        synchronized(this) {
+            results.put("session", session());
+        }
+        JSONObject response = new JSONObject();
+        response.put("results", results);
+        return json(response);
+    }
+
+    private static TransportResponse json(JSONObject json) throws IOException {
+        return TransportResponse.ok(json.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * A readImageBlock response: multipart/mixed, with the metadata and then the image data.
+     */
+    private byte[] imageBlock(int blockNum) throws IOException {
+        int sheetNumber = (blockNum - 1) / partsPerImage + 1;
+        int imagePart = (blockNum - 1) % partsPerImage + 1;
+
+        JSONObject address = new JSONObject();
+        address.put("sheetNumber", sheetNumber);
+        address.put("imageNumber", sheetNumber);
+        address.put("imagePart", imagePart);
+        address.put("moreParts", imagePart < partsPerImage ? "morePartsPending" : "lastPartInFile");
+        JSONObject metadata = new JSONObject();
+        metadata.put("address", address);
+        JSONObject results = new JSONObject();
+        results.put("success", true);
+        results.put("metadata", metadata);
+        JSONObject response = new JSONObject();
+        response.put("results", results);
+
+        return multipart(response.toString().getBytes("UTF-8"), blockData(blockNum));
+    }
+
+    /**
+     * A stream of the first count bytes of data, which then fails as if the connection
+     * had dropped.
+     */
+    public static InputStream droppedAfter(final byte[] data, final int count) {
+        return new InputStream() {
+            private int position = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (position >= count) {
+                    throw new IOException("Connection reset");
+                }
+                return data[position++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int len) throws IOException {
+                if (position >= count) {
+                    throw new IOException("Connection reset");
+                }
+                len = Math.min(len, count - position);
+                System.arraycopy(data, position, buffer, offset, len);
+                position += len;
+                return len;
+            }
+        };
+    }
+
+    public static byte[] multipart(byte[] json, byte[] pdf) throws IOException {
+        String boundary = "simulatedscannerboundary";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + boundary + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + json.length + "\r\n\r\n").getBytes("UTF-8"));
+        out.write(json);
+        out.write(("\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/pdf\r\n"
+                + "Content-Length: " + pdf.length + "\r\n\r\n").getBytes("UTF-8"));
+        out.write(pdf);
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes("UTF-8"));
+        return out.toByteArray();
+    }
+}